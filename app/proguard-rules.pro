@@ -18,4 +18,6 @@
 
 # If you keep the line number information, uncomment this to
 # hide the original source file name.
-#-renamesourcefileattribute SourceFile
\ No newline at end of file
+#-renamesourcefileattribute SourceFile
+# Templates, the template index and report data are (de)serialized by the hand-written
+# adapters in JsonAdapters, so these classes need no keep rules for Gson.
@@ -0,0 +1,310 @@
+package com.tricenc.aftershift;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Everything the report screen derives from a template, worked out once per template and shared by every report
+ * that uses it: which fields are shown and where, numeric slots, bound formulas, the recalculation order and the
+ * tokenized formats. Fields are addressed by ordinal (index into the template's field list) throughout.
+ *
+ * Derived fields with a decimal scale (their own or the template's) are in decimal mode: they are computed in
+ * NumericValue fixed point with evaluateFixed() and rounded to that scale, so sums of money amounts are exact.
+ *
+ * Immutable, so it is safe to build on a warm-up thread and share between screens: evaluation works on the caller's
+ * slot arrays and operand stacks (see getMaxStackDepth()). Cached on its ReportTemplate, so an imported replacement
+ * (a new ReportTemplate) gets a new one.
+ */
+public final class CompiledTemplate {
+    private static final String TAG = "CompiledTemplate";
+    private static final int[] NONE = new int[0];
+
+    private final ReportTemplate template;
+    private final Map<String, Integer> ordinals; // internalId -> ordinal
+    private final int[] displayOrdinals; // Adapter position -> ordinal of the field shown there
+    private final int[] positions; // Ordinal -> adapter position, or -1 if the field is not shown
+    private final int[][] sectionOrdinals; // Header ordinal -> ordinals of its shown section fields (null for non-headers)
+    private final Formula[] formulas; // Ordinal -> formula of a calculated field (null if none or invalid)
+    private final int[][] formulaRefSlots; // Ordinal -> slot of each formula reference (0 for unknown fields)
+    private final int[][][] formulaAggregateSlots; // Ordinal -> slots covered by each of the formula's aggregates
+    private final int[] mtdSourceSlots; // Ordinal -> slot of an MTD field's source, or -1 if not an MTD field
+    private final int[] decimalScales; // Ordinal -> decimal places of a derived field in decimal mode, or -1
+    private final int[] roundings; // Ordinal -> NumericValue.ROUND_* mode of a field in decimal mode
+    private final List<TemplateField> mtdFields; // Shown MTD fields, for loading their baselines
+    private final int[] calculationOrder; // Ordinals of shown derived fields, inputs first
+    private final int[][] affectedOrdinals; // Ordinal -> derived fields that read it, in calculation order
+    private final String formulaError; // Why the formulas could not be ordered, or null
+    private final int maxStackDepth; // Deepest operand stack of any formula
+    private final TemplateFormat reportFormat;
+    private final TemplateFormat previewFormat;
+
+    private CompiledTemplate(ReportTemplate template, Map<String, Integer> ordinals, int[] displayOrdinals, int[] positions,
+                             int[][] sectionOrdinals, Formula[] formulas, int[][] formulaRefSlots,
+                             int[][][] formulaAggregateSlots, int[] mtdSourceSlots,
+                             int[] decimalScales, int[] roundings, List<TemplateField> mtdFields, int[] calculationOrder, int[][] affectedOrdinals, String formulaError) {
+        this.template = template;
+        this.ordinals = ordinals;
+        this.displayOrdinals = displayOrdinals;
+        this.positions = positions;
+        this.sectionOrdinals = sectionOrdinals;
+        this.formulas = formulas;
+        this.formulaRefSlots = formulaRefSlots;
+        this.formulaAggregateSlots = formulaAggregateSlots;
+        this.mtdSourceSlots = mtdSourceSlots;
+        this.decimalScales = decimalScales;
+        this.roundings = roundings;
+        this.mtdFields = mtdFields;
+        this.calculationOrder = calculationOrder;
+        this.affectedOrdinals = affectedOrdinals;
+        this.formulaError = formulaError;
+        int depth = 1;
+        for (Formula formula : formulas) {
+            if (formula != null) {
+                depth = Math.max(depth, formula.getMaxStackDepth());
+            }
+        }
+        this.maxStackDepth = depth;
+        this.reportFormat = template.getCompiledReportFormat();
+        this.previewFormat = template.getCompiledPreviewFormat();
+    }
+
+    // Never throws: invalid formulas are reported through getFormulaError() and evaluate as errors
+    static CompiledTemplate compile(ReportTemplate template) {
+        List<TemplateField> fields = template.getFields() != null ? template.getFields() : new ArrayList<>();
+        int count = fields.size();
+
+        // Layout: headers and top-level fields are always shown, section fields only under a header defined before them
+        Map<String, Integer> ordinals = new HashMap<>();
+        Map<String, Integer> headersSoFar = new HashMap<>();
+        Map<Integer, List<Integer>> sections = new HashMap<>();
+        int[] positions = new int[count];
+        List<Integer> shown = new ArrayList<>();
+        for (int ordinal = 0; ordinal < count; ordinal++) {
+            TemplateField field = fields.get(ordinal);
+            positions[ordinal] = -1;
+            boolean isShown = false;
+            if (field.getType() == TemplateField.TYPE_FIELD) {
+                isShown = true;
+            } else if (field.getType() == TemplateField.TYPE_HEADER) {
+                headersSoFar.put(field.getInternalId(), ordinal);
+                sections.put(ordinal, new ArrayList<>());
+                isShown = true;
+            } else if (field.getType() == TemplateField.TYPE_SECTION_FIELD) {
+                Integer header = headersSoFar.get(field.getParentSectionId());
+                if (header != null) {
+                    sections.get(header).add(ordinal);
+                    isShown = true;
+                } else {
+                    Log.e(TAG, "Parent header '" + field.getParentSectionId() + "' not found for section field: " + field.getDisplayLabel());
+                }
+            }
+            if (isShown) {
+                ordinals.put(field.getInternalId(), ordinal);
+                positions[ordinal] = shown.size();
+                shown.add(ordinal);
+            }
+        }
+        int[][] sectionOrdinals = new int[count][];
+        for (Map.Entry<Integer, List<Integer>> entry : sections.entrySet()) {
+            sectionOrdinals[entry.getKey()] = toArray(entry.getValue());
+        }
+
+        // Formulas and running totals, bound to slots. Headers and hidden fields have no value, so they bind to slot 0.
+        Formula[] formulas = new Formula[count];
+        int[][] formulaRefSlots = new int[count][];
+        int[][][] formulaAggregateSlots = new int[count][][];
+        int[] mtdSourceSlots = new int[count];
+        int[] decimalScales = new int[count];
+        int[] roundings = new int[count];
+        List<TemplateField> mtdFields = new ArrayList<>();
+        for (int ordinal = 0; ordinal < count; ordinal++) {
+            TemplateField field = fields.get(ordinal);
+            mtdSourceSlots[ordinal] = -1;
+            decimalScales[ordinal] = -1;
+            if (field.isCalculated() || field.isMtd()) {
+                resolveDecimalMode(template, field, ordinal, decimalScales, roundings);
+            }
+            if (positions[ordinal] == -1 || field.getType() == TemplateField.TYPE_HEADER) {
+                continue;
+            }
+            if (field.isCalculated()) {
+                try {
+                    Formula formula = field.getCompiledFormula();
+                    List<String> refs = formula.getFieldRefs();
+                    int[] refSlots = new int[refs.size()];
+                    for (int i = 0; i < refSlots.length; i++) {
+                        refSlots[i] = valueSlot(fields, ordinals, positions, refs.get(i));
+                    }
+                    // Aggregates become the slots of the shown fields they cover, evaluated as a plain loop
+                    List<Formula.Aggregate> aggregates = formula.getAggregates();
+                    int[][] aggregateSlots = new int[aggregates.size()][];
+                    for (int i = 0; i < aggregateSlots.length; i++) {
+                        List<Integer> slots = new ArrayList<>();
+                        for (String fieldId : aggregates.get(i).resolve(fields)) {
+                            int slot = valueSlot(fields, ordinals, positions, fieldId);
+                            if (slot != 0) {
+                                slots.add(slot);
+                            }
+                        }
+                        aggregateSlots[i] = toArray(slots);
+                    }
+                    formulas[ordinal] = formula;
+                    formulaRefSlots[ordinal] = refSlots;
+                    formulaAggregateSlots[ordinal] = aggregateSlots;
+                } catch (IllegalArgumentException e) {
+                    Log.e(TAG, "Invalid formula for " + field.getInternalId(), e);
+                }
+            } else if (field.isMtd()) {
+                mtdSourceSlots[ordinal] = valueSlot(fields, ordinals, positions, field.getMtdSourceField());
+                mtdFields.add(field);
+            }
+        }
+
+        // Recalculation order and the fields each edit affects, restricted to shown fields
+        String formulaError = null;
+        int[] calculationOrder = NONE;
+        int[][] affectedOrdinals = new int[count][];
+        try {
+            FieldDependencyGraph graph = template.getDependencyGraph();
+            calculationOrder = toShownOrdinals(graph.getCalculationOrder(), ordinals);
+            for (int ordinal = 0; ordinal < count; ordinal++) {
+                if (positions[ordinal] != -1) {
+                    affectedOrdinals[ordinal] = toShownOrdinals(graph.getAffectedFields(fields.get(ordinal).getInternalId()), ordinals);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            // Templates are validated on import, so this only happens for files imported by older versions
+            Log.e(TAG, "Template " + template.getTemplateId() + " has invalid formulas", e);
+            formulaError = e.getMessage(); // Derived fields are then never recalculated
+        }
+
+        return new CompiledTemplate(template, ordinals, toArray(shown), positions, sectionOrdinals, formulas, formulaRefSlots,
+                formulaAggregateSlots, mtdSourceSlots, decimalScales, roundings, Collections.unmodifiableList(mtdFields), calculationOrder, affectedOrdinals, formulaError);
+    }
+
+    // A field's own decimal scale and rounding take precedence over the template's. Out-of-range values
+    // (only possible in files imported by older versions) fall back to double arithmetic and half-up rounding.
+    private static void resolveDecimalMode(ReportTemplate template, TemplateField field, int ordinal, int[] decimalScales, int[] roundings) {
+        int scale = field.getDecimalScale() != TemplateField.NO_DECIMAL_SCALE ? field.getDecimalScale() : template.getDecimalScale();
+        if (scale >= 0 && scale <= NumericValue.SCALE) {
+            decimalScales[ordinal] = scale;
+        }
+        int rounding = NumericValue.parseRounding(field.getRounding() != null ? field.getRounding() : template.getRounding());
+        roundings[ordinal] = rounding != -1 ? rounding : NumericValue.ROUND_HALF_UP;
+    }
+
+    // Slot of a shown value field; 0 (always 0) for anything else
+    private static int valueSlot(List<TemplateField> fields, Map<String, Integer> ordinals, int[] positions, String fieldId) {
+        Integer ordinal = fieldId != null ? ordinals.get(fieldId) : null;
+        if (ordinal == null || positions[ordinal] == -1 || fields.get(ordinal).getType() == TemplateField.TYPE_HEADER) {
+            return 0;
+        }
+        return slotOf(ordinal);
+    }
+
+    private static int[] toShownOrdinals(List<String> fieldIds, Map<String, Integer> ordinals) {
+        if (fieldIds.isEmpty()) {
+            return NONE;
+        }
+        List<Integer> result = new ArrayList<>(fieldIds.size());
+        for (String fieldId : fieldIds) {
+            Integer ordinal = ordinals.get(fieldId);
+            if (ordinal != null) {
+                result.add(ordinal);
+            }
+        }
+        return toArray(result);
+    }
+
+    private static int[] toArray(List<Integer> values) {
+        if (values.isEmpty()) {
+            return NONE;
+        }
+        int[] array = new int[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        return array;
+    }
+
+    public ReportTemplate getTemplate() { return template; }
+    public List<TemplateField> getFields() { return template.getFields(); }
+    public int getFieldCount() { return positions.length; }
+    public TemplateField getField(int ordinal) { return template.getFields().get(ordinal); }
+
+    // -1 if the template has no shown field with this id
+    public int ordinalOf(String fieldId) {
+        Integer ordinal = ordinals.get(fieldId);
+        return ordinal != null ? ordinal : -1;
+    }
+
+    public int getDisplayCount() { return displayOrdinals.length; }
+    public int getDisplayOrdinal(int position) { return displayOrdinals[position]; }
+    public int getPosition(int ordinal) { return positions[ordinal]; }
+
+    // Ordinals of the section fields shown under a header, in template order (empty for non-headers)
+    public int[] getSectionOrdinals(int headerOrdinal) {
+        int[] section = sectionOrdinals[headerOrdinal];
+        return section != null ? section : NONE;
+    }
+
+    // Numeric values are kept in a double[] (and, for decimal mode, a NumericValue long[]) of getSlotCount() entries;
+    // slot 0 is reserved and always 0
+    public int getSlotCount() { return positions.length + 1; }
+    public static int slotOf(int ordinal) { return ordinal + 1; }
+
+    public boolean isCalculated(int ordinal) { return getField(ordinal).isCalculated(); }
+
+    // Entries each operand stack passed to evaluate() and evaluateFixed() needs
+    public int getMaxStackDepth() { return maxStackDepth; }
+
+    // NaN if the field has no valid formula or an operand is not numeric
+    public double evaluate(int ordinal, double[] slotValues, double[] stack) {
+        Formula formula = formulas[ordinal];
+        return formula != null ? formula.evaluate(slotValues, formulaRefSlots[ordinal], formulaAggregateSlots[ordinal], stack) : Double.NaN;
+    }
+
+    // Decimal mode: evaluate with evaluateFixed() on NumericValue slots instead of evaluate()
+    public boolean isFixedPoint(int ordinal) { return decimalScales[ordinal] != -1; }
+
+    // INVALID if the field has no valid formula, an operand is not numeric, a division is by zero or a value overflows
+    public long evaluateFixed(int ordinal, long[] fixedSlotValues, long[] stack) {
+        Formula formula = formulas[ordinal];
+        if (formula == null) {
+            return NumericValue.INVALID;
+        }
+        return roundFixed(ordinal, formula.evaluateFixed(fixedSlotValues, formulaRefSlots[ordinal], formulaAggregateSlots[ordinal],
+                roundings[ordinal], stack));
+    }
+
+    // Rounds a value to the field's decimal scale with its rounding mode
+    public long roundFixed(int ordinal, long value) {
+        return NumericValue.round(value, decimalScales[ordinal], roundings[ordinal]);
+    }
+
+    // Decimal places a derived field is displayed with: its decimal scale, or 2 outside decimal mode
+    public int getDisplayDecimals(int ordinal) {
+        return decimalScales[ordinal] != -1 ? decimalScales[ordinal] : 2;
+    }
+
+    public boolean isMtd(int ordinal) { return mtdSourceSlots[ordinal] != -1; }
+    public int getMtdSourceSlot(int ordinal) { return mtdSourceSlots[ordinal]; }
+    public List<TemplateField> getMtdFields() { return mtdFields; }
+
+    public int[] getCalculationOrder() { return calculationOrder; }
+
+    // Derived fields that directly or transitively read the field, in calculation order
+    public int[] getAffectedOrdinals(int ordinal) {
+        int[] affected = affectedOrdinals[ordinal];
+        return affected != null ? affected : NONE;
+    }
+
+    public String getFormulaError() { return formulaError; }
+    public TemplateFormat getReportFormat() { return reportFormat; }
+    public TemplateFormat getPreviewFormat() { return previewFormat; }
+}
@@ -0,0 +1,185 @@
+package com.tricenc.aftershift;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the field edits made since the open report was last saved, so a crash or a reboot mid-shift
+ * loses at most the last flush interval instead of everything typed since the last save.
+ *
+ * The file starts with a header record naming the report (id -1 if it was never inserted) and its template,
+ * followed by one record per flushed batch of edits. Each record is written as length, payload and CRC32 of the
+ * payload; reading stops at the first incomplete or damaged record, so a write torn by a crash only loses that batch.
+ * Not thread-safe; ReportRepository uses it from its writer thread only.
+ */
+final class EditJournal {
+    private static final String FILE_NAME = "edit_journal.bin";
+    private static final byte RECORD_HEADER = 1;
+    private static final byte RECORD_EDITS = 2;
+    private static final int MAX_RECORD_BYTES = 16 * 1024 * 1024; // Anything larger is a damaged length
+
+    private final File file;
+    private final ByteArrayOutputStream payloadBuffer = new ByteArrayOutputStream(256);
+    private final ByteArrayOutputStream writeBuffer = new ByteArrayOutputStream(512);
+    private final CRC32 crc = new CRC32();
+    private FileOutputStream output; // Open once the current journal has its header
+
+    // What a journal left behind by the previous process contains
+    static final class Contents {
+        private final long reportId;
+        private final String templateId;
+        private final Map<String, String> values;
+
+        Contents(long reportId, String templateId, Map<String, String> values) {
+            this.reportId = reportId;
+            this.templateId = templateId;
+            this.values = values;
+        }
+
+        long getReportId() { return reportId; }
+        String getTemplateId() { return templateId; }
+        Map<String, String> getValues() { return values; } // Latest value per field id
+    }
+
+    EditJournal(File directory) {
+        this.file = new File(directory, FILE_NAME);
+    }
+
+    /**
+     * Appends one batch of edits (field id -> new value) and syncs it to disk. The first batch after a reset
+     * starts a new journal for {@code reportId}.
+     */
+    void append(long reportId, String templateId, Map<String, String> edits) throws IOException {
+        if (edits.isEmpty()) return;
+
+        writeBuffer.reset();
+        boolean startsJournal = output == null;
+        if (startsJournal) {
+            DataOutputStream header = beginRecord(RECORD_HEADER);
+            header.writeLong(reportId);
+            writeString(header, templateId);
+            endRecord();
+        }
+        DataOutputStream batch = beginRecord(RECORD_EDITS);
+        batch.writeInt(edits.size());
+        for (Map.Entry<String, String> edit : edits.entrySet()) {
+            writeString(batch, edit.getKey());
+            writeString(batch, edit.getValue() != null ? edit.getValue() : "");
+        }
+        endRecord();
+
+        if (startsJournal) {
+            output = new FileOutputStream(file, false); // Replaces whatever an earlier report left
+        }
+        try {
+            writeBuffer.writeTo(output);
+            output.getFD().sync(); // Survives a power loss, not just the process being killed
+        } catch (IOException e) {
+            reset(); // Never append to a journal whose header or previous batch may be missing
+            throw e;
+        }
+    }
+
+    // Discards the journal, e.g. once its edits are in the database
+    void reset() {
+        if (output != null) {
+            try {
+                output.close();
+            } catch (IOException ignored) {
+                // Deleted below anyway
+            }
+            output = null;
+        }
+        if (file.exists() && !file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    // The journal left on disk, or null if there is none or it has no readable edits
+    Contents read() throws IOException {
+        if (!file.exists()) return null;
+
+        long reportId = -1;
+        String templateId = null;
+        Map<String, String> values = new LinkedHashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break; // Clean end
+                }
+                if (length <= 0 || length > MAX_RECORD_BYTES) break;
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                int checksum = in.readInt();
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != checksum) break;
+
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                byte type = record.readByte();
+                if (type == RECORD_HEADER && templateId == null) {
+                    reportId = record.readLong();
+                    templateId = readString(record);
+                } else if (type == RECORD_EDITS && templateId != null) {
+                    int count = record.readInt();
+                    for (int i = 0; i < count; i++) {
+                        String fieldId = readString(record);
+                        values.put(fieldId, readString(record));
+                    }
+                } else {
+                    break; // Out of order: the rest cannot be trusted
+                }
+            }
+        } catch (EOFException e) {
+            // The last record was torn by the crash; everything before it is intact
+        }
+        return templateId != null && !values.isEmpty() ? new Contents(reportId, templateId, values) : null;
+    }
+
+    private DataOutputStream beginRecord(byte type) throws IOException {
+        payloadBuffer.reset();
+        DataOutputStream out = new DataOutputStream(payloadBuffer);
+        out.writeByte(type);
+        return out;
+    }
+
+    private void endRecord() throws IOException {
+        byte[] payload = payloadBuffer.toByteArray();
+        crc.reset();
+        crc.update(payload, 0, payload.length);
+        DataOutputStream out = new DataOutputStream(writeBuffer);
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.writeInt((int) crc.getValue());
+    }
+
+    // Length-prefixed UTF-8; unlike writeUTF there is no 64 KiB limit for long notes
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_RECORD_BYTES) throw new EOFException("Damaged string length");
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
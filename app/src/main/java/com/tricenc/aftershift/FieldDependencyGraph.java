@@ -0,0 +1,164 @@
+package com.tricenc.aftershift;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Dependencies between a template's derived fields (calculated and month-to-date) and the fields they read.
+ * Built once per template; derived fields are kept in a topological order so that recalculating them in that
+ * order always sees up-to-date inputs, including inputs that are themselves derived.
+ */
+public final class FieldDependencyGraph {
+    public static final FieldDependencyGraph EMPTY = new FieldDependencyGraph(
+            Collections.emptyMap(), Collections.emptyList());
+
+    private final Map<String, List<String>> dependents; // fieldId -> derived fieldIds that read it directly
+    private final List<String> calculationOrder; // All derived fieldIds, inputs before the fields that read them
+    private final Map<String, Integer> orderIndex = new HashMap<>();
+    private final Map<String, List<String>> affectedCache = new HashMap<>();
+
+    private FieldDependencyGraph(Map<String, List<String>> dependents, List<String> calculationOrder) {
+        this.dependents = dependents;
+        this.calculationOrder = Collections.unmodifiableList(calculationOrder);
+        for (int i = 0; i < calculationOrder.size(); i++) {
+            orderIndex.put(calculationOrder.get(i), i);
+        }
+    }
+
+    /**
+     * Builds the graph for a template's fields.
+     * @throws IllegalArgumentException if a formula is malformed or the derived fields depend on each other in a cycle
+     */
+    public static FieldDependencyGraph build(List<TemplateField> fields) {
+        // derived fieldId -> the fields it reads, in template order
+        Map<String, List<String>> inputs = new LinkedHashMap<>();
+        for (TemplateField field : fields) {
+            if (field.isCalculated()) {
+                inputs.put(field.getInternalId(), field.getCompiledFormula().getInputIds(fields));
+            } else if (field.isMtd()) {
+                inputs.put(field.getInternalId(), Collections.singletonList(field.getMtdSourceField()));
+            }
+        }
+
+        Map<String, List<String>> dependents = new HashMap<>();
+        Map<String, Integer> pendingInputs = new HashMap<>(); // derived fieldId -> derived inputs not yet ordered
+        for (Map.Entry<String, List<String>> entry : inputs.entrySet()) {
+            int derivedInputs = 0;
+            for (String input : entry.getValue()) {
+                dependents.computeIfAbsent(input, k -> new ArrayList<>()).add(entry.getKey());
+                if (inputs.containsKey(input)) {
+                    derivedInputs++;
+                }
+            }
+            pendingInputs.put(entry.getKey(), derivedInputs);
+        }
+
+        // Kahn's algorithm, seeded in template order so the result is stable
+        List<String> order = new ArrayList<>(inputs.size());
+        Deque<String> ready = new ArrayDeque<>();
+        for (String fieldId : inputs.keySet()) {
+            if (pendingInputs.get(fieldId) == 0) {
+                ready.add(fieldId);
+            }
+        }
+
+        while (!ready.isEmpty()) {
+            String fieldId = ready.poll();
+            order.add(fieldId);
+            List<String> readers = dependents.get(fieldId);
+            if (readers == null) continue;
+            for (String reader : readers) {
+                int remaining = pendingInputs.merge(reader, -1, Integer::sum);
+                if (remaining == 0) {
+                    ready.add(reader);
+                }
+            }
+        }
+
+        if (order.size() < inputs.size()) {
+            throw new IllegalArgumentException("Circular formula dependency: " + describeCycle(inputs, new HashSet<>(order)));
+        }
+
+        for (Map.Entry<String, List<String>> entry : dependents.entrySet()) {
+            entry.setValue(Collections.unmodifiableList(entry.getValue()));
+        }
+        return new FieldDependencyGraph(dependents, order);
+    }
+
+    // Walks unordered fields through their unordered inputs until one repeats, e.g. "a -> b -> a"
+    private static String describeCycle(Map<String, List<String>> inputs, Set<String> ordered) {
+        String start = null;
+        for (String fieldId : inputs.keySet()) {
+            if (!ordered.contains(fieldId)) {
+                start = fieldId;
+                break;
+            }
+        }
+        List<String> path = new ArrayList<>();
+        String current = start;
+        while (current != null && !path.contains(current)) {
+            path.add(current);
+            String next = null;
+            for (String input : inputs.get(current)) {
+                if (inputs.containsKey(input) && !ordered.contains(input)) {
+                    next = input;
+                    break;
+                }
+            }
+            current = next;
+        }
+        List<String> cycle = current != null ? path.subList(path.indexOf(current), path.size()) : path;
+        StringBuilder builder = new StringBuilder();
+        for (String fieldId : cycle) {
+            builder.append(fieldId).append(" -> ");
+        }
+        return builder.append(current).toString();
+    }
+
+    public List<String> getCalculationOrder() { return calculationOrder; }
+
+    public boolean isDerived(String fieldId) { return orderIndex.containsKey(fieldId); }
+
+    /**
+     * Derived fields that directly or transitively read {@code fieldId}, in calculation order.
+     * The result is computed once per field and cached.
+     */
+    public synchronized List<String> getAffectedFields(String fieldId) {
+        List<String> affected = affectedCache.get(fieldId);
+        if (affected != null) {
+            return affected;
+        }
+
+        Set<String> visited = new HashSet<>();
+        Deque<String> pending = new ArrayDeque<>();
+        pending.add(fieldId);
+        while (!pending.isEmpty()) {
+            List<String> readers = dependents.get(pending.poll());
+            if (readers == null) continue;
+            for (String reader : readers) {
+                if (visited.add(reader)) {
+                    pending.add(reader);
+                }
+            }
+        }
+
+        if (visited.isEmpty()) {
+            affected = Collections.emptyList();
+        } else {
+            affected = new ArrayList<>(visited);
+            affected.sort(Comparator.comparingInt(orderIndex::get));
+            affected = Collections.unmodifiableList(affected);
+        }
+        affectedCache.put(fieldId, affected);
+        return affected;
+    }
+}
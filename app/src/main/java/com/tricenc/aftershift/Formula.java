@@ -0,0 +1,650 @@
+package com.tricenc.aftershift;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * A calculation formula compiled once into a postfix program.
+ *
+ * Syntax: numbers, field references in curly braces ({@code {field_id}}), {@code + - * /} with the usual
+ * precedence, parentheses, unary minus and the functions {@code min(a, b, ...)}, {@code max(a, b, ...)},
+ * {@code abs(x)} and {@code round(x)} / {@code round(x, digits)}.
+ *
+ * Section aggregates {@code sum(section: header_id, column: "R")}, {@code count(...)} and {@code avg(...)} cover the
+ * numeric fields under a header, optionally only those whose label is the given column. They are kept as
+ * Aggregate descriptions; the template resolves each one to the slots of its fields (see Aggregate.resolve()).
+ *
+ * Evaluation reads operands from a caller-owned slot array, uses a caller-owned operand stack and allocates nothing.
+ * A non-numeric operand should be passed as NaN; it propagates to the result, as does division by zero (infinity).
+ * Instances are immutable, so one can be evaluated from several threads, each with its own stack.
+ *
+ * evaluateFixed() runs the same program on NumericValue fixed-point operands, for fields in decimal mode.
+ */
+public final class Formula {
+    // Opcodes. PUSH, LOAD and AGGREGATE take one operand, MIN, MAX and ROUND take an argument count.
+    private static final int OP_PUSH = 0;
+    private static final int OP_LOAD = 1;
+    private static final int OP_ADD = 2;
+    private static final int OP_SUB = 3;
+    private static final int OP_MUL = 4;
+    private static final int OP_DIV = 5;
+    private static final int OP_NEG = 6;
+    private static final int OP_ABS = 7;
+    private static final int OP_MIN = 8;
+    private static final int OP_MAX = 9;
+    private static final int OP_ROUND = 10;
+    private static final int OP_AGGREGATE = 11;
+
+    private final String source;
+    private final int[] code;
+    private final double[] constants;
+    private final List<String> fieldRefs;
+    private final Aggregate[] aggregates;
+    private final List<Aggregate> aggregateList;
+    private final int maxStackDepth;
+    private final long[] fixedConstants; // constants as NumericValue, for evaluateFixed()
+
+    private Formula(String source, int[] code, double[] constants, List<String> fieldRefs, List<Aggregate> aggregates, int maxStackDepth) {
+        this.source = source;
+        this.code = code;
+        this.constants = constants;
+        this.fieldRefs = Collections.unmodifiableList(fieldRefs);
+        this.aggregates = aggregates.toArray(new Aggregate[0]);
+        this.aggregateList = Collections.unmodifiableList(Arrays.asList(this.aggregates));
+        this.maxStackDepth = Math.max(1, maxStackDepth);
+        this.fixedConstants = new long[constants.length];
+        for (int i = 0; i < constants.length; i++) {
+            fixedConstants[i] = NumericValue.fromDouble(constants[i]);
+        }
+    }
+
+    /**
+     * Parses a formula such as {@code "({a} + {b}) * 0.15"}.
+     * @throws IllegalArgumentException if the formula is malformed
+     */
+    public static Formula compile(String source) {
+        if (source == null || source.trim().isEmpty()) {
+            throw new IllegalArgumentException("Empty formula");
+        }
+        return new Compiler(source).compile();
+    }
+
+    /**
+     * Rebuilds a formula from a program saved with getCode(), getConstants(), getFieldRefs(), getAggregates() and
+     * getMaxStackDepth(), skipping the parser. The program is checked before use.
+     * @throws IllegalArgumentException if the program is not one the compiler could have produced
+     */
+    static Formula restore(String source, int[] code, double[] constants, List<String> fieldRefs, List<Aggregate> aggregates, int maxStackDepth) {
+        int depth = 0;
+        int pc = 0;
+        while (pc < code.length) {
+            int opcode = code[pc++];
+            int operand = opcode == OP_PUSH || opcode == OP_LOAD || opcode == OP_MIN || opcode == OP_MAX || opcode == OP_ROUND
+                    || opcode == OP_AGGREGATE ? (pc < code.length ? code[pc++] : -1) : 0;
+            switch (opcode) {
+                case OP_PUSH: if (operand < 0 || operand >= constants.length) depth = -1; else depth++; break;
+                case OP_LOAD: if (operand < 0 || operand >= fieldRefs.size()) depth = -1; else depth++; break;
+                case OP_AGGREGATE: if (operand < 0 || operand >= aggregates.size()) depth = -1; else depth++; break;
+                case OP_ADD: case OP_SUB: case OP_MUL: case OP_DIV: depth = depth >= 2 ? depth - 1 : -1; break;
+                case OP_NEG: case OP_ABS: if (depth < 1) depth = -1; break;
+                case OP_MIN: case OP_MAX: depth = operand >= 1 && depth >= operand ? depth - operand + 1 : -1; break;
+                case OP_ROUND: depth = (operand == 1 || operand == 2) && depth >= operand ? depth - operand + 1 : -1; break;
+                default: depth = -1; break;
+            }
+            if (depth < 0 || depth > maxStackDepth) {
+                throw new IllegalArgumentException("Invalid program for formula: " + source);
+            }
+        }
+        if (depth != 1) {
+            throw new IllegalArgumentException("Invalid program for formula: " + source);
+        }
+        return new Formula(source, code, constants, new ArrayList<>(fieldRefs), aggregates, maxStackDepth);
+    }
+
+    public String getSource() { return source; }
+
+    // The compiled program, for saving with restore(). Callers must not modify the arrays.
+    int[] getCode() { return code; }
+    double[] getConstants() { return constants; }
+    // Entries the stack passed to evaluate() or evaluateFixed() needs
+    public int getMaxStackDepth() { return maxStackDepth; }
+
+    // Distinct field ids referenced by the formula, in order of first appearance
+    public List<String> getFieldRefs() { return fieldRefs; }
+
+    // Section aggregates in the formula, in order of appearance
+    public List<Aggregate> getAggregates() { return aggregateList; }
+
+    // Every field the formula reads, directly or through an aggregate, in order of first appearance
+    public List<String> getInputIds(List<TemplateField> fields) {
+        if (aggregates.length == 0) {
+            return fieldRefs;
+        }
+        Set<String> inputs = new LinkedHashSet<>(fieldRefs);
+        for (Aggregate aggregate : aggregates) {
+            inputs.addAll(aggregate.resolve(fields));
+        }
+        return new ArrayList<>(inputs);
+    }
+
+    /**
+     * Evaluates the formula. Field reference i ({@code getFieldRefs().get(i)}) is read from
+     * {@code slotValues[refSlots[i]]}, and aggregate i ({@code getAggregates().get(i)}) covers the slots in
+     * {@code aggregateSlots[i]}, so callers map references to slots once and reuse the arrays.
+     * {@code stack} is scratch space of at least getMaxStackDepth() entries.
+     */
+    public double evaluate(double[] slotValues, int[] refSlots, int[][] aggregateSlots, double[] stack) {
+        int sp = 0;
+        int pc = 0;
+        while (pc < code.length) {
+            switch (code[pc++]) {
+                case OP_PUSH:
+                    stack[sp++] = constants[code[pc++]];
+                    break;
+                case OP_LOAD:
+                    stack[sp++] = slotValues[refSlots[code[pc++]]];
+                    break;
+                case OP_AGGREGATE: {
+                    int index = code[pc++];
+                    int[] slots = aggregateSlots[index];
+                    int function = aggregates[index].function;
+                    double sum = 0;
+                    if (function != Aggregate.COUNT) {
+                        for (int slot : slots) {
+                            sum += slotValues[slot];
+                        }
+                    }
+                    stack[sp++] = function == Aggregate.SUM ? sum
+                            : function == Aggregate.COUNT ? slots.length
+                            : sum / slots.length; // NaN for an empty section
+                    break;
+                }
+                case OP_ADD:
+                    sp--;
+                    stack[sp - 1] += stack[sp];
+                    break;
+                case OP_SUB:
+                    sp--;
+                    stack[sp - 1] -= stack[sp];
+                    break;
+                case OP_MUL:
+                    sp--;
+                    stack[sp - 1] *= stack[sp];
+                    break;
+                case OP_DIV:
+                    sp--;
+                    stack[sp - 1] /= stack[sp];
+                    break;
+                case OP_NEG:
+                    stack[sp - 1] = -stack[sp - 1];
+                    break;
+                case OP_ABS:
+                    stack[sp - 1] = Math.abs(stack[sp - 1]);
+                    break;
+                case OP_MIN: {
+                    int argc = code[pc++];
+                    double result = stack[sp - argc];
+                    for (int i = sp - argc + 1; i < sp; i++) {
+                        result = Math.min(result, stack[i]);
+                    }
+                    sp -= argc;
+                    stack[sp++] = result;
+                    break;
+                }
+                case OP_MAX: {
+                    int argc = code[pc++];
+                    double result = stack[sp - argc];
+                    for (int i = sp - argc + 1; i < sp; i++) {
+                        result = Math.max(result, stack[i]);
+                    }
+                    sp -= argc;
+                    stack[sp++] = result;
+                    break;
+                }
+                case OP_ROUND: {
+                    int argc = code[pc++];
+                    double digits = argc == 2 ? stack[--sp] : 0;
+                    stack[sp - 1] = round(stack[sp - 1], (int) digits);
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Bad opcode at " + (pc - 1) + " in " + source);
+            }
+        }
+        return stack[0];
+    }
+
+    /**
+     * Evaluates the formula in fixed point: operands and result are NumericValue longs, and products, quotients
+     * and round() use the given NumericValue.ROUND_* mode. INVALID operands, overflow and division by zero
+     * give INVALID. {@code stack} is scratch space of at least getMaxStackDepth() entries.
+     */
+    public long evaluateFixed(long[] slotValues, int[] refSlots, int[][] aggregateSlots, int rounding, long[] stack) {
+        int sp = 0;
+        int pc = 0;
+        while (pc < code.length) {
+            switch (code[pc++]) {
+                case OP_PUSH:
+                    stack[sp++] = fixedConstants[code[pc++]];
+                    break;
+                case OP_LOAD:
+                    stack[sp++] = slotValues[refSlots[code[pc++]]];
+                    break;
+                case OP_AGGREGATE: {
+                    int index = code[pc++];
+                    int[] slots = aggregateSlots[index];
+                    int function = aggregates[index].function;
+                    long count = NumericValue.fromDouble(slots.length);
+                    long sum = 0;
+                    if (function != Aggregate.COUNT) {
+                        for (int slot : slots) {
+                            sum = NumericValue.add(sum, slotValues[slot]);
+                        }
+                    }
+                    stack[sp++] = function == Aggregate.SUM ? sum
+                            : function == Aggregate.COUNT ? count
+                            : NumericValue.divide(sum, count, rounding); // INVALID for an empty section
+                    break;
+                }
+                case OP_ADD:
+                    sp--;
+                    stack[sp - 1] = NumericValue.add(stack[sp - 1], stack[sp]);
+                    break;
+                case OP_SUB:
+                    sp--;
+                    stack[sp - 1] = NumericValue.subtract(stack[sp - 1], stack[sp]);
+                    break;
+                case OP_MUL:
+                    sp--;
+                    stack[sp - 1] = NumericValue.multiply(stack[sp - 1], stack[sp], rounding);
+                    break;
+                case OP_DIV:
+                    sp--;
+                    stack[sp - 1] = NumericValue.divide(stack[sp - 1], stack[sp], rounding);
+                    break;
+                case OP_NEG:
+                    stack[sp - 1] = NumericValue.negate(stack[sp - 1]);
+                    break;
+                case OP_ABS:
+                    stack[sp - 1] = NumericValue.abs(stack[sp - 1]);
+                    break;
+                case OP_MIN: {
+                    int argc = code[pc++];
+                    long result = stack[sp - argc];
+                    for (int i = sp - argc + 1; i < sp; i++) {
+                        result = NumericValue.min(result, stack[i]);
+                    }
+                    sp -= argc;
+                    stack[sp++] = result;
+                    break;
+                }
+                case OP_MAX: {
+                    int argc = code[pc++];
+                    long result = stack[sp - argc];
+                    for (int i = sp - argc + 1; i < sp; i++) {
+                        result = NumericValue.max(result, stack[i]);
+                    }
+                    sp -= argc;
+                    stack[sp++] = result;
+                    break;
+                }
+                case OP_ROUND: {
+                    int argc = code[pc++];
+                    long digits = argc == 2 ? stack[--sp] : 0;
+                    stack[sp - 1] = digits == NumericValue.INVALID ? NumericValue.INVALID
+                            : NumericValue.round(stack[sp - 1], (int) NumericValue.toDouble(digits), rounding);
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Bad opcode at " + (pc - 1) + " in " + source);
+            }
+        }
+        return stack[0];
+    }
+
+    // Rounds half away from zero, keeping NaN (Math.round would turn it into 0)
+    private static double round(double value, int digits) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return value;
+        }
+        double scale = Math.pow(10, digits);
+        return Math.floor(Math.abs(value) * scale + 0.5) / scale * Math.signum(value);
+    }
+
+    @Override
+    public String toString() { return source; }
+
+    /**
+     * A section aggregate such as {@code sum(section: header_bar, column: "R")}: the numeric fields under the header
+     * (number inputs and derived fields), only those labelled with the column if one is given.
+     */
+    public static final class Aggregate {
+        public static final int SUM = 0;
+        public static final int COUNT = 1;
+        public static final int AVG = 2; // Blank fields count as 0, as in the rest of the formula
+        private static final String[] NAMES = {"sum", "count", "avg"};
+
+        private final int function;
+        private final String sectionId;
+        private final String column; // Display label to match (ignoring case), or null for every numeric field
+
+        Aggregate(int function, String sectionId, String column) {
+            if (function < SUM || function > AVG || sectionId == null) {
+                throw new IllegalArgumentException("Invalid aggregate");
+            }
+            this.function = function;
+            this.sectionId = sectionId;
+            this.column = column;
+        }
+
+        public int getFunction() { return function; }
+        public String getSectionId() { return sectionId; }
+        public String getColumn() { return column; }
+
+        // Ids of the fields the aggregate covers, in template order
+        public List<String> resolve(List<TemplateField> fields) {
+            List<String> ids = new ArrayList<>();
+            for (TemplateField field : fields) {
+                if (field.getType() == TemplateField.TYPE_SECTION_FIELD
+                        && sectionId.equals(field.getParentSectionId())
+                        && (column == null || (field.getDisplayLabel() != null && column.equalsIgnoreCase(field.getDisplayLabel().trim())))
+                        && (field.isCalculated() || field.isMtd() || "number".equals(field.getInputType()) || "numberDecimal".equals(field.getInputType()))) {
+                    ids.add(field.getInternalId());
+                }
+            }
+            return ids;
+        }
+
+        @Override
+        public String toString() {
+            return NAMES[function] + "(section: " + sectionId + (column != null ? ", column: \"" + column + "\")" : ")");
+        }
+    }
+
+    // Recursive-descent parser emitting postfix code:
+    //   expr    := term (('+' | '-') term)*
+    //   term    := unary (('*' | '/') unary)*
+    //   unary   := ('-' | '+') unary | primary
+    //   primary := number | '{' id '}' | aggname '(' arg (',' arg)* ')' | name '(' expr (',' expr)* ')' | '(' expr ')'
+    //   arg     := ('section' | 'column') ':' (word | '"' text '"')
+    private static final class Compiler {
+        private final String source;
+        private int pos = 0;
+
+        private int[] code = new int[16];
+        private int codeLength = 0;
+        private final List<Double> constants = new ArrayList<>();
+        private final List<String> fieldRefs = new ArrayList<>();
+        private final List<Aggregate> aggregates = new ArrayList<>();
+        private int depth = 0;
+        private int maxDepth = 0;
+
+        Compiler(String source) {
+            this.source = source;
+        }
+
+        Formula compile() {
+            parseExpression();
+            skipWhitespace();
+            if (pos < source.length()) {
+                throw error("Unexpected '" + source.charAt(pos) + "'");
+            }
+            double[] constantArray = new double[constants.size()];
+            for (int i = 0; i < constantArray.length; i++) {
+                constantArray[i] = constants.get(i);
+            }
+            return new Formula(source, Arrays.copyOf(code, codeLength), constantArray, fieldRefs, aggregates, maxDepth);
+        }
+
+        private void parseExpression() {
+            parseTerm();
+            while (true) {
+                if (accept('+')) {
+                    parseTerm();
+                    emit(OP_ADD, -1);
+                } else if (accept('-')) {
+                    parseTerm();
+                    emit(OP_SUB, -1);
+                } else {
+                    return;
+                }
+            }
+        }
+
+        private void parseTerm() {
+            parseUnary();
+            while (true) {
+                if (accept('*')) {
+                    parseUnary();
+                    emit(OP_MUL, -1);
+                } else if (accept('/')) {
+                    parseUnary();
+                    emit(OP_DIV, -1);
+                } else {
+                    return;
+                }
+            }
+        }
+
+        private void parseUnary() {
+            if (accept('-')) {
+                parseUnary();
+                emit(OP_NEG, 0);
+            } else if (accept('+')) {
+                parseUnary();
+            } else {
+                parsePrimary();
+            }
+        }
+
+        private void parsePrimary() {
+            skipWhitespace();
+            if (pos >= source.length()) {
+                throw error("Unexpected end of formula");
+            }
+            char c = source.charAt(pos);
+            if (c == '(') {
+                pos++;
+                parseExpression();
+                expect(')');
+            } else if (c == '{') {
+                int end = source.indexOf('}', pos);
+                if (end == -1) {
+                    throw error("Unclosed field reference");
+                }
+                String fieldId = source.substring(pos + 1, end).trim();
+                if (fieldId.isEmpty()) {
+                    throw error("Empty field reference");
+                }
+                pos = end + 1;
+                int ref = fieldRefs.indexOf(fieldId);
+                if (ref == -1) {
+                    ref = fieldRefs.size();
+                    fieldRefs.add(fieldId);
+                }
+                emit(OP_LOAD, 1);
+                emitOperand(ref);
+            } else if (Character.isDigit(c) || c == '.') {
+                int start = pos;
+                while (pos < source.length() && (Character.isDigit(source.charAt(pos)) || source.charAt(pos) == '.')) {
+                    pos++;
+                }
+                double value;
+                try {
+                    value = Double.parseDouble(source.substring(start, pos));
+                } catch (NumberFormatException e) {
+                    pos = start;
+                    throw error("Invalid number");
+                }
+                constants.add(value);
+                emit(OP_PUSH, 1);
+                emitOperand(constants.size() - 1);
+            } else if (Character.isLetter(c)) {
+                int start = pos;
+                while (pos < source.length() && Character.isLetterOrDigit(source.charAt(pos))) {
+                    pos++;
+                }
+                String name = source.substring(start, pos).toLowerCase(Locale.ROOT);
+                int function = Arrays.asList(Aggregate.NAMES).indexOf(name);
+                if (function != -1) {
+                    parseAggregate(function, start);
+                } else {
+                    parseFunction(name, start);
+                }
+            } else {
+                throw error("Unexpected '" + c + "'");
+            }
+        }
+
+        private void parseFunction(String name, int namePos) {
+            expect('(');
+            int argc = 1;
+            parseExpression();
+            while (accept(',')) {
+                parseExpression();
+                argc++;
+            }
+            expect(')');
+
+            switch (name) {
+                case "abs":
+                    requireArgs(name, namePos, argc, 1, 1);
+                    emit(OP_ABS, 0);
+                    break;
+                case "round":
+                    requireArgs(name, namePos, argc, 1, 2);
+                    emit(OP_ROUND, 1 - argc);
+                    emitOperand(argc);
+                    break;
+                case "min":
+                    requireArgs(name, namePos, argc, 1, Integer.MAX_VALUE);
+                    emit(OP_MIN, 1 - argc);
+                    emitOperand(argc);
+                    break;
+                case "max":
+                    requireArgs(name, namePos, argc, 1, Integer.MAX_VALUE);
+                    emit(OP_MAX, 1 - argc);
+                    emitOperand(argc);
+                    break;
+                default:
+                    pos = namePos;
+                    throw error("Unknown function '" + name + "'");
+            }
+        }
+
+        private void parseAggregate(int function, int namePos) {
+            expect('(');
+            String sectionId = null;
+            String column = null;
+            do {
+                skipWhitespace();
+                int argPos = pos;
+                while (pos < source.length() && Character.isLetter(source.charAt(pos))) {
+                    pos++;
+                }
+                String argName = source.substring(argPos, pos).toLowerCase(Locale.ROOT);
+                if (!argName.equals("section") && !argName.equals("column")) {
+                    pos = argPos;
+                    throw error("Expected 'section:' or 'column:'");
+                }
+                expect(':');
+                String value = parseArgumentValue();
+                if (argName.equals("section") ? sectionId != null : column != null) {
+                    pos = argPos;
+                    throw error("Duplicate '" + argName + "'");
+                }
+                if (argName.equals("section")) {
+                    sectionId = value;
+                } else {
+                    column = value;
+                }
+            } while (accept(','));
+            expect(')');
+            if (sectionId == null) {
+                pos = namePos;
+                throw error(Aggregate.NAMES[function] + "() needs a section");
+            }
+
+            aggregates.add(new Aggregate(function, sectionId, column));
+            emit(OP_AGGREGATE, 1);
+            emitOperand(aggregates.size() - 1);
+        }
+
+        // A quoted string, or a bare word ending at whitespace, ',' or ')'
+        private String parseArgumentValue() {
+            skipWhitespace();
+            int start = pos;
+            String value;
+            if (pos < source.length() && source.charAt(pos) == '"') {
+                int end = source.indexOf('"', pos + 1);
+                if (end == -1) {
+                    throw error("Unclosed string");
+                }
+                value = source.substring(pos + 1, end).trim();
+                pos = end + 1;
+            } else {
+                while (pos < source.length() && !Character.isWhitespace(source.charAt(pos))
+                        && source.charAt(pos) != ',' && source.charAt(pos) != ')') {
+                    pos++;
+                }
+                value = source.substring(start, pos);
+            }
+            if (value.isEmpty()) {
+                pos = start;
+                throw error("Expected a value");
+            }
+            return value;
+        }
+
+        private void requireArgs(String name, int namePos, int argc, int min, int max) {
+            if (argc < min || argc > max) {
+                pos = namePos;
+                throw error("Wrong number of arguments for " + name + "()");
+            }
+        }
+
+        // Appends an opcode; stackEffect is the net change in operand stack depth
+        private void emit(int opcode, int stackEffect) {
+            emitOperand(opcode);
+            depth += stackEffect;
+            maxDepth = Math.max(maxDepth, depth);
+        }
+
+        private void emitOperand(int value) {
+            if (codeLength == code.length) {
+                code = Arrays.copyOf(code, codeLength * 2);
+            }
+            code[codeLength++] = value;
+        }
+
+        private boolean accept(char c) {
+            skipWhitespace();
+            if (pos < source.length() && source.charAt(pos) == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(char c) {
+            if (!accept(c)) {
+                throw error("Expected '" + c + "'");
+            }
+        }
+
+        private void skipWhitespace() {
+            while (pos < source.length() && Character.isWhitespace(source.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at position " + pos + " in formula: " + source);
+        }
+    }
+}
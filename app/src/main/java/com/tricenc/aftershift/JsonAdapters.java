@@ -0,0 +1,319 @@
+package com.tricenc.aftershift;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The one Gson instance used for templates, the template index and report data.
+ * Every persisted type has a hand-written streaming adapter, so nothing is read or written through reflection:
+ * no per-call reflective field access, and R8 can rename or strip these classes without breaking saved JSON.
+ * JSON property names are part of the file format and must not change.
+ */
+public final class JsonAdapters {
+    // Report payload: field internalId -> value
+    public static final Type REPORT_VALUES_TYPE = TypeToken.getParameterized(Map.class, String.class, String.class).getType();
+
+    private static final Gson GSON = new GsonBuilder()
+            .registerTypeAdapter(ReportTemplate.class, new ReportTemplateAdapter().nullSafe())
+            .registerTypeAdapter(TemplateField.class, new TemplateFieldAdapter().nullSafe())
+            .registerTypeAdapter(TemplateInfo.class, new TemplateInfoAdapter().nullSafe())
+            .registerTypeAdapter(REPORT_VALUES_TYPE, new ReportValuesAdapter().nullSafe())
+            .create();
+
+    private JsonAdapters() {}
+
+    public static Gson gson() {
+        return GSON;
+    }
+
+    // --- Report values ---
+
+    private static class ReportValuesAdapter extends TypeAdapter<Map<String, String>> {
+        @Override
+        public void write(JsonWriter out, Map<String, String> values) throws IOException {
+            out.beginObject();
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                out.name(entry.getKey()).value(entry.getValue());
+            }
+            out.endObject();
+        }
+
+        @Override
+        public Map<String, String> read(JsonReader in) throws IOException {
+            Map<String, String> values = new LinkedHashMap<>();
+            in.beginObject();
+            while (in.hasNext()) {
+                values.put(in.nextName(), readString(in));
+            }
+            in.endObject();
+            return values;
+        }
+    }
+
+    // --- Templates ---
+
+    private static class ReportTemplateAdapter extends TypeAdapter<ReportTemplate> {
+        private final TemplateFieldAdapter fieldAdapter = new TemplateFieldAdapter();
+
+        @Override
+        public void write(JsonWriter out, ReportTemplate template) throws IOException {
+            out.beginObject();
+            writeString(out, "templateId", template.getTemplateId());
+            writeString(out, "name", template.getName());
+            writeString(out, "description", template.getDescription());
+            if (template.getFields() != null) {
+                out.name("fields").beginArray();
+                for (TemplateField field : template.getFields()) {
+                    fieldAdapter.write(out, field);
+                }
+                out.endArray();
+            }
+            writeString(out, "reportFormat", template.getReportFormat());
+            writeString(out, "previewFormat", template.getPreviewFormat());
+            if (template.getDecimalScale() != TemplateField.NO_DECIMAL_SCALE) {
+                out.name("decimalScale").value(template.getDecimalScale());
+            }
+            writeString(out, "rounding", template.getRounding());
+            if (template.getCollapsibleFields() != null) {
+                out.name("collapsibleFields").beginArray();
+                for (String fieldId : template.getCollapsibleFields()) {
+                    out.value(fieldId);
+                }
+                out.endArray();
+            }
+            out.endObject();
+        }
+
+        @Override
+        public ReportTemplate read(JsonReader in) throws IOException {
+            String templateId = null;
+            String name = null;
+            String description = null;
+            List<TemplateField> fields = null;
+            String reportFormat = null;
+            String previewFormat = null;
+            int decimalScale = TemplateField.NO_DECIMAL_SCALE;
+            String rounding = null;
+            List<String> collapsibleFields = null;
+
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "templateId": templateId = readString(in); break;
+                    case "name": name = readString(in); break;
+                    case "description": description = readString(in); break;
+                    case "reportFormat": reportFormat = readString(in); break;
+                    case "previewFormat": previewFormat = readString(in); break;
+                    case "decimalScale": decimalScale = readInt(in, TemplateField.NO_DECIMAL_SCALE); break;
+                    case "rounding": rounding = readString(in); break;
+                    case "collapsibleFields":
+                        if (in.peek() == JsonToken.NULL) {
+                            in.nextNull();
+                            break;
+                        }
+                        collapsibleFields = new ArrayList<>();
+                        in.beginArray();
+                        while (in.hasNext()) {
+                            String fieldId = readString(in);
+                            if (fieldId != null) {
+                                collapsibleFields.add(fieldId);
+                            }
+                        }
+                        in.endArray();
+                        break;
+                    case "fields":
+                        if (in.peek() == JsonToken.NULL) {
+                            in.nextNull();
+                            break;
+                        }
+                        fields = new ArrayList<>();
+                        in.beginArray();
+                        while (in.hasNext()) {
+                            if (in.peek() == JsonToken.NULL) {
+                                in.nextNull();
+                            } else {
+                                fields.add(fieldAdapter.read(in));
+                            }
+                        }
+                        in.endArray();
+                        break;
+                    default: in.skipValue(); break;
+                }
+            }
+            in.endObject();
+            return new ReportTemplate(templateId, name, description, fields, reportFormat, previewFormat, decimalScale, rounding,
+                    collapsibleFields);
+        }
+    }
+
+    private static class TemplateFieldAdapter extends TypeAdapter<TemplateField> {
+        @Override
+        public void write(JsonWriter out, TemplateField field) throws IOException {
+            out.beginObject();
+            out.name("type").value(field.getType());
+            writeString(out, "internalId", field.getInternalId());
+            writeString(out, "displayLabel", field.getDisplayLabel());
+            writeString(out, "defaultValue", field.getDefaultValue());
+            writeString(out, "inputType", field.getInputType());
+            out.name("editable").value(field.isEditable());
+            out.name("isCustom").value(field.isCustom());
+            writeString(out, "parentSectionId", field.getParentSectionId());
+            writeString(out, "calculationFormula", field.getCalculationFormula());
+            writeString(out, "mtdSourceField", field.getMtdSourceField());
+            if (field.isMtd()) {
+                writeString(out, "mtdResetPeriod", field.getMtdResetPeriod());
+            }
+            if (field.getDecimalScale() != TemplateField.NO_DECIMAL_SCALE) {
+                out.name("decimalScale").value(field.getDecimalScale());
+            }
+            writeString(out, "rounding", field.getRounding());
+            out.endObject();
+        }
+
+        @Override
+        public TemplateField read(JsonReader in) throws IOException {
+            int type = TemplateField.TYPE_FIELD;
+            String internalId = null;
+            String displayLabel = null;
+            String defaultValue = null;
+            String inputType = null;
+            boolean editable = false;
+            boolean isCustom = false;
+            String parentSectionId = null;
+            String calculationFormula = null;
+            String mtdSourceField = null;
+            String mtdResetPeriod = null;
+            int decimalScale = TemplateField.NO_DECIMAL_SCALE;
+            String rounding = null;
+
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "type": type = readInt(in, TemplateField.TYPE_FIELD); break;
+                    case "internalId": internalId = readString(in); break;
+                    case "displayLabel": displayLabel = readString(in); break;
+                    case "defaultValue": defaultValue = readString(in); break;
+                    case "inputType": inputType = readString(in); break;
+                    case "editable": editable = readBoolean(in); break;
+                    case "isCustom": isCustom = readBoolean(in); break;
+                    case "parentSectionId": parentSectionId = readString(in); break;
+                    case "calculationFormula": calculationFormula = readString(in); break;
+                    case "mtdSourceField": mtdSourceField = readString(in); break;
+                    case "mtdResetPeriod": mtdResetPeriod = readString(in); break;
+                    case "decimalScale": decimalScale = readInt(in, TemplateField.NO_DECIMAL_SCALE); break;
+                    case "rounding": rounding = readString(in); break;
+                    default: in.skipValue(); break;
+                }
+            }
+            in.endObject();
+            return new TemplateField(type, internalId, displayLabel, defaultValue, inputType, editable, isCustom,
+                    parentSectionId, calculationFormula, mtdSourceField, mtdResetPeriod, decimalScale, rounding);
+        }
+    }
+
+    private static class TemplateInfoAdapter extends TypeAdapter<TemplateInfo> {
+        @Override
+        public void write(JsonWriter out, TemplateInfo info) throws IOException {
+            out.beginObject();
+            writeString(out, "templateId", info.getTemplateId());
+            writeString(out, "name", info.getName());
+            writeString(out, "description", info.getDescription());
+            out.name("fieldCount").value(info.getFieldCount());
+            writeString(out, "fileName", info.getFileName());
+            writeString(out, "fileHash", info.getFileHash());
+            out.name("fileLength").value(info.getFileLength());
+            out.name("fileLastModified").value(info.getFileLastModified());
+            out.endObject();
+        }
+
+        @Override
+        public TemplateInfo read(JsonReader in) throws IOException {
+            String templateId = null;
+            String name = null;
+            String description = null;
+            int fieldCount = 0;
+            String fileName = null;
+            String fileHash = null;
+            long fileLength = -1;
+            long fileLastModified = -1;
+
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "templateId": templateId = readString(in); break;
+                    case "name": name = readString(in); break;
+                    case "description": description = readString(in); break;
+                    case "fieldCount": fieldCount = readInt(in, 0); break;
+                    case "fileName": fileName = readString(in); break;
+                    case "fileHash": fileHash = readString(in); break;
+                    case "fileLength": fileLength = readLong(in, -1); break;
+                    case "fileLastModified": fileLastModified = readLong(in, -1); break;
+                    default: in.skipValue(); break;
+                }
+            }
+            in.endObject();
+            return new TemplateInfo(templateId, name, description, fieldCount, fileName, fileHash, fileLength, fileLastModified);
+        }
+    }
+
+    // --- Helpers. Reads are as lenient as Gson's reflective adapters: numbers and booleans may be quoted. ---
+
+    // Omits null values, like Gson's default (serializeNulls off)
+    private static void writeString(JsonWriter out, String name, String value) throws IOException {
+        if (value != null) {
+            out.name(name).value(value);
+        }
+    }
+
+    private static String readString(JsonReader in) throws IOException {
+        JsonToken token = in.peek();
+        if (token == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        if (token == JsonToken.BOOLEAN) {
+            return Boolean.toString(in.nextBoolean());
+        }
+        return in.nextString(); // Also accepts numbers
+    }
+
+    private static boolean readBoolean(JsonReader in) throws IOException {
+        JsonToken token = in.peek();
+        if (token == JsonToken.NULL) {
+            in.nextNull();
+            return false;
+        }
+        if (token == JsonToken.STRING) {
+            return Boolean.parseBoolean(in.nextString());
+        }
+        return in.nextBoolean();
+    }
+
+    private static int readInt(JsonReader in, int defaultValue) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return defaultValue;
+        }
+        return in.nextInt(); // Also accepts quoted numbers
+    }
+
+    private static long readLong(JsonReader in, long defaultValue) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return defaultValue;
+        }
+        return in.nextLong();
+    }
+}
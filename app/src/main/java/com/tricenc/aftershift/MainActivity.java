@@ -2,15 +2,22 @@ package com.tricenc.aftershift;
 
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.provider.OpenableColumns;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.Log;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.ArrayAdapter;
+import android.widget.EditText;
 import android.widget.ImageButton;
 import android.widget.ListView; // NEW
 import android.widget.PopupMenu;
@@ -37,6 +44,7 @@ import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.Future;
 
 public class MainActivity extends AppCompatActivity implements SavedReportsAdapter.OnReportInteractionListener {
 
@@ -49,9 +57,35 @@ public class MainActivity extends AppCompatActivity implements SavedReportsAdapt
     private TextView toolbarTitle; // For the custom app title
     private ImageButton menuButton; // NEW: Menu button for custom header
     private List<SavedReport> savedReports;
-    private ReportDatabase reportDatabase;
+    private ReportRepository reportRepository;
     private TemplateManager templateManager; // NEW
 
+    // Saved reports are loaded a page at a time as the user scrolls
+    private static final int PAGE_SIZE = 50;
+    private static final int PREFETCH_DISTANCE = 10; // Load the next page when this close to the end of the list
+    private boolean isLoadingPage = false;
+    private boolean hasMorePages = false;
+    private int listGeneration = 0; // Bumped on every full reload so late page results are dropped
+    private int totalReportCount = 0;
+
+    // Search as you type: debounced, and any search still running is cancelled when a newer one starts
+    private static final int SEARCH_RESULT_LIMIT = 100;
+    private static final long SEARCH_DEBOUNCE_MS = 150;
+    private EditText searchEditText;
+    private String currentQuery = "";
+    private Future<?> pendingSearch;
+    private final Handler searchHandler = new Handler(Looper.getMainLooper());
+    private final Runnable searchRunnable = this::runSearch;
+    private final Runnable midnightRefresh = this::refreshDateLabels;
+    // Relative date labels ("Today", "Yesterday", ...) go stale when the clock or time zone changes
+    private final BroadcastReceiver clockChangeReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            savedReportsAdapter.onClockChanged();
+            refreshDateLabels();
+        }
+    };
+
     // ActivityResultLauncher for picking a file (for importing templates)
     private final ActivityResultLauncher<Intent> pickFileLauncher = registerForActivityResult(
             new ActivityResultContracts.StartActivityForResult(),
@@ -79,6 +113,17 @@ public class MainActivity extends AppCompatActivity implements SavedReportsAdapt
         loadSavedReports();
         setupClickListeners();
         setupMenuButton(); // NEW: Setup menu button
+        setupSearch();
+
+        // Parse the imported templates once the first frame is drawn, so opening a report doesn't have to
+        getWindow().getDecorView().post(templateManager::warmUpInBackground);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        searchHandler.removeCallbacks(searchRunnable);
+        cancelPendingSearch();
     }
 
     @Override
@@ -88,6 +133,27 @@ public class MainActivity extends AppCompatActivity implements SavedReportsAdapt
         applyTheme();
         updateGreeting(); // Refresh greeting as time might change
         loadSavedReports(); // Refresh the list when returning from report generator
+
+        IntentFilter clockChanges = new IntentFilter(Intent.ACTION_TIMEZONE_CHANGED);
+        clockChanges.addAction(Intent.ACTION_TIME_CHANGED);
+        clockChanges.addAction(Intent.ACTION_DATE_CHANGED);
+        registerReceiver(clockChangeReceiver, clockChanges);
+        refreshDateLabels(); // The day may have changed while the app was in the background
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        unregisterReceiver(clockChangeReceiver);
+        searchHandler.removeCallbacks(midnightRefresh);
+    }
+
+    // Rebinds the rows if their date labels are stale, and schedules the same check for the next local midnight
+    private void refreshDateLabels() {
+        savedReportsAdapter.refreshDateLabels();
+        searchHandler.removeCallbacks(midnightRefresh);
+        long delay = savedReportsAdapter.getNextMidnightMillis() - System.currentTimeMillis();
+        searchHandler.postDelayed(midnightRefresh, Math.max(0, delay) + 1000); // Just after, so the new day has begun
     }
 
     // NEW: Apply theme from preferences
@@ -104,29 +170,132 @@ public class MainActivity extends AppCompatActivity implements SavedReportsAdapt
         reportCountText = findViewById(R.id.reportCountText);
         toolbarTitle = findViewById(R.id.toolbarTitle);
         menuButton = findViewById(R.id.menuButton); // NEW: Initialize menu button
+        searchEditText = findViewById(R.id.searchEditText);
 
         // Set the app title in the custom header
         toolbarTitle.setText(getString(R.string.app_name_main_title));
 
         savedReports = new ArrayList<>();
-        reportDatabase = new ReportDatabase(this);
+        reportRepository = ReportRepository.getInstance(this);
     }
 
     private void setupRecyclerView() {
-        savedReportsRecyclerView.setLayoutManager(new LinearLayoutManager(this));
-        savedReportsAdapter = new SavedReportsAdapter(this, savedReports, this);
+        LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        savedReportsRecyclerView.setLayoutManager(layoutManager);
+        savedReportsAdapter = new SavedReportsAdapter(this, this);
         savedReportsRecyclerView.setAdapter(savedReportsAdapter);
+        savedReportsRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                if (dy > 0 && layoutManager.findLastVisibleItemPosition() >= savedReports.size() - PREFETCH_DISTANCE) {
+                    loadNextPage();
+                }
+            }
+        });
     }
 
+    // Reloads from the top, keeping as many rows as are currently shown so returning to the list doesn't lose the scroll depth.
     private void loadSavedReports() {
-        savedReports.clear();
-        savedReports.addAll(reportDatabase.getAllReports());
-        savedReportsAdapter.notifyDataSetChanged();
+        if (!currentQuery.isEmpty()) {
+            runSearch(); // Refresh the search results instead of the full list
+            return;
+        }
+        final int generation = ++listGeneration;
+        final int limit = Math.max(PAGE_SIZE, savedReports.size());
+        isLoadingPage = true;
+        reportRepository.getReportSummaries(null, limit, ReportRepository.callback(reports -> {
+            if (isDestroyed() || generation != listGeneration) return;
+            savedReports.clear();
+            savedReports.addAll(reports);
+            hasMorePages = reports.size() == limit;
+            isLoadingPage = false;
+            savedReportsAdapter.submitList(savedReports);
+            updateListState();
+        }, error -> {
+            if (isDestroyed() || generation != listGeneration) return;
+            isLoadingPage = false;
+            Toast.makeText(this, "Failed to load saved reports.", Toast.LENGTH_SHORT).show();
+        }));
+        reportRepository.getReportCount(count -> {
+            if (isDestroyed() || generation != listGeneration) return;
+            totalReportCount = count;
+            updateReportCount();
+        }); // A failure keeps the previous count; the list load above reports it
+    }
+
+    private void loadNextPage() {
+        if (isLoadingPage || !hasMorePages || savedReports.isEmpty()) return;
+        final int generation = listGeneration;
+        isLoadingPage = true;
+        SavedReport last = savedReports.get(savedReports.size() - 1);
+        reportRepository.getReportSummaries(last, PAGE_SIZE, ReportRepository.callback(reports -> {
+            if (isDestroyed() || generation != listGeneration) return;
+            savedReports.addAll(reports);
+            hasMorePages = reports.size() == PAGE_SIZE;
+            isLoadingPage = false;
+            savedReportsAdapter.submitList(savedReports); // Diffs as an insertion at the end
+        }, error -> {
+            if (isDestroyed() || generation != listGeneration) return;
+            isLoadingPage = false; // Scrolling to the end again retries
+            Toast.makeText(this, "Failed to load more reports.", Toast.LENGTH_SHORT).show();
+        }));
+    }
+
+    private void setupSearch() {
+        searchEditText.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {}
+            @Override
+            public void afterTextChanged(Editable s) {
+                String query = s.toString().trim();
+                if (query.equals(currentQuery)) return;
+                currentQuery = query;
+                searchHandler.removeCallbacks(searchRunnable);
+                if (query.isEmpty()) {
+                    cancelPendingSearch();
+                    loadSavedReports(); // Back to the full list
+                } else {
+                    searchHandler.postDelayed(searchRunnable, SEARCH_DEBOUNCE_MS);
+                }
+            }
+        });
+    }
+
+    private void runSearch() {
+        cancelPendingSearch();
+        final int generation = ++listGeneration; // Also drops any page load still in flight
+        hasMorePages = false; // Search results are a single ranked page
+        pendingSearch = reportRepository.searchReports(currentQuery, SEARCH_RESULT_LIMIT, ReportRepository.callback(results -> {
+            if (isDestroyed() || generation != listGeneration) return;
+            pendingSearch = null;
+            savedReports.clear();
+            savedReports.addAll(results);
+            savedReportsAdapter.submitList(savedReports);
+            updateListState();
+        }, error -> {
+            if (isDestroyed() || generation != listGeneration) return;
+            pendingSearch = null;
+            Toast.makeText(this, "Search failed.", Toast.LENGTH_SHORT).show();
+        }));
+    }
 
+    private void cancelPendingSearch() {
+        if (pendingSearch != null) {
+            pendingSearch.cancel(true);
+            pendingSearch = null;
+        }
+    }
+
+    private void updateListState() {
         updateReportCount();
 
         // Show/hide empty state
         if (savedReports.isEmpty()) {
+            emptyStateText.setText(currentQuery.isEmpty()
+                    ? "No reports yet\nTap + to create your first report"
+                    : "No reports match \"" + currentQuery + "\"");
             emptyStateText.setVisibility(View.VISIBLE);
             savedReportsRecyclerView.setVisibility(View.GONE);
         } else {
@@ -150,7 +319,7 @@ public class MainActivity extends AppCompatActivity implements SavedReportsAdapt
     }
 
     private void updateReportCount() {
-        reportCountText.setText(getString(R.string.report_count_format, savedReports.size()));
+        reportCountText.setText(getString(R.string.report_count_format, totalReportCount));
     }
 
 
@@ -163,6 +332,7 @@ public class MainActivity extends AppCompatActivity implements SavedReportsAdapt
         startActivity(intent);
     }
 
+    // List rows are summaries only; the generator fetches the full report data by id when it opens.
     @Override
     public void onReportClick(SavedReport report) {
         Intent intent = new Intent(this, ReportGeneratorActivity.class);
@@ -173,11 +343,17 @@ public class MainActivity extends AppCompatActivity implements SavedReportsAdapt
 
     @Override
     public void onReportDelete(SavedReport report) {
-        reportDatabase.deleteReport(report.getId());
-        savedReports.remove(report);
-        savedReportsAdapter.notifyDataSetChanged();
-        loadSavedReports(); // Update empty state and report count
-        Toast.makeText(this, "Report deleted", Toast.LENGTH_SHORT).show();
+        reportRepository.deleteReport(report.getId(), ReportRepository.callback(ignored -> {
+            if (isDestroyed()) return;
+            savedReports.remove(report);
+            totalReportCount = Math.max(0, totalReportCount - 1);
+            savedReportsAdapter.submitList(savedReports);
+            updateListState(); // Update empty state and report count
+            Toast.makeText(this, "Report deleted", Toast.LENGTH_SHORT).show();
+        }, error -> {
+            if (isDestroyed()) return;
+            Toast.makeText(this, "Failed to delete report.", Toast.LENGTH_SHORT).show();
+        }));
     }
 
     // NEW: Setup the custom menu button
@@ -266,7 +442,8 @@ public class MainActivity extends AppCompatActivity implements SavedReportsAdapt
 
     // NEW: Dialog for setting default template (with long-click delete)
     private void showSetDefaultTemplateDialog() {
-        List<ReportTemplate> templates = templateManager.getAvailableTemplates();
+        // Names only; no template is parsed. Copied because the registry's list is unmodifiable and is sorted below.
+        List<TemplateInfo> templates = new ArrayList<>(templateManager.getTemplateInfos());
         List<String> templateDisplayNames = new ArrayList<>();
 
         // Sort templates alphabetically by name, but put default first
@@ -276,7 +453,7 @@ public class MainActivity extends AppCompatActivity implements SavedReportsAdapt
             return t1.getName().compareToIgnoreCase(t2.getName());
         });
 
-        for (ReportTemplate t : templates) {
+        for (TemplateInfo t : templates) {
             templateDisplayNames.add(t.getName() + (t.getTemplateId().equals(templateManager.getCurrentTemplateId()) ? " (✅)" : ""));
         }
 
@@ -288,7 +465,7 @@ public class MainActivity extends AppCompatActivity implements SavedReportsAdapt
                 android.R.layout.simple_list_item_1, templateDisplayNames);
         builder.setAdapter(adapter, (dialog, which) -> {
             // Regular click: Set as default
-            ReportTemplate selectedTemplate = templates.get(which);
+            TemplateInfo selectedTemplate = templates.get(which);
             templateManager.saveCurrentTemplateId(selectedTemplate.getTemplateId()); // Save as default
             Toast.makeText(this, "'" + selectedTemplate.getName() + "' set as default for new reports.", Toast.LENGTH_SHORT).show();
             dialog.dismiss();
@@ -300,7 +477,7 @@ public class MainActivity extends AppCompatActivity implements SavedReportsAdapt
         dialog.show(); // Show the dialog first
         ListView listView = dialog.getListView();
         listView.setOnItemLongClickListener((parent, view, position, id) -> {
-            ReportTemplate longClickedTemplate = templates.get(position);
+            TemplateInfo longClickedTemplate = templates.get(position);
             if (longClickedTemplate.getTemplateId().equals(TemplateManager.DEFAULT_TEMPLATE_ID)) {
                 Toast.makeText(this, "Cannot delete the built-in default template.", Toast.LENGTH_SHORT).show();
                 return true; // Consume the long click
@@ -310,19 +487,26 @@ public class MainActivity extends AppCompatActivity implements SavedReportsAdapt
                     .setTitle("Delete Template")
                     .setMessage("Are you sure you want to delete template '" + longClickedTemplate.getName() + "'?")
                     .setPositiveButton("Delete", (deleteDialog, whichBtn) -> {
-                        if (reportDatabase.hasReportsUsingTemplate(longClickedTemplate.getTemplateId())) {
-                            Toast.makeText(this, "Cannot delete template: Reports are currently using it.", Toast.LENGTH_LONG).show();
-                        } else {
-                            try {
-                                templateManager.deleteTemplate(longClickedTemplate.getTemplateId());
-                                Toast.makeText(this, "'" + longClickedTemplate.getName() + "' deleted.", Toast.LENGTH_SHORT).show();
-                                dialog.dismiss(); // Dismiss the template selection dialog
-                                showSetDefaultTemplateDialog(); // Re-open to refresh the list
-                            } catch (IOException | IllegalArgumentException e) {
-                                Toast.makeText(this, "Error deleting template: " + e.getMessage(), Toast.LENGTH_LONG).show();
-                                Log.e("MainActivity", "Error deleting template", e);
+                        reportRepository.hasReportsUsingTemplate(longClickedTemplate.getTemplateId(), ReportRepository.callback(inUse -> {
+                            if (isDestroyed()) return;
+                            if (inUse) {
+                                Toast.makeText(this, "Cannot delete template: Reports are currently using it.", Toast.LENGTH_LONG).show();
+                            } else {
+                                try {
+                                    templateManager.deleteTemplate(longClickedTemplate.getTemplateId());
+                                    Toast.makeText(this, "'" + longClickedTemplate.getName() + "' deleted.", Toast.LENGTH_SHORT).show();
+                                    dialog.dismiss(); // Dismiss the template selection dialog
+                                    showSetDefaultTemplateDialog(); // Re-open to refresh the list
+                                } catch (IOException | IllegalArgumentException e) {
+                                    Toast.makeText(this, "Error deleting template: " + e.getMessage(), Toast.LENGTH_LONG).show();
+                                    Log.e("MainActivity", "Error deleting template", e);
+                                }
                             }
-                        }
+                        }, error -> {
+                            if (isDestroyed()) return;
+                            // Unknown whether reports use it, so it is not deleted
+                            Toast.makeText(this, "Error deleting template: " + error.getMessage(), Toast.LENGTH_LONG).show();
+                        }));
                     })
                     .setNegativeButton("Cancel", null)
                     .show();
@@ -413,11 +597,18 @@ public class MainActivity extends AppCompatActivity implements SavedReportsAdapt
         private String title;
         private String date; // Last Edited Date
         private String previewText;
-        private String reportData;
+        private String reportData; // null for list summaries (see ReportDatabase.getReportSummaries)
         private String templateId;
         private String createdDate; // NEW
-
-        public SavedReport(long id, String title, String date, String previewText, String reportData, String templateId, String createdDate) {
+        private long lastEditedMillis; // Epoch millis behind date, used for ordering and paging
+        private long createdMillis; // Epoch millis behind createdDate
+        private String searchSnippet; // Search results only: matching excerpt with ReportDatabase.SNIPPET_MATCH_* markers
+        // Display cache filled by SavedReportsAdapter: the date lines and the RelativeDateLabels generation they were made for
+        private String lastEditedLabel;
+        private String createdLabel;
+        private int labelGeneration = -1;
+
+        public SavedReport(long id, String title, String date, String previewText, String reportData, String templateId, String createdDate, long lastEditedMillis, long createdMillis) {
             this.id = id;
             this.title = title;
             this.date = date; // Last Edited Date
@@ -425,6 +616,12 @@ public class MainActivity extends AppCompatActivity implements SavedReportsAdapt
             this.reportData = reportData;
             this.templateId = templateId;
             this.createdDate = createdDate; // NEW
+            this.lastEditedMillis = lastEditedMillis;
+            this.createdMillis = createdMillis;
+        }
+
+        public SavedReport(long id, String title, String date, String previewText, String reportData, String templateId, String createdDate) {
+            this(id, title, date, previewText, reportData, templateId, createdDate, 0, 0);
         }
 
         // Existing constructor for compatibility (will be called by old ReportDatabase versions)
@@ -446,5 +643,17 @@ public class MainActivity extends AppCompatActivity implements SavedReportsAdapt
         public void setTemplateId(String templateId) { this.templateId = templateId; }
         public String getCreatedDate() { return createdDate; } // NEW
         public void setCreatedDate(String createdDate) { this.createdDate = createdDate; } // NEW
+        public long getLastEditedMillis() { return lastEditedMillis; }
+        public long getCreatedMillis() { return createdMillis; }
+        public String getSearchSnippet() { return searchSnippet; }
+        public void setSearchSnippet(String searchSnippet) { this.searchSnippet = searchSnippet; }
+        public String getLastEditedLabel() { return lastEditedLabel; }
+        public String getCreatedLabel() { return createdLabel; }
+        public int getLabelGeneration() { return labelGeneration; }
+        public void setDateLabels(String lastEditedLabel, String createdLabel, int generation) {
+            this.lastEditedLabel = lastEditedLabel;
+            this.createdLabel = createdLabel;
+            this.labelGeneration = generation;
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,234 @@
+package com.tricenc.aftershift;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Numeric field values as fixed-point longs: the value times 10^SCALE, so "12.5" is 125000.
+ * Fields parse their text once per edit; calculations read the long (or its double) instead of the string.
+ *
+ * Parsing and formatting are locale-independent. Either '.' or ',' is accepted as the decimal separator,
+ * because older versions formatted calculated values with the device locale; output always uses '.'.
+ *
+ * The arithmetic methods implement fixed-point ("money") formulas: addition and subtraction are exact, and
+ * multiplication, division and rounding round to SCALE places with the given mode. INVALID propagates, and
+ * overflow or division by zero gives INVALID. Nothing is allocated unless an intermediate product exceeds a long.
+ */
+public final class NumericValue {
+    public static final int SCALE = 4; // Decimal places kept
+    public static final long INVALID = Long.MIN_VALUE; // Text that is not a number
+    private static final long ONE = 10_000L; // 10^SCALE
+    private static final long MAX_UNSCALED = Long.MAX_VALUE / 10; // Larger inputs would overflow while parsing
+    private static final long MAX_EXACT_FACTOR = 3_037_000_499L; // floor(sqrt(Long.MAX_VALUE)): smaller factors cannot overflow
+    private static final long[] POWERS_OF_TEN = {1L, 10L, 100L, 1_000L, 10_000L, 100_000L, 1_000_000L, 10_000_000L,
+            100_000_000L, 1_000_000_000L, 10_000_000_000L, 100_000_000_000L, 1_000_000_000_000L, 10_000_000_000_000L,
+            100_000_000_000_000L, 1_000_000_000_000_000L, 10_000_000_000_000_000L, 100_000_000_000_000_000L,
+            1_000_000_000_000_000_000L};
+
+    // Rounding modes for fixed-point arithmetic
+    public static final int ROUND_HALF_UP = 0; // Ties away from zero (the default)
+    public static final int ROUND_HALF_EVEN = 1; // Ties to the even neighbour ("banker's rounding")
+    public static final int ROUND_DOWN = 2; // Towards zero (truncate)
+
+    private NumericValue() {}
+
+    /**
+     * Parses text such as "12", "-3.5", "0,25" or " .5 ". Blank text is 0 (empty fields count as 0 in calculations).
+     * Digits beyond SCALE are rounded half away from zero. Anything else, including grouping separators and
+     * exponents, is INVALID.
+     */
+    public static long parse(String text) {
+        if (text == null) {
+            return 0;
+        }
+        int start = 0;
+        int end = text.length();
+        while (start < end && Character.isWhitespace(text.charAt(start))) start++;
+        while (end > start && Character.isWhitespace(text.charAt(end - 1))) end--;
+        if (start == end) {
+            return 0;
+        }
+
+        boolean negative = false;
+        char first = text.charAt(start);
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            start++;
+        }
+        long unscaled = 0;
+        int digits = 0;
+        int fractionDigits = -1; // -1 until the decimal separator is seen
+        boolean roundUp = false;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c == '.' || c == ',') {
+                if (fractionDigits != -1) return INVALID;
+                fractionDigits = 0;
+            } else if (c >= '0' && c <= '9') {
+                digits++;
+                if (fractionDigits == -1 || fractionDigits < SCALE) {
+                    if (unscaled > MAX_UNSCALED / 10) return INVALID;
+                    unscaled = unscaled * 10 + (c - '0');
+                    if (fractionDigits != -1) fractionDigits++;
+                } else if (fractionDigits == SCALE) {
+                    roundUp = c >= '5'; // First dropped digit decides
+                    fractionDigits++;
+                }
+            } else {
+                return INVALID;
+            }
+        }
+        if (digits == 0) {
+            return INVALID;
+        }
+        int scaleDigits = fractionDigits == -1 ? 0 : Math.min(fractionDigits, SCALE);
+        long multiplier = POWERS_OF_TEN[SCALE - scaleDigits];
+        if (unscaled > MAX_UNSCALED / multiplier) {
+            return INVALID;
+        }
+        unscaled = unscaled * multiplier + (roundUp ? 1 : 0);
+        return negative ? -unscaled : unscaled;
+    }
+
+    // NaN for INVALID
+    public static double toDouble(long value) {
+        return value == INVALID ? Double.NaN : value / (double) ONE;
+    }
+
+    // INVALID for NaN, infinities and values too large to represent
+    public static long fromDouble(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value) || Math.abs(value) >= MAX_UNSCALED / (double) ONE) {
+            return INVALID;
+        }
+        return Math.round(value * ONE);
+    }
+
+    /**
+     * Formats with exactly {@code decimals} places (at most SCALE), rounding half away from zero,
+     * e.g. format(125000, 2) is "12.50". Never produces "-0.00".
+     */
+    public static String format(long value, int decimals) {
+        if (value == INVALID) {
+            throw new IllegalArgumentException("Cannot format an invalid value");
+        }
+        long divisor = POWERS_OF_TEN[SCALE - decimals];
+        long magnitude = Math.abs(value);
+        long rounded = magnitude / divisor;
+        if ((magnitude % divisor) * 2 >= divisor) {
+            rounded++;
+        }
+
+        long unit = POWERS_OF_TEN[decimals];
+        StringBuilder builder = new StringBuilder(24);
+        if (value < 0 && rounded != 0) {
+            builder.append('-');
+        }
+        builder.append(rounded / unit);
+        if (decimals > 0) {
+            builder.append('.');
+            String fraction = Long.toString(rounded % unit);
+            for (int i = fraction.length(); i < decimals; i++) {
+                builder.append('0');
+            }
+            builder.append(fraction);
+        }
+        return builder.toString();
+    }
+
+    // ROUND_* constant for a template's "rounding" name, or -1 if the name is unknown. Null means the default.
+    public static int parseRounding(String name) {
+        if (name == null || name.equals("half_up")) return ROUND_HALF_UP;
+        if (name.equals("half_even")) return ROUND_HALF_EVEN;
+        if (name.equals("down")) return ROUND_DOWN;
+        return -1;
+    }
+
+    public static long add(long a, long b) {
+        if (a == INVALID || b == INVALID) return INVALID;
+        long sum = a + b;
+        return ((a ^ sum) & (b ^ sum)) < 0 || sum == INVALID ? INVALID : sum;
+    }
+
+    public static long subtract(long a, long b) {
+        return b == INVALID ? INVALID : add(a, -b);
+    }
+
+    public static long negate(long a) {
+        return a == INVALID ? INVALID : -a;
+    }
+
+    public static long abs(long a) {
+        return a == INVALID ? INVALID : Math.abs(a);
+    }
+
+    public static long min(long a, long b) {
+        return a == INVALID || b == INVALID ? INVALID : Math.min(a, b);
+    }
+
+    public static long max(long a, long b) {
+        return a == INVALID || b == INVALID ? INVALID : Math.max(a, b);
+    }
+
+    public static long multiply(long a, long b, int rounding) {
+        if (a == INVALID || b == INVALID) return INVALID;
+        if (Math.abs(a) <= MAX_EXACT_FACTOR && Math.abs(b) <= MAX_EXACT_FACTOR) {
+            return divideRounded(a * b, ONE, rounding);
+        }
+        return exact(BigDecimal.valueOf(a).multiply(BigDecimal.valueOf(b)).divide(BigDecimal.valueOf(ONE), 0, roundingMode(rounding)));
+    }
+
+    public static long divide(long a, long b, int rounding) {
+        if (a == INVALID || b == INVALID || b == 0) return INVALID;
+        if (Math.abs(a) <= Long.MAX_VALUE / ONE) {
+            return divideRounded(a * ONE, b, rounding);
+        }
+        return exact(BigDecimal.valueOf(a).multiply(BigDecimal.valueOf(ONE)).divide(BigDecimal.valueOf(b), 0, roundingMode(rounding)));
+    }
+
+    // Rounds to the given number of decimal places (negative rounds to tens, hundreds, ...); the result keeps SCALE
+    public static long round(long a, int decimals, int rounding) {
+        if (a == INVALID || decimals >= SCALE) return a;
+        int exponent = SCALE - decimals;
+        if (exponent >= POWERS_OF_TEN.length) {
+            // The unit does not fit in a long: 0, unless the value rounds away from zero, which overflows
+            return exact(BigDecimal.valueOf(a).setScale(-exponent, roundingMode(rounding)));
+        }
+        long unit = POWERS_OF_TEN[exponent];
+        long rounded = divideRounded(a, unit, rounding);
+        return Math.abs(rounded) <= Long.MAX_VALUE / unit ? rounded * unit : INVALID;
+    }
+
+    // n / d rounded with the given mode; d must not be 0
+    private static long divideRounded(long n, long d, int rounding) {
+        long quotient = n / d;
+        long remainder = n % d;
+        if (remainder == 0 || rounding == ROUND_DOWN) {
+            return quotient;
+        }
+        long absRemainder = Math.abs(remainder);
+        long rest = Math.abs(d) - absRemainder; // Distance to the next multiple; avoids overflowing 2 * remainder
+        boolean awayFromZero = absRemainder > rest
+                || (absRemainder == rest && (rounding == ROUND_HALF_UP || (quotient & 1) != 0));
+        if (!awayFromZero) {
+            return quotient;
+        }
+        return (n < 0) != (d < 0) ? quotient - 1 : quotient + 1;
+    }
+
+    private static RoundingMode roundingMode(int rounding) {
+        switch (rounding) {
+            case ROUND_HALF_EVEN: return RoundingMode.HALF_EVEN;
+            case ROUND_DOWN: return RoundingMode.DOWN;
+            default: return RoundingMode.HALF_UP;
+        }
+    }
+
+    private static long exact(BigDecimal value) {
+        try {
+            long result = value.longValueExact();
+            return result == INVALID ? INVALID : result;
+        } catch (ArithmeticException e) {
+            return INVALID; // Does not fit in a long
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.tricenc.aftershift;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Relative labels for report timestamps: "Today 10:30", "Yesterday 10:30", "Wednesday 10:30" within the last
+ * week, otherwise "12/03/24 10:30". The formatters and the day boundaries they are compared with are shared.
+ *
+ * Callers cache the labels and recompute them when getGeneration() changes, which happens when the day
+ * boundaries move: at local midnight (noticed on the next call) and after onClockChanged().
+ * Not thread-safe; use from the main thread only.
+ */
+final class RelativeDateLabels {
+    private final SimpleDateFormat storedFormat = new SimpleDateFormat("dd/MM/yy HH:mm", Locale.getDefault()); // Text dates in the database
+    private final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm", Locale.getDefault());
+    private final SimpleDateFormat dayOfWeekTimeFormat = new SimpleDateFormat("EEEE HH:mm", Locale.getDefault());
+    private final SimpleDateFormat dateTimeFormat = new SimpleDateFormat("dd/MM/yy HH:mm", Locale.getDefault());
+    private final Date date = new Date(); // Reused for formatting
+
+    private long tomorrowStart;
+    private long todayStart;
+    private long yesterdayStart;
+    private long weekStart; // Start of the day seven days ago
+    private int generation;
+
+    RelativeDateLabels() {
+        computeDayBoundaries();
+    }
+
+    // Changes whenever previously returned labels may be stale
+    int getGeneration() {
+        if (System.currentTimeMillis() >= tomorrowStart) {
+            computeDayBoundaries();
+            generation++;
+        }
+        return generation;
+    }
+
+    // Call after the time zone or the clock was changed
+    void onClockChanged() {
+        TimeZone timeZone = TimeZone.getDefault();
+        storedFormat.setTimeZone(timeZone);
+        timeFormat.setTimeZone(timeZone);
+        dayOfWeekTimeFormat.setTimeZone(timeZone);
+        dateTimeFormat.setTimeZone(timeZone);
+        computeDayBoundaries();
+        generation++;
+    }
+
+    // Wall-clock time of the next local midnight
+    long getNextMidnightMillis() {
+        return tomorrowStart;
+    }
+
+    /**
+     * Label for an epoch-millis timestamp. Reports saved before timestamps were stored have 0; their
+     * display text ("dd/MM/yy HH:mm") is parsed instead, and returned unchanged if that fails.
+     */
+    String format(long millis, String storedText) {
+        if (millis <= 0) {
+            try {
+                Date parsed = storedText != null ? storedFormat.parse(storedText) : null;
+                if (parsed == null) return storedText;
+                millis = parsed.getTime();
+            } catch (ParseException e) {
+                return storedText;
+            }
+        }
+
+        date.setTime(millis);
+        if (millis >= todayStart && millis < tomorrowStart) {
+            return "Today " + timeFormat.format(date);
+        } else if (millis >= yesterdayStart && millis < todayStart) {
+            return "Yesterday " + timeFormat.format(date);
+        } else if (millis > weekStart) {
+            // Within the last 7 days (excluding today and yesterday, which are already handled)
+            return dayOfWeekTimeFormat.format(date); // e.g., "Wednesday 10:30"
+        } else {
+            return dateTimeFormat.format(date);
+        }
+    }
+
+    // Calendar arithmetic rather than 24h steps, so days around DST changes start at the right time
+    private void computeDayBoundaries() {
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        todayStart = calendar.getTimeInMillis();
+        calendar.add(Calendar.DAY_OF_YEAR, 1);
+        tomorrowStart = calendar.getTimeInMillis();
+        calendar.add(Calendar.DAY_OF_YEAR, -2);
+        yesterdayStart = calendar.getTimeInMillis();
+        calendar.add(Calendar.DAY_OF_YEAR, -6);
+        weekStart = calendar.getTimeInMillis();
+    }
+}
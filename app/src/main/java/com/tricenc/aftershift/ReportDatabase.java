@@ -3,17 +3,35 @@ package com.tricenc.aftershift;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.CancellationSignal;
 import android.util.Log; // NEW
 
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 public class ReportDatabase extends SQLiteOpenHelper {
 
     private static final String DATABASE_NAME = "shop_reports.db";
-    private static final int DATABASE_VERSION = 3; // NEW: Increment database version
+    private static final int DATABASE_VERSION = 8; // v8: report revision history
 
     private static final String TABLE_REPORTS = "reports";
     private static final String COLUMN_ID = "id";
@@ -23,9 +41,81 @@ public class ReportDatabase extends SQLiteOpenHelper {
     private static final String COLUMN_DATA = "data";
     private static final String COLUMN_TEMPLATE_ID = "template_id";
     private static final String COLUMN_CREATED_DATE = "created_date"; // NEW
+    // v4: sortable timestamps (epoch millis) backing the display-only text dates above
+    private static final String COLUMN_LAST_EDITED = "last_edited";
+    private static final String COLUMN_CREATED = "created";
+
+    // v5: one row per report field, so per-field questions across reports are answered by indexed SQL
+    private static final String TABLE_REPORT_VALUES = "report_values";
+    private static final String COLUMN_VALUE_REPORT_ID = "report_id";
+    private static final String COLUMN_VALUE_FIELD_ID = "field_id";
+    private static final String COLUMN_NUMERIC_VALUE = "numeric_value"; // NULL when the value isn't a number
+    private static final String COLUMN_TEXT_VALUE = "text_value";
+
+    // v7: for every numeric value of every report, the running total of that field over the template's reports up to
+    // and including this one, in (created, id) order, within the calendar month (period = yyyyMM) and within the year.
+    // Values and totals are NumericValue fixed-point longs, added exactly. Maintained incrementally on every write, so
+    // a month-to-date baseline is one indexed lookup of the previous report.
+    private static final String TABLE_RUNNING_TOTALS = "report_totals";
+    private static final String COLUMN_PERIOD = "period";
+    private static final String COLUMN_OWN_VALUE = "value"; // This report's value of the field
+    private static final String COLUMN_MONTH_TOTAL = "month_total";
+    private static final String COLUMN_YEAR_TOTAL = "year_total";
+
+    // v8: every save of a report as a revision. A revision stores only the fields that changed since the previous one
+    // (removed fields listed separately); every REVISION_SNAPSHOT_INTERVAL-th stores all values instead, so rebuilding
+    // any version reads at most that many rows while storage grows with the number of changed fields
+    private static final String TABLE_REVISIONS = "report_revisions";
+    private static final String COLUMN_REVISION = "revision"; // 1, 2, ... per report
+    private static final String COLUMN_SAVED = "saved"; // Epoch millis
+    private static final String COLUMN_SNAPSHOT = "snapshot"; // 1 if COLUMN_CHANGES holds every value
+    private static final String COLUMN_CHANGES = "changes"; // JSON field id -> value
+    private static final String COLUMN_REMOVED = "removed"; // JSON array of removed field ids, NULL if none
+    private static final String COLUMN_CHANGED_COUNT = "changed_count"; // Fields changed or removed by this save
+    private static final int REVISION_SNAPSHOT_INTERVAL = 16;
+
+    // v6: FTS4 index over title, preview and the report's free-text (non-numeric) values; docid = report id
+    private static final String TABLE_REPORTS_FTS = "reports_fts";
+    private static final String COLUMN_FTS_BODY = "body";
+    // Column weights for search ranking, in FTS column order (title, preview, body)
+    private static final double[] SEARCH_COLUMN_WEIGHTS = {3.0, 1.5, 1.0};
+    // Markers around matched terms in search snippets; see MainActivity.SavedReport.getSearchSnippet()
+    public static final char SNIPPET_MATCH_START = '\u0002';
+    public static final char SNIPPET_MATCH_END = '\u0003';
+
+    private static final Gson gson = JsonAdapters.gson();
+    private static final Type VALUES_MAP_TYPE = JsonAdapters.REPORT_VALUES_TYPE;
+
+    // Format of the text date columns, as written by ReportGeneratorActivity
+    private static final String TEXT_DATE_FORMAT = "dd/MM/yy HH:mm";
+
+    // Page cache size in KiB (negative value for PRAGMA cache_size means KiB rather than pages)
+    private static final int PAGE_CACHE_KIB = 4096;
 
-    public ReportDatabase(Context context) {
+    private static ReportDatabase instance;
+
+    // One process-wide helper so the SQLite connection (and its page cache) stays open between calls.
+    public static synchronized ReportDatabase getInstance(Context context) {
+        if (instance == null) {
+            instance = new ReportDatabase(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    // Package-private so tests can open the file afresh; the app goes through getInstance()
+    ReportDatabase(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        // Readers on the repository's reader pool no longer block behind the writer
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        db.execSQL("PRAGMA cache_size = -" + PAGE_CACHE_KIB);
+        // Safe with WAL: a crash can lose the last commit but never corrupts the database
+        db.execSQL("PRAGMA synchronous = NORMAL");
+        db.execSQL("PRAGMA temp_store = MEMORY");
     }
 
     @Override
@@ -37,22 +127,571 @@ public class ReportDatabase extends SQLiteOpenHelper {
                 COLUMN_PREVIEW + " TEXT, " +
                 COLUMN_DATA + " TEXT NOT NULL, " +
                 COLUMN_TEMPLATE_ID + " TEXT DEFAULT '" + TemplateManager.DEFAULT_TEMPLATE_ID + "', " +
-                COLUMN_CREATED_DATE + " TEXT NOT NULL DEFAULT '01/01/70 00:00')"; // NEW: Added created_date with default
+                COLUMN_CREATED_DATE + " TEXT NOT NULL DEFAULT '01/01/70 00:00', " + // NEW: Added created_date with default
+                COLUMN_LAST_EDITED + " INTEGER NOT NULL DEFAULT 0, " +
+                COLUMN_CREATED + " INTEGER NOT NULL DEFAULT 0)";
         db.execSQL(createTable);
+        createReportIndexes(db);
+        createReportValuesTable(db);
+        createSearchIndex(db);
+        createRunningTotalsTable(db);
+        createRevisionsTable(db);
     }
 
+    private void createRevisionsTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_REVISIONS + " (" +
+                COLUMN_VALUE_REPORT_ID + " INTEGER NOT NULL, " +
+                COLUMN_REVISION + " INTEGER NOT NULL, " +
+                COLUMN_SAVED + " INTEGER NOT NULL, " +
+                COLUMN_SNAPSHOT + " INTEGER NOT NULL, " +
+                COLUMN_CHANGES + " TEXT NOT NULL, " +
+                COLUMN_REMOVED + " TEXT, " +
+                COLUMN_CHANGED_COUNT + " INTEGER NOT NULL, " +
+                "PRIMARY KEY (" + COLUMN_VALUE_REPORT_ID + ", " + COLUMN_REVISION + "))");
+    }
+
+    private void createRunningTotalsTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_RUNNING_TOTALS + " (" +
+                COLUMN_VALUE_REPORT_ID + " INTEGER NOT NULL, " +
+                COLUMN_VALUE_FIELD_ID + " TEXT NOT NULL, " +
+                COLUMN_TEMPLATE_ID + " TEXT NOT NULL, " +
+                COLUMN_PERIOD + " INTEGER NOT NULL, " +
+                COLUMN_CREATED + " INTEGER NOT NULL, " +
+                COLUMN_OWN_VALUE + " INTEGER NOT NULL, " +
+                COLUMN_MONTH_TOTAL + " INTEGER NOT NULL, " +
+                COLUMN_YEAR_TOTAL + " INTEGER NOT NULL, " +
+                "PRIMARY KEY (" + COLUMN_VALUE_REPORT_ID + ", " + COLUMN_VALUE_FIELD_ID + "))");
+        // Previous report of a template and field (a backwards range scan that stops at the first row), and the later
+        // reports of a field whose totals shift when a value changes
+        db.execSQL("CREATE INDEX IF NOT EXISTS idx_report_totals_order ON " + TABLE_RUNNING_TOTALS + " (" + COLUMN_TEMPLATE_ID + ", " +
+                COLUMN_VALUE_FIELD_ID + ", " + COLUMN_PERIOD + ", " + COLUMN_CREATED + ", " + COLUMN_VALUE_REPORT_ID + ")");
+    }
+
+    private void createSearchIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS " + TABLE_REPORTS_FTS + " USING fts4(" +
+                COLUMN_TITLE + ", " + COLUMN_PREVIEW + ", " + COLUMN_FTS_BODY + ")");
+    }
+
+    private void createReportValuesTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_REPORT_VALUES + " (" +
+                COLUMN_VALUE_REPORT_ID + " INTEGER NOT NULL, " +
+                COLUMN_VALUE_FIELD_ID + " TEXT NOT NULL, " +
+                COLUMN_NUMERIC_VALUE + " REAL, " +
+                COLUMN_TEXT_VALUE + " TEXT, " +
+                "PRIMARY KEY (" + COLUMN_VALUE_REPORT_ID + ", " + COLUMN_VALUE_FIELD_ID + "))");
+        // Per-field aggregation: covers field_id lookups and reads the value without touching the table
+        db.execSQL("CREATE INDEX IF NOT EXISTS idx_report_values_field ON " + TABLE_REPORT_VALUES +
+                " (" + COLUMN_VALUE_FIELD_ID + ", " + COLUMN_VALUE_REPORT_ID + ", " + COLUMN_NUMERIC_VALUE + ")");
+    }
+
+    private void createReportIndexes(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS idx_reports_last_edited ON " + TABLE_REPORTS + " (" + COLUMN_LAST_EDITED + ")");
+        db.execSQL("CREATE INDEX IF NOT EXISTS idx_reports_created ON " + TABLE_REPORTS + " (" + COLUMN_CREATED + ")");
+        db.execSQL("CREATE INDEX IF NOT EXISTS idx_reports_template_id ON " + TABLE_REPORTS + " (" + COLUMN_TEMPLATE_ID + ")");
+    }
+
+    // Upgrades keep existing reports. onUpgrade already runs inside a transaction, so a failed step rolls back the whole upgrade.
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        Log.i("ReportDatabase", "Upgrading database from version " + oldVersion + " to " + newVersion);
         if (oldVersion < 3) {
-            // Simple upgrade strategy: drop and recreate.
-            // For production, you'd want to use ALTER TABLE to preserve data.
-            Log.w("ReportDatabase", "Upgrading database from version " + oldVersion + " to " + newVersion + ", which will destroy all old data");
-            db.execSQL("DROP TABLE IF EXISTS " + TABLE_REPORTS);
-            onCreate(db);
+            // Pre-v3 tables may lack the template and created-date columns
+            if (!hasColumn(db, TABLE_REPORTS, COLUMN_TEMPLATE_ID)) {
+                db.execSQL("ALTER TABLE " + TABLE_REPORTS + " ADD COLUMN " + COLUMN_TEMPLATE_ID +
+                        " TEXT DEFAULT '" + TemplateManager.DEFAULT_TEMPLATE_ID + "'");
+            }
+            if (!hasColumn(db, TABLE_REPORTS, COLUMN_CREATED_DATE)) {
+                db.execSQL("ALTER TABLE " + TABLE_REPORTS + " ADD COLUMN " + COLUMN_CREATED_DATE +
+                        " TEXT NOT NULL DEFAULT '01/01/70 00:00'");
+                db.execSQL("UPDATE " + TABLE_REPORTS + " SET " + COLUMN_CREATED_DATE + " = " + COLUMN_DATE);
+            }
+        }
+        if (oldVersion < 4) {
+            db.execSQL("ALTER TABLE " + TABLE_REPORTS + " ADD COLUMN " + COLUMN_LAST_EDITED + " INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE " + TABLE_REPORTS + " ADD COLUMN " + COLUMN_CREATED + " INTEGER NOT NULL DEFAULT 0");
+            backfillTimestamps(db);
+            createReportIndexes(db);
+        }
+        if (oldVersion < 5) {
+            createReportValuesTable(db);
+        }
+        if (oldVersion < 6) {
+            createSearchIndex(db);
+            backfillReportIndexes(db); // Fills report_values too when coming from before v5
+        }
+        if (oldVersion < 7) {
+            createRunningTotalsTable(db);
+            backfillRunningTotals(db);
+        }
+        if (oldVersion < 8) {
+            // Existing reports get their current values as a baseline snapshot when they are next saved (see writeRevision)
+            createRevisionsTable(db);
+        }
+    }
+
+    // Calendar month (local time) a timestamp falls in, as yyyyMM.
+    static int periodOf(long millis) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(millis);
+        return calendar.get(Calendar.YEAR) * 100 + calendar.get(Calendar.MONTH) + 1;
+    }
+
+    // First period (January) of the year a yyyyMM period falls in
+    private static int yearStartOf(int period) {
+        return (period / 100) * 100 + 1;
+    }
+
+    // Rows of reports ordered before (created, id); SQLite on API 21 has no row-value comparisons
+    private static final String BEFORE_REPORT = "(" + COLUMN_CREATED + " < ? OR (" + COLUMN_CREATED + " = ? AND " + COLUMN_VALUE_REPORT_ID + " < ?))";
+    private static final String AFTER_REPORT = "(" + COLUMN_CREATED + " > ? OR (" + COLUMN_CREATED + " = ? AND " + COLUMN_VALUE_REPORT_ID + " > ?))";
+
+    /**
+     * Month and year running totals of one field over the template's reports ordered before (created, id) in the
+     * period's year: {total within the period's month, total within its year} as NumericValue longs, zeros if there
+     * are none. One index lookup: the previous report's row already holds both totals.
+     */
+    private long[] readTotalsBefore(SQLiteDatabase db, String templateId, String fieldId, int period, long createdMillis, long reportId) {
+        String created = String.valueOf(createdMillis);
+        try (Cursor cursor = db.rawQuery("SELECT " + COLUMN_PERIOD + ", " + COLUMN_MONTH_TOTAL + ", " + COLUMN_YEAR_TOTAL +
+                " FROM " + TABLE_RUNNING_TOTALS + " WHERE " + COLUMN_TEMPLATE_ID + " = ? AND " + COLUMN_VALUE_FIELD_ID + " = ?" +
+                " AND " + COLUMN_PERIOD + " BETWEEN ? AND ? AND " + BEFORE_REPORT +
+                " ORDER BY " + COLUMN_PERIOD + " DESC, " + COLUMN_CREATED + " DESC, " + COLUMN_VALUE_REPORT_ID + " DESC LIMIT 1",
+                new String[]{templateId, fieldId, String.valueOf(yearStartOf(period)), String.valueOf(period), created, created, String.valueOf(reportId)})) {
+            if (cursor.moveToFirst()) {
+                return new long[]{cursor.getInt(0) == period ? cursor.getLong(1) : 0, cursor.getLong(2)};
+            }
+        }
+        return new long[]{0, 0};
+    }
+
+    /**
+     * Adds one report's numeric values to the running totals: its own rows continue the totals of the report before
+     * it, and the totals of the reports after it in the same year grow by its values. Reads the report's current
+     * report_values rows, so call after rewriting them. Must run inside the caller's transaction.
+     */
+    private void addRunningTotals(SQLiteDatabase db, long reportId, String templateId, long createdMillis) {
+        if (templateId == null) return;
+        Map<String, Long> ownValues = readNumericValues(db, reportId);
+        if (ownValues.isEmpty()) return;
+
+        int period = periodOf(createdMillis);
+        SQLiteStatement insert = compileTotalsInsert(db);
+        try {
+            for (Map.Entry<String, Long> own : ownValues.entrySet()) {
+                insertOwnTotals(db, insert, reportId, own.getKey(), own.getValue(), templateId, period, createdMillis);
+            }
+        } finally {
+            insert.close();
+        }
+        shiftLaterTotals(db, templateId, period, createdMillis, reportId, ownValues);
+    }
+
+    /**
+     * Brings the running totals in line with a report's rewritten report_values, touching only the fields whose
+     * value changed: their own rows are adjusted and the later reports of their field shift by the difference. A
+     * report that moved to another template is taken out of the old one's totals and added to the new one's.
+     * Must run inside the caller's transaction.
+     */
+    private void updateRunningTotals(SQLiteDatabase db, long reportId, String oldTemplateId, String templateId, long createdMillis) {
+        if (templateId == null || !templateId.equals(oldTemplateId)) {
+            removeRunningTotals(db, reportId);
+            addRunningTotals(db, reportId, templateId, createdMillis);
+            return;
+        }
+        Map<String, long[]> oldRows = readOwnTotals(db, reportId);
+        Map<String, Long> newValues = readNumericValues(db, reportId);
+        int period = periodOf(createdMillis);
+        String id = String.valueOf(reportId);
+        Map<String, Long> deltas = new HashMap<>();
+
+        SQLiteStatement insert = compileTotalsInsert(db);
+        SQLiteStatement update = db.compileStatement("UPDATE " + TABLE_RUNNING_TOTALS + " SET " + COLUMN_OWN_VALUE + " = ?, " +
+                COLUMN_MONTH_TOTAL + " = ?, " + COLUMN_YEAR_TOTAL + " = ? WHERE " + COLUMN_VALUE_REPORT_ID + " = ? AND " +
+                COLUMN_VALUE_FIELD_ID + " = ?");
+        try {
+            for (Map.Entry<String, Long> entry : newValues.entrySet()) {
+                long value = entry.getValue();
+                long[] old = oldRows.remove(entry.getKey()); // {value, month total, year total}
+                if (old == null) {
+                    insertOwnTotals(db, insert, reportId, entry.getKey(), value, templateId, period, createdMillis);
+                    deltas.put(entry.getKey(), value);
+                } else if (old[0] != value) {
+                    long delta = NumericValue.subtract(value, old[0]);
+                    update.bindLong(1, value);
+                    update.bindLong(2, NumericValue.add(old[1], delta));
+                    update.bindLong(3, NumericValue.add(old[2], delta));
+                    update.bindString(4, id);
+                    update.bindString(5, entry.getKey());
+                    update.executeUpdateDelete();
+                    deltas.put(entry.getKey(), delta);
+                }
+            }
+        } finally {
+            insert.close();
+            update.close();
+        }
+        for (Map.Entry<String, long[]> removed : oldRows.entrySet()) { // No longer numeric, or no longer in the report
+            db.delete(TABLE_RUNNING_TOTALS, COLUMN_VALUE_REPORT_ID + " = ? AND " + COLUMN_VALUE_FIELD_ID + " = ?",
+                    new String[]{id, removed.getKey()});
+            deltas.put(removed.getKey(), NumericValue.negate(removed.getValue()[0]));
+        }
+        shiftLaterTotals(db, templateId, period, createdMillis, reportId, deltas);
+    }
+
+    // Takes one report's values back out of the running totals. Must run inside the caller's transaction.
+    private void removeRunningTotals(SQLiteDatabase db, long reportId) {
+        String id = String.valueOf(reportId);
+        String templateId = null;
+        int period = 0;
+        long createdMillis = 0;
+        Map<String, Long> deltas = new HashMap<>();
+        try (Cursor cursor = db.query(TABLE_RUNNING_TOTALS, new String[]{COLUMN_TEMPLATE_ID, COLUMN_PERIOD, COLUMN_CREATED,
+                COLUMN_VALUE_FIELD_ID, COLUMN_OWN_VALUE}, COLUMN_VALUE_REPORT_ID + " = ?", new String[]{id}, null, null, null)) {
+            while (cursor.moveToNext()) {
+                templateId = cursor.getString(0);
+                period = cursor.getInt(1);
+                createdMillis = cursor.getLong(2);
+                deltas.put(cursor.getString(3), NumericValue.negate(cursor.getLong(4)));
+            }
+        }
+        if (deltas.isEmpty()) return; // No numeric values
+        shiftLaterTotals(db, templateId, period, createdMillis, reportId, deltas);
+        db.delete(TABLE_RUNNING_TOTALS, COLUMN_VALUE_REPORT_ID + " = ?", new String[]{id});
+    }
+
+    // Field id -> value of the report's numeric report_values rows, parsed from the text again: numeric_value is a
+    // double, the totals are exact
+    private static Map<String, Long> readNumericValues(SQLiteDatabase db, long reportId) {
+        Map<String, Long> values = new HashMap<>();
+        try (Cursor cursor = db.query(TABLE_REPORT_VALUES, new String[]{COLUMN_VALUE_FIELD_ID, COLUMN_TEXT_VALUE},
+                COLUMN_VALUE_REPORT_ID + " = ? AND " + COLUMN_NUMERIC_VALUE + " IS NOT NULL",
+                new String[]{String.valueOf(reportId)}, null, null, null)) {
+            while (cursor.moveToNext()) {
+                values.put(cursor.getString(0), NumericValue.parse(cursor.getString(1)));
+            }
+        }
+        return values;
+    }
+
+    // Field id -> {value, month total, year total} of the report's own running-total rows
+    private static Map<String, long[]> readOwnTotals(SQLiteDatabase db, long reportId) {
+        Map<String, long[]> rows = new HashMap<>();
+        try (Cursor cursor = db.query(TABLE_RUNNING_TOTALS, new String[]{COLUMN_VALUE_FIELD_ID, COLUMN_OWN_VALUE,
+                COLUMN_MONTH_TOTAL, COLUMN_YEAR_TOTAL}, COLUMN_VALUE_REPORT_ID + " = ?", new String[]{String.valueOf(reportId)},
+                null, null, null)) {
+            while (cursor.moveToNext()) {
+                rows.put(cursor.getString(0), new long[]{cursor.getLong(1), cursor.getLong(2), cursor.getLong(3)});
+            }
+        }
+        return rows;
+    }
+
+    private static SQLiteStatement compileTotalsInsert(SQLiteDatabase db) {
+        return db.compileStatement("INSERT INTO " + TABLE_RUNNING_TOTALS + " (" + COLUMN_VALUE_REPORT_ID + ", " +
+                COLUMN_VALUE_FIELD_ID + ", " + COLUMN_TEMPLATE_ID + ", " + COLUMN_PERIOD + ", " + COLUMN_CREATED + ", " +
+                COLUMN_OWN_VALUE + ", " + COLUMN_MONTH_TOTAL + ", " + COLUMN_YEAR_TOTAL + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+    }
+
+    // The report's own row for one field, continuing the totals of the report before it
+    private void insertOwnTotals(SQLiteDatabase db, SQLiteStatement insert, long reportId, String fieldId, long value,
+                                 String templateId, int period, long createdMillis) {
+        long[] before = readTotalsBefore(db, templateId, fieldId, period, createdMillis, reportId);
+        insert.bindLong(1, reportId);
+        insert.bindString(2, fieldId);
+        insert.bindString(3, templateId);
+        insert.bindLong(4, period);
+        insert.bindLong(5, createdMillis);
+        insert.bindLong(6, value);
+        insert.bindLong(7, NumericValue.add(before[0], value)); // INVALID on overflow, and stays so
+        insert.bindLong(8, NumericValue.add(before[1], value));
+        insert.executeInsert();
+    }
+
+    /**
+     * Adds each field's delta to the totals of the template's reports after this one in the same year. One range
+     * scan of idx_report_totals_order per field with a non-zero delta, so only that field's later rows are read.
+     */
+    private void shiftLaterTotals(SQLiteDatabase db, String templateId, int period, long createdMillis, long reportId,
+                                  Map<String, Long> deltas) {
+        String created = String.valueOf(createdMillis);
+        String[] args = {templateId, null, String.valueOf(period), String.valueOf(yearStartOf(period) + 11), created, created,
+                String.valueOf(reportId)};
+        List<Object[]> shifted = new ArrayList<>(); // Collected first; the rows are not updated under the open cursor
+        for (Map.Entry<String, Long> entry : deltas.entrySet()) {
+            long delta = entry.getValue();
+            if (delta == 0) continue;
+            args[1] = entry.getKey();
+            try (Cursor cursor = db.query(TABLE_RUNNING_TOTALS, new String[]{COLUMN_VALUE_REPORT_ID, COLUMN_PERIOD,
+                            COLUMN_MONTH_TOTAL, COLUMN_YEAR_TOTAL},
+                    COLUMN_TEMPLATE_ID + " = ? AND " + COLUMN_VALUE_FIELD_ID + " = ? AND " + COLUMN_PERIOD + " BETWEEN ? AND ? AND " + AFTER_REPORT,
+                    args, null, null, null)) {
+                while (cursor.moveToNext()) {
+                    long monthTotal = cursor.getInt(1) == period ? NumericValue.add(cursor.getLong(2), delta) : cursor.getLong(2);
+                    shifted.add(new Object[]{cursor.getLong(0), entry.getKey(), monthTotal, NumericValue.add(cursor.getLong(3), delta)});
+                }
+            }
+        }
+        if (shifted.isEmpty()) return;
+
+        SQLiteStatement update = db.compileStatement("UPDATE " + TABLE_RUNNING_TOTALS + " SET " + COLUMN_MONTH_TOTAL + " = ?, " +
+                COLUMN_YEAR_TOTAL + " = ? WHERE " + COLUMN_VALUE_REPORT_ID + " = ? AND " + COLUMN_VALUE_FIELD_ID + " = ?");
+        try {
+            for (Object[] row : shifted) {
+                update.bindLong(1, (Long) row[2]);
+                update.bindLong(2, (Long) row[3]);
+                update.bindLong(3, (Long) row[0]);
+                update.bindString(4, (String) row[1]);
+                update.executeUpdateDelete();
+            }
+        } finally {
+            update.close();
+        }
+    }
+
+    // Builds the running totals from scratch, report by report in (created, id) order so no later totals need shifting
+    private void backfillRunningTotals(SQLiteDatabase db) {
+        int rows = 0;
+        try (Cursor cursor = db.query(TABLE_REPORTS, new String[]{COLUMN_ID, COLUMN_TEMPLATE_ID, COLUMN_CREATED},
+                null, null, null, null, COLUMN_CREATED + ", " + COLUMN_ID)) {
+            while (cursor.moveToNext()) {
+                addRunningTotals(db, cursor.getLong(0), cursor.getString(1), cursor.getLong(2));
+                rows++;
+            }
+        }
+        Log.i("ReportDatabase", "Backfilled running totals for " + rows + " reports");
+    }
+
+    // Template id and created timestamp of an existing report, or null if it doesn't exist.
+    private Object[] readTotalsKey(SQLiteDatabase db, long reportId) {
+        try (Cursor cursor = db.query(TABLE_REPORTS, new String[]{COLUMN_TEMPLATE_ID, COLUMN_CREATED},
+                COLUMN_ID + " = ?", new String[]{String.valueOf(reportId)}, null, null, null)) {
+            if (cursor.moveToFirst()) {
+                return new Object[]{cursor.getString(0), cursor.getLong(1)};
+            }
+        }
+        return null;
+    }
+
+    // One-time rebuild of report_values and the search index from every report's row.
+    private void backfillReportIndexes(SQLiteDatabase db) {
+        int rows = 0;
+        try (Cursor cursor = db.query(TABLE_REPORTS, new String[]{COLUMN_ID, COLUMN_TITLE, COLUMN_PREVIEW, COLUMN_DATA},
+                null, null, null, null, null)) {
+            while (cursor.moveToNext()) {
+                long reportId = cursor.getLong(0);
+                writeReportIndexes(db, reportId, cursor.getString(1), cursor.getString(2), parseReportValues(reportId, cursor.getString(3)));
+                rows++;
+            }
+        }
+        Log.i("ReportDatabase", "Backfilled field values and search index for " + rows + " reports");
+    }
+
+    // Null if the report's data is unreadable
+    private static Map<String, String> parseReportValues(long reportId, String data) {
+        try {
+            return gson.fromJson(data, VALUES_MAP_TYPE);
+        } catch (JsonParseException e) {
+            Log.w("ReportDatabase", "Report " + reportId + " has unreadable data; no field values indexed", e);
+            return null;
+        }
+    }
+
+    // Replaces the normalized values and the search entry of one report. Must run inside the caller's transaction.
+    private void writeReportIndexes(SQLiteDatabase db, long reportId, String title, String preview, Map<String, String> values) {
+        String body = writeReportValues(db, reportId, values);
+
+        String[] idArg = new String[]{String.valueOf(reportId)};
+        db.delete(TABLE_REPORTS_FTS, "docid = ?", idArg);
+        ContentValues ftsValues = new ContentValues();
+        ftsValues.put("docid", reportId);
+        ftsValues.put(COLUMN_TITLE, title);
+        ftsValues.put(COLUMN_PREVIEW, preview);
+        ftsValues.put(COLUMN_FTS_BODY, body);
+        db.insert(TABLE_REPORTS_FTS, null, ftsValues);
+    }
+
+    // Rewrites report_values for one report and returns its free-text values joined for the search index.
+    private String writeReportValues(SQLiteDatabase db, long reportId, Map<String, String> values) {
+        db.delete(TABLE_REPORT_VALUES, COLUMN_VALUE_REPORT_ID + " = ?", new String[]{String.valueOf(reportId)});
+        if (values == null || values.isEmpty()) return "";
+
+        StringBuilder body = new StringBuilder();
+
+        SQLiteStatement insert = db.compileStatement("INSERT INTO " + TABLE_REPORT_VALUES + " (" +
+                COLUMN_VALUE_REPORT_ID + ", " + COLUMN_VALUE_FIELD_ID + ", " + COLUMN_NUMERIC_VALUE + ", " + COLUMN_TEXT_VALUE +
+                ") VALUES (?, ?, ?, ?)");
+        try {
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                String text = entry.getValue();
+                insert.bindLong(1, reportId);
+                insert.bindString(2, entry.getKey());
+                Double numeric = parseNumericValue(text);
+                if (numeric != null) {
+                    insert.bindDouble(3, numeric);
+                } else {
+                    insert.bindNull(3);
+                    if (text != null && !text.trim().isEmpty()) {
+                        body.append(text).append('\n');
+                    }
+                }
+                if (text != null) {
+                    insert.bindString(4, text);
+                } else {
+                    insert.bindNull(4);
+                }
+                insert.executeInsert();
+            }
+        } finally {
+            insert.close();
+        }
+        return body.toString();
+    }
+
+    /**
+     * Records a save of {@code values} as the report's next revision: the fields that differ from the previous version,
+     * or all of them if the revision is due for a snapshot. A save that changes no field adds no revision.
+     * Must run inside the caller's transaction, before report_values (the previous version) is rewritten.
+     */
+    private void writeRevision(SQLiteDatabase db, long reportId, Map<String, String> values) {
+        String id = String.valueOf(reportId);
+        int latest = 0;
+        int latestSnapshot = 0;
+        try (Cursor cursor = db.rawQuery("SELECT MAX(" + COLUMN_REVISION + "), MAX(CASE WHEN " + COLUMN_SNAPSHOT + " = 1 THEN " +
+                COLUMN_REVISION + " END) FROM " + TABLE_REVISIONS + " WHERE " + COLUMN_VALUE_REPORT_ID + " = ?", new String[]{id})) {
+            if (cursor.moveToFirst()) {
+                latest = cursor.getInt(0); // 0 for NULL: no revisions yet
+                latestSnapshot = cursor.getInt(1);
+            }
+        }
+
+        Map<String, String> previous = readCurrentValues(db, reportId);
+        if (latest == 0 && !previous.isEmpty()) {
+            // Saved before v8: keep the version about to be overwritten as the baseline
+            long lastEdited = 0;
+            try (Cursor cursor = db.query(TABLE_REPORTS, new String[]{COLUMN_LAST_EDITED}, COLUMN_ID + " = ?",
+                    new String[]{id}, null, null, null)) {
+                if (cursor.moveToFirst()) lastEdited = cursor.getLong(0);
+            }
+            insertRevision(db, reportId, 1, lastEdited, true, previous, null, previous.size());
+            latest = latestSnapshot = 1;
+        }
+
+        // Null values are not saved (see JsonAdapters), so they count as removed
+        Map<String, String> current = new LinkedHashMap<>();
+        Map<String, String> changes = new LinkedHashMap<>();
+        if (values != null) {
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                if (entry.getValue() == null) continue;
+                current.put(entry.getKey(), entry.getValue());
+                if (!entry.getValue().equals(previous.get(entry.getKey()))) {
+                    changes.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        List<String> removed = new ArrayList<>();
+        for (String fieldId : previous.keySet()) {
+            if (!current.containsKey(fieldId)) {
+                removed.add(fieldId);
+            }
+        }
+        if (latest > 0 && changes.isEmpty() && removed.isEmpty()) {
+            return;
+        }
+
+        int revision = latest + 1;
+        boolean snapshot = latestSnapshot == 0 || revision - latestSnapshot >= REVISION_SNAPSHOT_INTERVAL;
+        insertRevision(db, reportId, revision, System.currentTimeMillis(), snapshot,
+                snapshot ? current : changes, snapshot || removed.isEmpty() ? null : removed, changes.size() + removed.size());
+    }
+
+    private void insertRevision(SQLiteDatabase db, long reportId, int revision, long savedMillis, boolean snapshot,
+                                Map<String, String> changes, List<String> removed, int changedCount) {
+        ContentValues row = new ContentValues();
+        row.put(COLUMN_VALUE_REPORT_ID, reportId);
+        row.put(COLUMN_REVISION, revision);
+        row.put(COLUMN_SAVED, savedMillis);
+        row.put(COLUMN_SNAPSHOT, snapshot ? 1 : 0);
+        row.put(COLUMN_CHANGES, gson.toJson(changes, VALUES_MAP_TYPE));
+        if (removed != null) {
+            row.put(COLUMN_REMOVED, gson.toJson(removed.toArray(new String[0]), String[].class));
+        }
+        row.put(COLUMN_CHANGED_COUNT, changedCount);
+        db.insertOrThrow(TABLE_REVISIONS, null, row);
+    }
+
+    // The report's values as last saved, read from report_values; null values are left out
+    private Map<String, String> readCurrentValues(SQLiteDatabase db, long reportId) {
+        Map<String, String> values = new HashMap<>();
+        try (Cursor cursor = db.query(TABLE_REPORT_VALUES, new String[]{COLUMN_VALUE_FIELD_ID, COLUMN_TEXT_VALUE},
+                COLUMN_VALUE_REPORT_ID + " = ? AND " + COLUMN_TEXT_VALUE + " IS NOT NULL",
+                new String[]{String.valueOf(reportId)}, null, null, null)) {
+            while (cursor.moveToNext()) {
+                values.put(cursor.getString(0), cursor.getString(1));
+            }
         }
+        return values;
+    }
+
+    // Null for blank or non-numeric text. Parsed exactly like the report screen parses field values (see NumericValue).
+    static Double parseNumericValue(String text) {
+        if (text == null || text.trim().isEmpty()) return null;
+        long value = NumericValue.parse(text);
+        return value != NumericValue.INVALID ? NumericValue.toDouble(value) : null;
+    }
+
+    private boolean hasColumn(SQLiteDatabase db, String table, String column) {
+        try (Cursor cursor = db.rawQuery("PRAGMA table_info(" + table + ")", null)) {
+            int nameIndex = cursor.getColumnIndexOrThrow("name");
+            while (cursor.moveToNext()) {
+                if (column.equals(cursor.getString(nameIndex))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // Parses the legacy text dates once, so ordering and range queries never have to.
+    private void backfillTimestamps(SQLiteDatabase db) {
+        SimpleDateFormat format = new SimpleDateFormat(TEXT_DATE_FORMAT, Locale.getDefault());
+        SQLiteStatement update = db.compileStatement("UPDATE " + TABLE_REPORTS + " SET " +
+                COLUMN_LAST_EDITED + " = ?, " + COLUMN_CREATED + " = ? WHERE " + COLUMN_ID + " = ?");
+        int rows = 0;
+        try (Cursor cursor = db.query(TABLE_REPORTS, new String[]{COLUMN_ID, COLUMN_DATE, COLUMN_CREATED_DATE},
+                null, null, null, null, null)) {
+            while (cursor.moveToNext()) {
+                long lastEdited = parseTextDate(format, cursor.getString(1));
+                long created = parseTextDate(format, cursor.getString(2));
+                update.bindLong(1, lastEdited);
+                update.bindLong(2, created != 0 ? created : lastEdited);
+                update.bindLong(3, cursor.getLong(0));
+                update.executeUpdateDelete();
+                rows++;
+            }
+        } finally {
+            update.close();
+        }
+        Log.i("ReportDatabase", "Backfilled timestamps for " + rows + " reports");
+    }
+
+    // Returns 0 for missing or unparseable dates, which sorts them last.
+    private static long parseTextDate(SimpleDateFormat format, String text) {
+        if (text == null) return 0;
+        try {
+            Date date = format.parse(text);
+            return date != null ? date.getTime() : 0;
+        } catch (ParseException e) {
+            Log.w("ReportDatabase", "Unparseable report date: " + text);
+            return 0;
+        }
+    }
+
+    private static long parseTextDate(String text) {
+        return parseTextDate(new SimpleDateFormat(TEXT_DATE_FORMAT, Locale.getDefault()), text);
     }
 
     // NEW: Overload saveReport to include templateId and set createdDate
+    // Throws SQLException if the row cannot be written, so callers never mistake a failed insert for a save
     public long saveReport(String title, String date, String preview, String data, String templateId) {
         SQLiteDatabase db = this.getWritableDatabase();
         ContentValues values = new ContentValues();
@@ -62,10 +701,25 @@ public class ReportDatabase extends SQLiteOpenHelper {
         values.put(COLUMN_DATA, data);
         values.put(COLUMN_TEMPLATE_ID, templateId);
         values.put(COLUMN_CREATED_DATE, date); // NEW: Set created date on save
+        long timestamp = parseTextDate(date);
+        values.put(COLUMN_LAST_EDITED, timestamp);
+        values.put(COLUMN_CREATED, timestamp);
 
-        long id = db.insert(TABLE_REPORTS, null, values);
-        db.close();
-        return id;
+        db.beginTransaction();
+        try {
+            long id = db.insertOrThrow(TABLE_REPORTS, null, values);
+            if (id == -1) {
+                throw new SQLException("Failed to insert report " + title);
+            }
+            Map<String, String> fieldValues = parseReportValues(id, data);
+            writeRevision(db, id, fieldValues);
+            writeReportIndexes(db, id, title, preview, fieldValues);
+            addRunningTotals(db, id, templateId, timestamp);
+            db.setTransactionSuccessful();
+            return id;
+        } finally {
+            db.endTransaction();
+        }
     }
 
     // Existing saveReport (might be called from older code, but new code should use the overloaded one)
@@ -74,7 +728,8 @@ public class ReportDatabase extends SQLiteOpenHelper {
     }
 
     // NEW: Overload updateReport to include templateId
-    public void updateReport(long id, String title, String date, String preview, String data, String templateId) {
+    // Returns false if there is no report with this id, so nothing was written
+    public boolean updateReport(long id, String title, String date, String preview, String data, String templateId) {
         SQLiteDatabase db = this.getWritableDatabase();
         ContentValues values = new ContentValues();
         values.put(COLUMN_TITLE, title);
@@ -82,26 +737,50 @@ public class ReportDatabase extends SQLiteOpenHelper {
         values.put(COLUMN_PREVIEW, preview);
         values.put(COLUMN_DATA, data);
         values.put(COLUMN_TEMPLATE_ID, templateId);
+        values.put(COLUMN_LAST_EDITED, parseTextDate(date));
 
-        // NOTE: COLUMN_CREATED_DATE is NOT updated here.
+        // NOTE: COLUMN_CREATED_DATE / COLUMN_CREATED are NOT updated here.
 
-        db.update(TABLE_REPORTS, values, COLUMN_ID + " = ?", new String[]{String.valueOf(id)});
-        db.close();
+        db.beginTransaction();
+        try {
+            Object[] oldKey = readTotalsKey(db, id);
+            boolean updated = oldKey != null && db.update(TABLE_REPORTS, values, COLUMN_ID + " = ?", new String[]{String.valueOf(id)}) > 0;
+            if (updated) {
+                Map<String, String> fieldValues = parseReportValues(id, data);
+                writeRevision(db, id, fieldValues); // Before report_values, which still holds the previous version, is rewritten
+                writeReportIndexes(db, id, title, preview, fieldValues);
+                updateRunningTotals(db, id, (String) oldKey[0], templateId, (Long) oldKey[1]);
+            }
+            db.setTransactionSuccessful();
+            return updated;
+        } finally {
+            db.endTransaction();
+        }
     }
 
     // Existing updateReport
-    public void updateReport(long id, String title, String date, String preview, String data) {
+    public boolean updateReport(long id, String title, String date, String preview, String data) {
         // Retrieve existing report to get its templateId, or default if it's an old report.
         MainActivity.SavedReport existing = getReport(id);
         String templateId = (existing != null) ? existing.getTemplateId() : TemplateManager.DEFAULT_TEMPLATE_ID;
-        updateReport(id, title, date, preview, data, templateId);
+        return updateReport(id, title, date, preview, data, templateId);
     }
 
 
     public void deleteReport(long id) {
         SQLiteDatabase db = this.getWritableDatabase();
-        db.delete(TABLE_REPORTS, COLUMN_ID + " = ?", new String[]{String.valueOf(id)});
-        db.close();
+        String[] idArg = new String[]{String.valueOf(id)};
+        db.beginTransaction();
+        try {
+            removeRunningTotals(db, id);
+            db.delete(TABLE_REPORT_VALUES, COLUMN_VALUE_REPORT_ID + " = ?", idArg);
+            db.delete(TABLE_REVISIONS, COLUMN_VALUE_REPORT_ID + " = ?", idArg);
+            db.delete(TABLE_REPORTS_FTS, "docid = ?", idArg);
+            db.delete(TABLE_REPORTS, COLUMN_ID + " = ?", idArg);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
     }
 
     public MainActivity.SavedReport getReport(long id) {
@@ -135,60 +814,334 @@ public class ReportDatabase extends SQLiteOpenHelper {
                     cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_PREVIEW)),
                     cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_DATA)),
                     templateId,
-                    createdDate // NEW
+                    createdDate, // NEW
+                    cursor.getLong(cursor.getColumnIndexOrThrow(COLUMN_LAST_EDITED)),
+                    cursor.getLong(cursor.getColumnIndexOrThrow(COLUMN_CREATED))
             );
             cursor.close();
-            db.close();
             return report;
         }
 
         cursor.close();
-        db.close();
         return null;
     }
 
-    public List<MainActivity.SavedReport> getAllReports() {
+    // Everything the saved-reports list shows. COLUMN_DATA is deliberately left out: it is only needed when a report is opened.
+    private static final String[] SUMMARY_COLUMNS = {
+            COLUMN_ID, COLUMN_TITLE, COLUMN_DATE, COLUMN_PREVIEW, COLUMN_TEMPLATE_ID, COLUMN_CREATED_DATE,
+            COLUMN_LAST_EDITED, COLUMN_CREATED
+    };
+
+    /**
+     * Returns one page of report summaries, most recently edited first. Summaries carry no report data (getReportData() is null);
+     * use getReport(id) to fetch the full row.
+     * Paging is keyset-based: pass the last summary of the previous page as {@code after}, or null for the first page.
+     */
+    public List<MainActivity.SavedReport> getReportSummaries(MainActivity.SavedReport after, int limit) {
         List<MainActivity.SavedReport> reports = new ArrayList<>();
         SQLiteDatabase db = this.getReadableDatabase();
 
-        Cursor cursor = db.query(TABLE_REPORTS, null, null, null, null, null, COLUMN_DATE + " DESC");
+        String selection = null;
+        String[] selectionArgs = null;
+        if (after != null) {
+            String lastEdited = String.valueOf(after.getLastEditedMillis());
+            selection = COLUMN_LAST_EDITED + " < ? OR (" + COLUMN_LAST_EDITED + " = ? AND " + COLUMN_ID + " < ?)";
+            selectionArgs = new String[]{lastEdited, lastEdited, String.valueOf(after.getId())};
+        }
 
-        if (cursor.moveToFirst()) {
-            do {
-                String templateId;
-                int templateIdIndex = cursor.getColumnIndex(COLUMN_TEMPLATE_ID);
-                if (templateIdIndex != -1) {
-                    templateId = cursor.getString(templateIdIndex);
-                } else {
-                    // Handle old reports that don't have a template_id column yet
-                    templateId = TemplateManager.DEFAULT_TEMPLATE_ID;
+        Cursor cursor = db.query(TABLE_REPORTS, SUMMARY_COLUMNS, selection, selectionArgs, null, null,
+                COLUMN_LAST_EDITED + " DESC, " + COLUMN_ID + " DESC", String.valueOf(limit));
+        try {
+            if (cursor.moveToFirst()) {
+                int idIndex = cursor.getColumnIndexOrThrow(COLUMN_ID);
+                int titleIndex = cursor.getColumnIndexOrThrow(COLUMN_TITLE);
+                int dateIndex = cursor.getColumnIndexOrThrow(COLUMN_DATE);
+                int previewIndex = cursor.getColumnIndexOrThrow(COLUMN_PREVIEW);
+                int templateIdIndex = cursor.getColumnIndexOrThrow(COLUMN_TEMPLATE_ID);
+                int createdDateIndex = cursor.getColumnIndexOrThrow(COLUMN_CREATED_DATE);
+                int lastEditedIndex = cursor.getColumnIndexOrThrow(COLUMN_LAST_EDITED);
+                int createdIndex = cursor.getColumnIndexOrThrow(COLUMN_CREATED);
+                do {
+                    reports.add(new MainActivity.SavedReport(
+                            cursor.getLong(idIndex),
+                            cursor.getString(titleIndex),
+                            cursor.getString(dateIndex), // Last Edited Date
+                            cursor.getString(previewIndex),
+                            null, // Report data is not loaded for list summaries
+                            cursor.getString(templateIdIndex),
+                            cursor.getString(createdDateIndex),
+                            cursor.getLong(lastEditedIndex),
+                            cursor.getLong(createdIndex)
+                    ));
+                } while (cursor.moveToNext());
+            }
+        } finally {
+            cursor.close();
+        }
+        return reports;
+    }
+
+    public int getReportCount() {
+        return (int) DatabaseUtils.queryNumEntries(getReadableDatabase(), TABLE_REPORTS);
+    }
+
+    /**
+     * Full-text search over titles, previews and free-text field values.
+     * Every word typed is matched as a prefix; results are ranked by weighted hit frequency (title hits count most).
+     * Each result is a summary whose getSearchSnippet() holds the best matching excerpt with matches
+     * wrapped in SNIPPET_MATCH_START/SNIPPET_MATCH_END.
+     * Ranking reads only matchinfo for every match; summaries and snippets are built for the top {@code limit} alone,
+     * since a short prefix can match most reports.
+     *
+     * @throws android.os.OperationCanceledException if {@code cancellationSignal} is cancelled while the query runs
+     */
+    public List<MainActivity.SavedReport> searchReports(String query, int limit, CancellationSignal cancellationSignal) {
+        List<MainActivity.SavedReport> ranked = new ArrayList<>();
+        String matchExpression = buildMatchExpression(query);
+        if (matchExpression.isEmpty() || limit <= 0) return ranked;
+
+        // Pass 1: score every match; last_edited breaks ties
+        SQLiteDatabase db = this.getReadableDatabase();
+        String rankSql = "SELECT f.docid, f.info, r." + COLUMN_LAST_EDITED + " FROM (SELECT docid, " +
+                "matchinfo(" + TABLE_REPORTS_FTS + ", 'pcx') AS info " +
+                "FROM " + TABLE_REPORTS_FTS + " WHERE " + TABLE_REPORTS_FTS + " MATCH ?) f " +
+                "JOIN " + TABLE_REPORTS + " r ON r." + COLUMN_ID + " = f.docid";
+        List<double[]> scores = new ArrayList<>(); // {score, index into matches}
+        List<long[]> matches = new ArrayList<>(); // {report id, last edited}
+        try (Cursor cursor = db.rawQuery(rankSql, new String[]{matchExpression}, cancellationSignal)) {
+            while (cursor.moveToNext()) {
+                cancellationSignal.throwIfCanceled();
+                scores.add(new double[]{rankMatch(cursor.getBlob(1)), matches.size()});
+                matches.add(new long[]{cursor.getLong(0), cursor.getLong(2)});
+            }
+        }
+        if (matches.isEmpty()) return ranked;
+
+        // Highest score first; ties go to the most recently edited report
+        scores.sort((a, b) -> {
+            int byScore = Double.compare(b[0], a[0]);
+            if (byScore != 0) return byScore;
+            return Long.compare(matches.get((int) b[1])[1], matches.get((int) a[1])[1]);
+        });
+        int count = Math.min(limit, scores.size());
+        List<Long> topIds = new ArrayList<>(count);
+        String[] args = new String[count + 1];
+        args[0] = matchExpression;
+        StringBuilder placeholders = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            long id = matches.get((int) scores.get(i)[1])[0];
+            topIds.add(id);
+            args[i + 1] = Long.toString(id);
+            placeholders.append(i == 0 ? "?" : ", ?");
+        }
+
+        // Pass 2: summaries and snippets of the top matches only. snippet() needs the MATCH; the docid filter is
+        // applied before it is computed
+        String summarySql = "SELECT r." + COLUMN_ID + ", r." + COLUMN_TITLE + ", r." + COLUMN_DATE + ", r." + COLUMN_PREVIEW + ", r." +
+                COLUMN_TEMPLATE_ID + ", r." + COLUMN_CREATED_DATE + ", r." + COLUMN_LAST_EDITED + ", r." + COLUMN_CREATED + ", " +
+                "snippet(" + TABLE_REPORTS_FTS + ", '" + SNIPPET_MATCH_START + "', '" + SNIPPET_MATCH_END + "', '…', -1, 12) " +
+                "FROM " + TABLE_REPORTS_FTS + " JOIN " + TABLE_REPORTS + " r ON r." + COLUMN_ID + " = " + TABLE_REPORTS_FTS + ".docid " +
+                "WHERE " + TABLE_REPORTS_FTS + " MATCH ? AND " + TABLE_REPORTS_FTS + ".docid IN (" + placeholders + ")";
+        Map<Long, MainActivity.SavedReport> summaries = new HashMap<>();
+        try (Cursor cursor = db.rawQuery(summarySql, args, cancellationSignal)) {
+            while (cursor.moveToNext()) {
+                MainActivity.SavedReport report = new MainActivity.SavedReport(
+                        cursor.getLong(0), cursor.getString(1), cursor.getString(2), cursor.getString(3),
+                        null, cursor.getString(4), cursor.getString(5), cursor.getLong(6), cursor.getLong(7));
+                report.setSearchSnippet(cursor.getString(8));
+                summaries.put(report.getId(), report);
+            }
+        }
+        for (Long id : topIds) {
+            MainActivity.SavedReport report = summaries.get(id);
+            if (report != null) ranked.add(report); // Null only if deleted between the two passes
+        }
+        return ranked;
+    }
+
+    // Turns free user input into an FTS expression: every word becomes a prefix term, all of which must match.
+    private static String buildMatchExpression(String query) {
+        StringBuilder expression = new StringBuilder();
+        for (String word : query.split("[^\\p{L}\\p{N}]+")) {
+            if (word.isEmpty()) continue;
+            if (expression.length() > 0) expression.append(' ');
+            expression.append(word).append('*');
+        }
+        return expression.toString();
+    }
+
+    /**
+     * Scores one row from matchinfo 'pcx': for every phrase and column, the hits in this row relative to the
+     * hits across all rows (rarer terms weigh more), times the column weight.
+     */
+    private static double rankMatch(byte[] matchInfo) {
+        ByteBuffer buffer = ByteBuffer.wrap(matchInfo).order(ByteOrder.nativeOrder());
+        int phraseCount = buffer.getInt(0);
+        int columnCount = buffer.getInt(4);
+        double score = 0;
+        for (int phrase = 0; phrase < phraseCount; phrase++) {
+            for (int column = 0; column < columnCount; column++) {
+                int base = 8 + 12 * (phrase * columnCount + column);
+                int hitsThisRow = buffer.getInt(base);
+                int hitsAllRows = buffer.getInt(base + 4);
+                if (hitsThisRow > 0 && column < SEARCH_COLUMN_WEIGHTS.length) {
+                    score += SEARCH_COLUMN_WEIGHTS[column] * hitsThisRow / hitsAllRows;
                 }
+            }
+        }
+        return score;
+    }
+
+    /**
+     * Month-to-date baselines for a report: for each MTD field, the total of its source field over the reports of the
+     * same template that come before this one, ordered by (created, id), in the field's reset period. Reports created
+     * later in the period are not counted, so reopening an older report shows the MTD it had on its day.
+     * The MTD value is then baseline + the current value of the source field. Each lookup is one index read.
+     *
+     * @param reportId      the report being edited, or -1 for a new report (which comes after every saved one)
+     * @param createdMillis when the report was created; selects the period and its place in it
+     * @return MTD field id -> baseline as a NumericValue long (INVALID if the total overflowed)
+     */
+    public Map<String, Long> getMtdBaselines(String templateId, long reportId, long createdMillis, List<TemplateField> mtdFields) {
+        Map<String, Long> baselines = new HashMap<>();
+        SQLiteDatabase db = this.getReadableDatabase();
+        int period = periodOf(createdMillis);
+        long orderId = reportId != -1 ? reportId : Long.MAX_VALUE;
+
+        for (TemplateField field : mtdFields) {
+            long[] before = readTotalsBefore(db, templateId, field.getMtdSourceField(), period, createdMillis, orderId);
+            boolean yearly = TemplateField.MTD_RESET_YEAR.equals(field.getMtdResetPeriod());
+            baselines.put(field.getInternalId(), yearly ? before[1] : before[0]);
+        }
+        return baselines;
+    }
 
-                String createdDate;
-                int createdDateIndex = cursor.getColumnIndex(COLUMN_CREATED_DATE);
-                if (createdDateIndex != -1) {
-                    createdDate = cursor.getString(createdDateIndex);
+    /**
+     * Count, total, average, min and max of a numeric field across reports created in [fromMillis, toMillis).
+     * Non-numeric and empty values are ignored.
+     */
+    public FieldStats getFieldStats(String fieldId, long fromMillis, long toMillis) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        String sql = "SELECT COUNT(v." + COLUMN_NUMERIC_VALUE + "), TOTAL(v." + COLUMN_NUMERIC_VALUE + "), " +
+                "AVG(v." + COLUMN_NUMERIC_VALUE + "), MIN(v." + COLUMN_NUMERIC_VALUE + "), MAX(v." + COLUMN_NUMERIC_VALUE + ")" +
+                " FROM " + TABLE_REPORT_VALUES + " v JOIN " + TABLE_REPORTS + " r ON r." + COLUMN_ID + " = v." + COLUMN_VALUE_REPORT_ID +
+                " WHERE v." + COLUMN_VALUE_FIELD_ID + " = ? AND r." + COLUMN_CREATED + " >= ? AND r." + COLUMN_CREATED + " < ?";
+        try (Cursor cursor = db.rawQuery(sql, new String[]{fieldId, String.valueOf(fromMillis), String.valueOf(toMillis)})) {
+            if (cursor.moveToFirst() && cursor.getInt(0) > 0) {
+                return new FieldStats(cursor.getInt(0), cursor.getDouble(1), cursor.getDouble(2), cursor.getDouble(3), cursor.getDouble(4));
+            }
+        }
+        return new FieldStats(0, 0, 0, 0, 0);
+    }
+
+    /**
+     * Numeric values of one field per report, oldest first, for reports created in [fromMillis, toMillis).
+     * Each entry is {createdMillis, value}.
+     */
+    public List<double[]> getFieldTrend(String fieldId, long fromMillis, long toMillis) {
+        List<double[]> points = new ArrayList<>();
+        SQLiteDatabase db = this.getReadableDatabase();
+        String sql = "SELECT r." + COLUMN_CREATED + ", v." + COLUMN_NUMERIC_VALUE +
+                " FROM " + TABLE_REPORT_VALUES + " v JOIN " + TABLE_REPORTS + " r ON r." + COLUMN_ID + " = v." + COLUMN_VALUE_REPORT_ID +
+                " WHERE v." + COLUMN_VALUE_FIELD_ID + " = ? AND v." + COLUMN_NUMERIC_VALUE + " IS NOT NULL" +
+                " AND r." + COLUMN_CREATED + " >= ? AND r." + COLUMN_CREATED + " < ?" +
+                " ORDER BY r." + COLUMN_CREATED;
+        try (Cursor cursor = db.rawQuery(sql, new String[]{fieldId, String.valueOf(fromMillis), String.valueOf(toMillis)})) {
+            while (cursor.moveToNext()) {
+                points.add(new double[]{cursor.getLong(0), cursor.getDouble(1)});
+            }
+        }
+        return points;
+    }
+
+    // The report's revisions, newest first. Reports saved before v8 have none until their next save.
+    public List<Revision> getRevisions(long reportId) {
+        List<Revision> revisions = new ArrayList<>();
+        SQLiteDatabase db = this.getReadableDatabase();
+        try (Cursor cursor = db.query(TABLE_REVISIONS, new String[]{COLUMN_REVISION, COLUMN_SAVED, COLUMN_CHANGED_COUNT, COLUMN_SNAPSHOT},
+                COLUMN_VALUE_REPORT_ID + " = ?", new String[]{String.valueOf(reportId)}, null, null, COLUMN_REVISION + " DESC")) {
+            while (cursor.moveToNext()) {
+                revisions.add(new Revision(cursor.getInt(0), cursor.getLong(1), cursor.getInt(2), cursor.getInt(3) == 1));
+            }
+        }
+        return revisions;
+    }
+
+    /**
+     * The report's field values (field id -> value) as of one revision, or null if there is no such revision.
+     * Starts from the nearest snapshot at or before it and applies the deltas after that, so at most
+     * REVISION_SNAPSHOT_INTERVAL rows are read.
+     */
+    public Map<String, String> getRevisionValues(long reportId, int revision) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        String id = String.valueOf(reportId);
+        String upTo = String.valueOf(revision);
+        String sql = "SELECT " + COLUMN_REVISION + ", " + COLUMN_SNAPSHOT + ", " + COLUMN_CHANGES + ", " + COLUMN_REMOVED +
+                " FROM " + TABLE_REVISIONS + " WHERE " + COLUMN_VALUE_REPORT_ID + " = ? AND " + COLUMN_REVISION + " <= ?" +
+                " AND " + COLUMN_REVISION + " >= (SELECT MAX(" + COLUMN_REVISION + ") FROM " + TABLE_REVISIONS +
+                " WHERE " + COLUMN_VALUE_REPORT_ID + " = ? AND " + COLUMN_REVISION + " <= ? AND " + COLUMN_SNAPSHOT + " = 1)" +
+                " ORDER BY " + COLUMN_REVISION;
+        Map<String, String> values = null;
+        int reached = 0;
+        try (Cursor cursor = db.rawQuery(sql, new String[]{id, upTo, id, upTo})) {
+            while (cursor.moveToNext()) {
+                Map<String, String> changes = gson.fromJson(cursor.getString(2), VALUES_MAP_TYPE);
+                if (cursor.getInt(1) == 1) {
+                    values = new LinkedHashMap<>(changes);
                 } else {
-                    // Handle old reports that don't have a created_date column yet, use COLUMN_DATE as fallback
-                    createdDate = cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_DATE));
+                    values.putAll(changes);
+                }
+                if (!cursor.isNull(3)) {
+                    for (String fieldId : gson.fromJson(cursor.getString(3), String[].class)) {
+                        values.remove(fieldId);
+                    }
                 }
+                reached = cursor.getInt(0);
+            }
+        }
+        return reached == revision ? values : null;
+    }
 
-                MainActivity.SavedReport report = new MainActivity.SavedReport(
-                        cursor.getLong(cursor.getColumnIndexOrThrow(COLUMN_ID)),
-                        cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_TITLE)),
-                        cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_DATE)), // Last Edited Date
-                        cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_PREVIEW)),
-                        cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_DATA)),
-                        templateId,
-                        createdDate // NEW
-                );
-                reports.add(report);
-            } while (cursor.moveToNext());
+    // One saved version of a report; see getRevisions()
+    public static class Revision {
+        private final int number;
+        private final long savedMillis;
+        private final int changedFieldCount;
+        private final boolean snapshot;
+
+        public Revision(int number, long savedMillis, int changedFieldCount, boolean snapshot) {
+            this.number = number;
+            this.savedMillis = savedMillis;
+            this.changedFieldCount = changedFieldCount;
+            this.snapshot = snapshot;
         }
 
-        cursor.close();
-        db.close();
-        return reports;
+        public int getNumber() { return number; }
+        public long getSavedMillis() { return savedMillis; }
+        public int getChangedFieldCount() { return changedFieldCount; } // Fields changed or removed since the previous revision
+        public boolean isSnapshot() { return snapshot; }
+    }
+
+    public static class FieldStats {
+        private final int count;
+        private final double total;
+        private final double average;
+        private final double min;
+        private final double max;
+
+        public FieldStats(int count, double total, double average, double min, double max) {
+            this.count = count;
+            this.total = total;
+            this.average = average;
+            this.min = min;
+            this.max = max;
+        }
+
+        public int getCount() { return count; }
+        public double getTotal() { return total; }
+        public double getAverage() { return average; }
+        public double getMin() { return min; }
+        public double getMax() { return max; }
     }
 
     // NEW: Check if any reports are using a specific template
@@ -201,15 +1154,14 @@ public class ReportDatabase extends SQLiteOpenHelper {
                     new String[]{COLUMN_ID},
                     COLUMN_TEMPLATE_ID + " = ?",
                     new String[]{templateId},
-                    null, null, null);
-            if (cursor != null && cursor.getCount() > 0) {
+                    null, null, null, "1");
+            if (cursor != null && cursor.moveToFirst()) {
                 hasReports = true;
             }
         } finally {
             if (cursor != null) {
                 cursor.close();
             }
-            db.close();
         }
         return hasReports;
     }
@@ -25,6 +25,7 @@ import android.widget.Toast;
 
 import androidx.activity.result.ActivityResultLauncher;
 import androidx.activity.result.contract.ActivityResultContracts;
+import androidx.annotation.Nullable;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.Toolbar;
 import androidx.core.content.ContextCompat;
@@ -32,48 +33,65 @@ import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
 
 import java.io.InputStream;
-import java.lang.reflect.Type;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class ReportGeneratorActivity extends AppCompatActivity implements ReportGeneratorAdapter.OnItemInteractionListener {
 
     private static final String TAG = "ReportGenActivity";
+    private static final long JOURNAL_FLUSH_DELAY_MS = 300; // Edits are coalesced this long before being journaled
 
     private RecyclerView fieldsRecyclerView;
     private ReportGeneratorAdapter reportAdapter;
     private Button saveButton;
     private Button sendButton; // Now "Preview" button
     private List<ReportItem> reportItems;
-    private ReportDatabase reportDatabase;
+    private ReportRepository reportRepository;
     private TemplateManager templateManager;
     private ReportTemplate currentTemplate;
-    private long currentReportId = -1;
+    // Shared with the repository's writer thread, which assigns the id when the first insert completes
+    private final AtomicLong currentReportId = new AtomicLong(-1);
     private String userDefinedTitle = null; // NEW: Field to store user-defined title
-    private String originalReportJson = null; // NEW: Field to store the report JSON when loaded or last saved
-    private boolean isDataModified = false; // NEW: Flag for quick check if data has changed
+    private boolean isPersisted = false; // True once the report has been loaded from or written to the database
+    private boolean isTitleModified = false; // Title changed since the last load/save
+    private final ModifiedFieldCounter modifiedFieldCounter = new ModifiedFieldCounter(); // Fields whose value differs from the persisted one
 
-    private final Gson gson = new Gson();
+    private final Gson gson = JsonAdapters.gson();
     private final Handler handler = new Handler(Looper.getMainLooper());
-    private final Handler debounceHandler = new Handler(Looper.getMainLooper()); // NEW: Handler for debouncing button state updates
-    private final Runnable updateButtonRunnable = this::updateSaveButtonState; // NEW: Runnable for button state update
 
-    private Map<String, ReportItem> reportItemMap; // NEW: Map to quickly access ReportItems by internalId
-    private Map<String, List<String>> fieldDependencies; // NEW: Map: fieldId -> list of calculated fieldIds that depend on it
+    private CompiledTemplate compiledTemplate; // Layout, slots, formulas and calculation order of currentTemplate; shared, never modified
+    private ReportItem[] itemsByOrdinal = new ReportItem[0]; // Template field ordinal -> its item (null if not shown)
+    // Values for TemplateFormat rendering; fields the screen could not place render as "0", like unknown placeholders
+    private final TemplateFormat.ValueSource itemValues = ordinal -> {
+        ReportItem item = itemsByOrdinal[ordinal];
+        return item != null ? item.getValue() : "0";
+    };
+    private int[] changedPositions = new int[0]; // Scratch buffer for batching adapter notifications
+    private double[] slotValues = new double[1]; // Numeric value of each field by CompiledTemplate slot (NaN if not numeric)
+    private long[] fixedSlotValues = new long[1]; // The same values as NumericValue fixed point, for decimal-mode fields
+    private double[] formulaStack = new double[1]; // Operand stacks for evaluating this screen's formulas
+    private long[] fixedFormulaStack = new long[1];
+    private long[] mtdBaselines = new long[0]; // Ordinal -> total of the period's earlier reports, as a NumericValue long
+    private boolean mtdBaselinesLoaded = false; // They arrive together, after the fields are set up
+    private long reportCreatedMillis = 0; // 0 for a report that has not been saved yet
+    private int mtdLoadGeneration = 0; // Bumped per baseline load so stale results are dropped
+    // Edits not yet handed to the repository's edit journal: field id -> latest value, so fast typing costs one entry
+    private Map<String, String> pendingJournalEdits = new LinkedHashMap<>();
+    private final Runnable journalFlush = this::flushEditJournal;
 
 
     // --- ReportItem Interface and Implementations ---
@@ -88,7 +106,9 @@ public class ReportGeneratorActivity extends AppCompatActivity implements Report
         void setDisplayLabel(String newLabel);
         String getValue();
         void setValue(String newValue);
+        long getNumericValue(); // The value parsed once per change (NumericValue fixed-point; 0 if blank, INVALID if not a number)
         String getInputType();
+        boolean isEditable(); // False for headers and derived fields
         boolean isCustom();
         String getParentSectionId();
         void setParentSectionId(String parentId);
@@ -96,6 +116,24 @@ public class ReportGeneratorActivity extends AppCompatActivity implements Report
         void setError(boolean isError);
         String getCalculationFormula(); // NEW
         boolean isCalculated(); // NEW
+        boolean isModified(); // Value differs from the one last loaded or saved
+        void markPersisted(); // Current value becomes the persisted one
+        void markPersisted(String savedValue); // A value a save wrote becomes the persisted one; later edits stay modified
+    }
+
+    // Number of fields currently modified; items update it from setValue so the save check never walks the list
+    static class ModifiedFieldCounter {
+        private int count;
+
+        void onFieldChanged(boolean wasModified, boolean isModified) {
+            if (wasModified != isModified) {
+                count += isModified ? 1 : -1;
+            }
+        }
+
+        int getCount() { return count; }
+
+        void reset() { count = 0; }
     }
 
     public static class ReportField implements ReportItem {
@@ -108,11 +146,16 @@ public class ReportGeneratorActivity extends AppCompatActivity implements Report
         private boolean isError;
         private String calculationFormula; // NEW
         private boolean isCalculated; // NEW
+        private long numericValue;
+        private String persistedValue;
+        private ModifiedFieldCounter modifiedCounter;
 
         public ReportField(String internalId, String displayLabel, String value, String inputType, boolean editable, boolean isCustom, String calculationFormula) {
             this.internalId = internalId;
             this.displayLabel = displayLabel;
             this.value = value;
+            this.numericValue = NumericValue.parse(value);
+            this.persistedValue = value;
             this.inputType = inputType;
             this.isCustom = isCustom;
             this.isError = false;
@@ -137,9 +180,17 @@ public class ReportGeneratorActivity extends AppCompatActivity implements Report
         @Override
         public String getValue() { return value; }
         @Override
-        public void setValue(String newValue) { this.value = newValue; }
+        public void setValue(String newValue) {
+            boolean wasModified = isModified();
+            this.value = newValue;
+            this.numericValue = NumericValue.parse(newValue);
+            if (modifiedCounter != null) modifiedCounter.onFieldChanged(wasModified, isModified());
+        }
+        @Override
+        public long getNumericValue() { return numericValue; }
         @Override
         public String getInputType() { return inputType; }
+        @Override
         public boolean isEditable() { return editable; } // Use this getter for adapter
         @Override
         public boolean isCustom() { return isCustom; }
@@ -154,6 +205,19 @@ public class ReportGeneratorActivity extends AppCompatActivity implements Report
         // NEW Getters
         public String getCalculationFormula() { return calculationFormula; }
         public boolean isCalculated() { return isCalculated; }
+        @Override
+        public boolean isModified() { return !Objects.equals(value, persistedValue); }
+        @Override
+        public void markPersisted() {
+            markPersisted(value);
+        }
+        @Override
+        public void markPersisted(String savedValue) {
+            boolean wasModified = isModified();
+            persistedValue = savedValue;
+            if (modifiedCounter != null) modifiedCounter.onFieldChanged(wasModified, isModified());
+        }
+        public void setModifiedCounter(ModifiedFieldCounter counter) { this.modifiedCounter = counter; }
     }
 
     public static class ReportHeader implements ReportItem {
@@ -184,8 +248,12 @@ public class ReportGeneratorActivity extends AppCompatActivity implements Report
         @Override
         public void setValue(String newValue) { /* Not applicable */ }
         @Override
+        public long getNumericValue() { return 0; }
+        @Override
         public String getInputType() { return null; }
         @Override
+        public boolean isEditable() { return false; }
+        @Override
         public boolean isCustom() { return isCustom; }
         @Override
         public String getParentSectionId() { return null; }
@@ -198,6 +266,12 @@ public class ReportGeneratorActivity extends AppCompatActivity implements Report
         // NEW Getters (not applicable for headers)
         public String getCalculationFormula() { return null; }
         public boolean isCalculated() { return false; }
+        @Override
+        public boolean isModified() { return false; }
+        @Override
+        public void markPersisted() { /* Not applicable */ }
+        @Override
+        public void markPersisted(String savedValue) { /* Not applicable */ }
 
 
         public List<SectionField> getSectionFields() { return sectionFields; }
@@ -216,11 +290,16 @@ public class ReportGeneratorActivity extends AppCompatActivity implements Report
         private boolean isError;
         private String calculationFormula; // NEW
         private boolean isCalculated; // NEW
+        private long numericValue;
+        private String persistedValue;
+        private ModifiedFieldCounter modifiedCounter;
 
         public SectionField(String internalId, String displayLabel, String value, String inputType, boolean editable, boolean isCustom, String parentSectionId, String calculationFormula) {
             this.internalId = internalId;
             this.displayLabel = displayLabel;
             this.value = value;
+            this.numericValue = NumericValue.parse(value);
+            this.persistedValue = value;
             this.inputType = inputType;
             this.isCustom = isCustom;
             this.parentSectionId = parentSectionId;
@@ -246,9 +325,17 @@ public class ReportGeneratorActivity extends AppCompatActivity implements Report
         @Override
         public String getValue() { return value; }
         @Override
-        public void setValue(String newValue) { this.value = newValue; }
+        public void setValue(String newValue) {
+            boolean wasModified = isModified();
+            this.value = newValue;
+            this.numericValue = NumericValue.parse(newValue);
+            if (modifiedCounter != null) modifiedCounter.onFieldChanged(wasModified, isModified());
+        }
+        @Override
+        public long getNumericValue() { return numericValue; }
         @Override
         public String getInputType() { return inputType; }
+        @Override
         public boolean isEditable() { return editable; } // Use this getter for adapter
         @Override
         public boolean isCustom() { return isCustom; }
@@ -263,6 +350,19 @@ public class ReportGeneratorActivity extends AppCompatActivity implements Report
         // NEW Getters
         public String getCalculationFormula() { return calculationFormula; }
         public boolean isCalculated() { return isCalculated; }
+        @Override
+        public boolean isModified() { return !Objects.equals(value, persistedValue); }
+        @Override
+        public void markPersisted() {
+            markPersisted(value);
+        }
+        @Override
+        public void markPersisted(String savedValue) {
+            boolean wasModified = isModified();
+            persistedValue = savedValue;
+            if (modifiedCounter != null) modifiedCounter.onFieldChanged(wasModified, isModified());
+        }
+        public void setModifiedCounter(ModifiedFieldCounter counter) { this.modifiedCounter = counter; }
     }
     // --- End ReportItem Interface and Implementations ---
 
@@ -281,8 +381,7 @@ public class ReportGeneratorActivity extends AppCompatActivity implements Report
         String initialTemplateId = getIntent().getStringExtra("REPORT_TEMPLATE_ID"); // NEW: Get saved template ID
 
         if (reportId != -1) {
-            currentReportId = reportId;
-            loadExistingReport(reportId, initialTemplateId); // Pass template ID to load
+            loadExistingReport(reportId, initialTemplateId); // Pass template ID to load; fields appear when the read completes
         } else {
             // For new reports, use the default template set in MainActivity
             currentTemplate = templateManager.getCurrentTemplate();
@@ -298,11 +397,11 @@ public class ReportGeneratorActivity extends AppCompatActivity implements Report
             setupFieldsFromTemplate(currentTemplate);
             // Initialize userDefinedTitle for new reports with a default suggestion
             userDefinedTitle = currentTemplate.getName() + " - " + new SimpleDateFormat("dd/MM/yy", Locale.getDefault()).format(new Date());
-            // For a new report, originalReportJson is null until the first save
-            this.originalReportJson = null;
+            // A new report counts as modified until its first save
+            this.isPersisted = false;
+            updateToolbarTitle(userDefinedTitle);
         }
 
-        updateToolbarTitle(userDefinedTitle != null ? userDefinedTitle : currentTemplate.getName()); // Update toolbar with template name or loaded title
         setupClickListeners();
         updateSaveButtonState(); // NEW: Set initial button state
     }
@@ -312,6 +411,8 @@ public class ReportGeneratorActivity extends AppCompatActivity implements Report
         super.onStop();
         // Auto-save logic
         autoSaveReport();
+        handler.removeCallbacks(journalFlush); // Whatever was pending is saved or no longer differs
+        pendingJournalEdits.clear();
     }
 
     private void setupToolbar() {
@@ -358,9 +459,7 @@ public class ReportGeneratorActivity extends AppCompatActivity implements Report
         saveButton = findViewById(R.id.saveButton);
         sendButton = findViewById(R.id.sendButton); // This will become Preview button
         reportItems = new ArrayList<>();
-        reportItemMap = new HashMap<>(); // NEW: Initialize map
-        fieldDependencies = new HashMap<>(); // NEW: Initialize map
-        reportDatabase = new ReportDatabase(this);
+        reportRepository = ReportRepository.getInstance(this);
     }
 
     private void setupRecyclerView() {
@@ -369,15 +468,27 @@ public class ReportGeneratorActivity extends AppCompatActivity implements Report
         fieldsRecyclerView.setAdapter(reportAdapter);
     }
 
-    // Modified to load the correct template first and load the report title
+    // Modified to load the correct template first and load the report title.
+    // The report row is read off the main thread; the fields are populated once it arrives.
     private void loadExistingReport(long reportId, String savedTemplateId) {
-        currentReportId = reportId;
-        ReportDatabase reportDb = new ReportDatabase(this);
-        MainActivity.SavedReport savedReport = reportDb.getReport(reportId);
+        currentReportId.set(reportId);
+        reportRepository.getReport(reportId, ReportRepository.callback(savedReport -> {
+            if (isDestroyed()) return;
+            onExistingReportLoaded(reportId, savedReport);
+            updateSaveButtonState();
+        }, error -> {
+            if (isDestroyed()) return;
+            // Nothing is shown yet, and editing defaults here could overwrite the report on save
+            Toast.makeText(this, "Failed to load report.", Toast.LENGTH_LONG).show();
+            finish();
+        }));
+    }
 
+    private void onExistingReportLoaded(long reportId, @Nullable MainActivity.SavedReport savedReport) {
         if (savedReport != null) {
             // NEW: Load existing title
             userDefinedTitle = savedReport.getTitle();
+            reportCreatedMillis = savedReport.getCreatedMillis();
 
             ReportTemplate templateToUse = templateManager.getTemplate(savedReport.getTemplateId());
             if (templateToUse == null) {
@@ -396,9 +507,8 @@ public class ReportGeneratorActivity extends AppCompatActivity implements Report
             setupFieldsFromTemplate(currentTemplate); // Populate UI with the loaded template's structure
             parseAndLoadReportData(savedReport.getReportData()); // Fill values from saved data
 
-            // NEW: Store the original report data for comparison
-            this.originalReportJson = savedReport.getReportData();
-            this.isDataModified = false; // Reset flag after loading
+            // NEW: The loaded values are the baseline for modification tracking
+            markAllPersisted();
         } else {
             Log.e(TAG, "Report with ID " + reportId + " not found, falling back to default template.");
             currentTemplate = templateManager.getTemplate(TemplateManager.DEFAULT_TEMPLATE_ID);
@@ -409,15 +519,14 @@ public class ReportGeneratorActivity extends AppCompatActivity implements Report
             }
             setupFieldsFromTemplate(currentTemplate);
             userDefinedTitle = currentTemplate.getName() + " - " + new SimpleDateFormat("dd/MM/yy", Locale.getDefault()).format(new Date());
-            this.originalReportJson = null;
-            this.isDataModified = true; // New report is considered modified until first save
+            updateToolbarTitle(userDefinedTitle);
+            this.isPersisted = false; // New report is considered modified until first save
         }
     }
 
 
     private void parseAndLoadReportData(String reportData) {
-        Type type = new TypeToken<Map<String, String>>() {}.getType();
-        Map<String, String> savedValues = gson.fromJson(reportData, type);
+        Map<String, String> savedValues = gson.fromJson(reportData, JsonAdapters.REPORT_VALUES_TYPE);
 
         if (savedValues == null) {
             Log.e(TAG, "Failed to parse report data (JSON): " + reportData);
@@ -441,68 +550,34 @@ public class ReportGeneratorActivity extends AppCompatActivity implements Report
         }
 
         // NEW: After loading all values, recalculate dependent fields
-        for (ReportItem item : reportItems) {
-            if (item.isCalculated()) {
-                recalculateField(item);
-            }
-        }
+        refreshAllSlots();
+        recalculateDerivedFields(compiledTemplate.getCalculationOrder(), false);
 
-        reportAdapter.notifyDataSetChanged();
+        reportAdapter.dispatchItemChanges(); // Only rows already bound with other values
     }
 
-    // NEW: Method to populate fields from a given ReportTemplate
+    // NEW: Method to populate fields from a given ReportTemplate.
+    // Everything structural comes precomputed from the template's CompiledTemplate; only the items and values are new.
     private void setupFieldsFromTemplate(ReportTemplate template) {
+        compiledTemplate = template.getCompiledTemplate();
         reportItems.clear();
-        reportItemMap.clear(); // NEW: Clear map as well
-        fieldDependencies.clear(); // NEW: Clear dependencies
-
-        // Map for headers to add section fields, to maintain order correctly
-        Map<String, ReportHeader> headerMap = new HashMap<>();
-
-        for (TemplateField templateField : template.getFields()) {
-            ReportItem item = null;
-            if (templateField.getType() == TemplateField.TYPE_FIELD) {
-                ReportField field = new ReportField(
-                        templateField.getInternalId(),
-                        templateField.getDisplayLabel(),
-                        templateField.getDefaultValue() != null ? templateField.getDefaultValue() : "",
-                        templateField.getInputType(),
-                        templateField.isEditable(),
-                        templateField.isCustom(),
-                        templateField.getCalculationFormula() // NEW: Pass formula
-                );
-                item = field;
-            } else if (templateField.getType() == TemplateField.TYPE_HEADER) {
-                ReportHeader header = new ReportHeader(
-                        templateField.getInternalId(),
-                        templateField.getDisplayLabel(),
-                        templateField.isCustom()
-                );
-                item = header;
-                headerMap.put(header.getInternalId(), header);
-            } else if (templateField.getType() == TemplateField.TYPE_SECTION_FIELD) {
-                ReportHeader parentHeader = headerMap.get(templateField.getParentSectionId());
-                if (parentHeader != null) {
-                    SectionField sectionField = new SectionField(
-                            templateField.getInternalId(),
-                            templateField.getDisplayLabel(),
-                            templateField.getDefaultValue() != null ? templateField.getDefaultValue() : "",
-                            templateField.getInputType(),
-                            templateField.isEditable(),
-                            templateField.isCustom(),
-                            templateField.getParentSectionId(),
-                            templateField.getCalculationFormula() // NEW: Pass formula
-                    );
-                    parentHeader.addSectionField(sectionField); // Add to header's internal list (if needed)
-                    item = sectionField; // Add to main list for adapter to display
-                } else {
-                    Log.e(TAG, "Parent header '" + templateField.getParentSectionId() + "' not found for section field: " + templateField.getDisplayLabel());
+        modifiedFieldCounter.reset(); // The previous items are discarded with their counts
+
+        itemsByOrdinal = new ReportItem[compiledTemplate.getFieldCount()];
+        for (int position = 0; position < compiledTemplate.getDisplayCount(); position++) {
+            int ordinal = compiledTemplate.getDisplayOrdinal(position);
+            ReportItem item = createReportItem(compiledTemplate.getField(ordinal));
+            itemsByOrdinal[ordinal] = item;
+            reportItems.add(item);
+        }
+        for (int position = 0; position < compiledTemplate.getDisplayCount(); position++) {
+            int ordinal = compiledTemplate.getDisplayOrdinal(position);
+            if (itemsByOrdinal[ordinal] instanceof ReportHeader) {
+                ReportHeader header = (ReportHeader) itemsByOrdinal[ordinal];
+                for (int sectionOrdinal : compiledTemplate.getSectionOrdinals(ordinal)) {
+                    header.addSectionField((SectionField) itemsByOrdinal[sectionOrdinal]); // Add to header's internal list (if needed)
                 }
             }
-            if (item != null) {
-                reportItems.add(item);
-                reportItemMap.put(item.getInternalId(), item); // NEW: Add to map
-            }
         }
 
         // Set current date for the "date_field" if it exists and is empty
@@ -514,19 +589,156 @@ public class ReportGeneratorActivity extends AppCompatActivity implements Report
             }
         }
 
-        // NEW: Build dependencies AFTER all items are in reportItemMap
-        buildFieldDependencies();
+        slotValues = new double[compiledTemplate.getSlotCount()];
+        fixedSlotValues = new long[compiledTemplate.getSlotCount()];
+        formulaStack = new double[compiledTemplate.getMaxStackDepth()];
+        fixedFormulaStack = new long[compiledTemplate.getMaxStackDepth()];
+        refreshAllSlots();
+        changedPositions = new int[reportItems.size()];
+        if (compiledTemplate.getFormulaError() != null) {
+            Toast.makeText(this, "Template formulas are invalid: " + compiledTemplate.getFormulaError(), Toast.LENGTH_LONG).show();
+            for (ReportItem item : reportItems) {
+                if (item.isCalculated()) {
+                    item.setValue("Error");
+                }
+            }
+        }
 
         // NEW: Recalculate all calculated fields initially
-        for (ReportItem item : reportItems) {
-            if (item.isCalculated()) {
-                recalculateField(item);
+        recalculateDerivedFields(compiledTemplate.getCalculationOrder(), false);
+
+        if (reportAdapter != null) {
+            reportAdapter.onItemsReplaced();
+        }
+
+        loadMtdBaselines(template);
+    }
+
+    private ReportItem createReportItem(TemplateField templateField) {
+        String defaultValue = templateField.getDefaultValue() != null ? templateField.getDefaultValue() : "";
+        if (templateField.getType() == TemplateField.TYPE_HEADER) {
+            return new ReportHeader(templateField.getInternalId(), templateField.getDisplayLabel(), templateField.isCustom());
+        } else if (templateField.getType() == TemplateField.TYPE_SECTION_FIELD) {
+            SectionField sectionField = new SectionField(
+                    templateField.getInternalId(),
+                    templateField.getDisplayLabel(),
+                    defaultValue,
+                    templateField.getInputType(),
+                    templateField.isEditable(),
+                    templateField.isCustom(),
+                    templateField.getParentSectionId(),
+                    templateField.getCalculationFormula() // NEW: Pass formula
+            );
+            sectionField.setModifiedCounter(modifiedFieldCounter);
+            return sectionField;
+        }
+        ReportField field = new ReportField(
+                templateField.getInternalId(),
+                templateField.getDisplayLabel(),
+                defaultValue,
+                templateField.getInputType(),
+                templateField.isEditable(),
+                templateField.isCustom(),
+                templateField.getCalculationFormula() // NEW: Pass formula
+        );
+        field.setModifiedCounter(modifiedFieldCounter);
+        return field;
+    }
+
+    // Reads the period totals of the other reports in the background, then fills in the MTD fields.
+    // Values already in the fields (e.g. from a saved report) are kept until the baselines arrive.
+    private void loadMtdBaselines(ReportTemplate template) {
+        int generation = ++mtdLoadGeneration;
+        mtdBaselines = new long[itemsByOrdinal.length];
+        mtdBaselinesLoaded = false;
+        List<TemplateField> mtdFields = compiledTemplate.getMtdFields();
+        if (mtdFields.isEmpty()) {
+            return;
+        }
+        CompiledTemplate compiled = compiledTemplate;
+        long createdMillis = reportCreatedMillis != 0 ? reportCreatedMillis : System.currentTimeMillis();
+        reportRepository.getMtdBaselines(template.getTemplateId(), currentReportId.get(), createdMillis, mtdFields, baselines -> {
+            if (isDestroyed() || generation != mtdLoadGeneration) return;
+            for (Map.Entry<String, Long> baseline : baselines.entrySet()) {
+                int ordinal = compiled.ordinalOf(baseline.getKey());
+                if (ordinal != -1) {
+                    mtdBaselines[ordinal] = baseline.getValue();
+                }
+            }
+            mtdBaselinesLoaded = true;
+            int changedCount = recalculateDerivedFields(compiled.getCalculationOrder(), true);
+            if (isPersisted) {
+                // Derived from saved reports, not edited: a loaded report stays unmodified and autosave leaves it alone
+                for (int i = 0; i < changedCount; i++) {
+                    reportItems.get(changedPositions[i]).markPersisted();
+                }
+                updateSaveButtonState();
             }
+        });
+    }
+
+    // MTD value = the period's total before this report + this report's own source value.
+    // Returns true if the displayed value changed.
+    private boolean recalculateMtdField(int ordinal, ReportItem mtdItem) {
+        if (!compiledTemplate.isMtd(ordinal) || !mtdBaselinesLoaded) {
+            return false; // Baselines not loaded yet
         }
+        long baseline = mtdBaselines[ordinal];
 
-        if (reportAdapter != null) {
-            reportAdapter.notifyDataSetChanged();
+        long total;
+        if (compiledTemplate.isFixedPoint(ordinal)) {
+            long current = fixedSlotValues[compiledTemplate.getMtdSourceSlot(ordinal)];
+            total = compiledTemplate.roundFixed(ordinal, NumericValue.add(baseline, current == NumericValue.INVALID ? 0 : current));
+            setSlot(ordinal, total);
+        } else {
+            double current = slotValues[compiledTemplate.getMtdSourceSlot(ordinal)];
+            double sum = NumericValue.toDouble(baseline) + (Double.isNaN(current) ? 0 : current);
+            setSlot(ordinal, sum);
+            total = NumericValue.fromDouble(sum);
         }
+
+        String newValue = total == NumericValue.INVALID
+                ? "Error"
+                : NumericValue.format(total, compiledTemplate.getDisplayDecimals(ordinal));
+        if (newValue.equals(mtdItem.getValue())) {
+            return false;
+        }
+        mtdItem.setValue(newValue);
+        return true;
+    }
+
+    /**
+     * Recomputes the given derived fields in order (callers pass a list that is already in calculation order)
+     * and, if notifyAdapter is set, notifies the adapter once per run of adjacent changed positions.
+     * A single range over all changes would also rebind the field the user is typing in.
+     */
+    // Returns how many fields changed; their positions are the first entries of changedPositions
+    private int recalculateDerivedFields(int[] ordinals, boolean notifyAdapter) {
+        int changedCount = 0;
+        for (int ordinal : ordinals) {
+            ReportItem item = itemsByOrdinal[ordinal];
+            if (item == null) continue;
+            boolean changed = item.isCalculated() ? recalculateField(ordinal, item) : recalculateMtdField(ordinal, item);
+            if (changed) {
+                changedPositions[changedCount++] = compiledTemplate.getPosition(ordinal);
+            }
+        }
+
+        if (!notifyAdapter || changedCount == 0 || reportAdapter == null) {
+            return changedCount;
+        }
+        Arrays.sort(changedPositions, 0, changedCount);
+        int runStart = changedPositions[0];
+        int runEnd = runStart;
+        for (int i = 1; i < changedCount; i++) {
+            if (changedPositions[i] != runEnd + 1) {
+                reportAdapter.notifyItemRangeChanged(runStart, runEnd - runStart + 1);
+                runStart = changedPositions[i];
+            }
+            runEnd = changedPositions[i];
+        }
+        reportAdapter.notifyItemRangeChanged(runStart, runEnd - runStart + 1);
+        return changedCount;
     }
 
 
@@ -597,24 +809,35 @@ public class ReportGeneratorActivity extends AppCompatActivity implements Report
     @Override
     public void onFieldValueUpdated(String internalId, String newValue) {
         // Update the value in the ReportItem directly (it's already done by TextWatcher, but good for clarity)
-        ReportItem updatedItem = reportItemMap.get(internalId);
+        int ordinal = compiledTemplate != null ? compiledTemplate.ordinalOf(internalId) : -1;
+        ReportItem updatedItem = ordinal != -1 ? itemsByOrdinal[ordinal] : null;
         if (updatedItem != null) {
             updatedItem.setValue(newValue);
-            // Trigger recalculations for any fields that depend on this one
-            if (fieldDependencies.containsKey(internalId)) {
-                for (String dependentFieldId : fieldDependencies.get(internalId)) {
-                    ReportItem dependentItem = reportItemMap.get(dependentFieldId);
-                    if (dependentItem != null && dependentItem.isCalculated()) {
-                        recalculateField(dependentItem);
-                    }
-                }
+            setSlot(ordinal, updatedItem.getNumericValue());
+            // Recalculate every field that reads this one, directly or through other derived fields
+            int changedCount = recalculateDerivedFields(compiledTemplate.getAffectedOrdinals(ordinal), true);
+
+            journalEdit(updatedItem);
+            for (int i = 0; i < changedCount; i++) {
+                journalEdit(reportItems.get(changedPositions[i]));
             }
+            updateSaveButtonState(); // O(1): reads the modified-field count
+        }
+    }
 
-            // NEW: Set flag and debounce button update
-            isDataModified = true;
-            debounceHandler.removeCallbacks(updateButtonRunnable);
-            debounceHandler.postDelayed(updateButtonRunnable, 500); // 500ms debounce
+    // Queues the item's value for the edit journal; the flush is scheduled by the first edit after the previous one
+    private void journalEdit(ReportItem item) {
+        if (pendingJournalEdits.isEmpty()) {
+            handler.postDelayed(journalFlush, JOURNAL_FLUSH_DELAY_MS);
         }
+        pendingJournalEdits.put(item.getInternalId(), item.getValue());
+    }
+
+    // Hands the coalesced edits to the writer thread, which appends them to the journal file
+    private void flushEditJournal() {
+        if (pendingJournalEdits.isEmpty() || currentTemplate == null) return;
+        reportRepository.appendToEditJournal(currentReportId, currentTemplate.getTemplateId(), pendingJournalEdits);
+        pendingJournalEdits = new LinkedHashMap<>(); // The repository keeps the old map
     }
 
     private void setupClickListeners() {
@@ -623,37 +846,33 @@ public class ReportGeneratorActivity extends AppCompatActivity implements Report
     }
 
     // NEW: Helper method to check if the report data has changed
-    private boolean isReportModified(String currentJson) {
-        // If it's a new report, it is always considered modified (or new)
-        if (currentReportId == -1) return true;
-
-        // If originalReportJson is null, it means we couldn't load the original, so we assume modified for safety
-        if (originalReportJson == null) return true;
+    private boolean isReportModified() {
+        // A report that was never loaded or saved is always considered modified
+        return !isPersisted || isTitleModified || modifiedFieldCounter.getCount() > 0;
+    }
 
-        // Compare current JSON with the original loaded JSON
-        return !originalReportJson.equals(currentJson);
+    // Makes the current values the baseline for modification tracking
+    private void markAllPersisted() {
+        for (ReportItem item : reportItems) {
+            item.markPersisted();
+        }
+        isPersisted = true;
+        isTitleModified = false;
     }
 
     // NEW: Method to update the state of the save button
     private void updateSaveButtonState() {
-        // Only perform the expensive JSON comparison if we think data might have changed
-        if (isDataModified || currentReportId == -1) {
-            String currentJson = generateReport();
-            boolean modified = isReportModified(currentJson);
-
-            saveButton.setEnabled(modified);
-
-            // If we found it's not modified, reset the flag
-            if (!modified) {
-                isDataModified = false;
-            }
-        } else {
-            // If flag is false and it's an existing report, button should be disabled
+        if (currentTemplate == null) { // Existing report still loading
             saveButton.setEnabled(false);
+            return;
         }
+
+        saveButton.setEnabled(isReportModified());
     }
 
     private void saveReport() {
+        if (currentTemplate == null) return; // Existing report still loading
+
         clearAllFieldErrors();
 
         // Auto-fill date field if present and empty
@@ -661,13 +880,11 @@ public class ReportGeneratorActivity extends AppCompatActivity implements Report
             if (item.getInternalId().equals("date_field") && item.getValue().isEmpty()) {
                 SimpleDateFormat sdf = new SimpleDateFormat("dd/MM/yy", Locale.getDefault());
                 item.setValue(sdf.format(new Date()));
-                reportAdapter.notifyDataSetChanged();
+                reportAdapter.dispatchItemChanges();
                 break;
             }
         }
 
-        String reportJson = generateReport();
-
         SimpleDateFormat sdf = new SimpleDateFormat("dd/MM/yy HH:mm", Locale.getDefault());
         String currentDateTime = sdf.format(new Date());
 
@@ -676,27 +893,57 @@ public class ReportGeneratorActivity extends AppCompatActivity implements Report
             ? this.userDefinedTitle
             : currentTemplate.getName() + " - " + currentDateTime;
 
+        if (isReportModified()) { // CONDITIONAL SAVE
+            persistReport(title, currentDateTime, id -> {
+                if (!isDestroyed()) {
+                    Toast.makeText(this, "Report saved successfully", Toast.LENGTH_SHORT).show();
+                }
+            });
+        } else {
+            Log.d(TAG, "Report not modified. Skipping update.");
+            // Removed Toast
+        }
+        updateSaveButtonState(); // Update button state after save attempt
+    }
+
+    /**
+     * Queues the report for saving on the repository's writer thread (insert for a new report, update otherwise).
+     * The saved values become the new baseline only once the row is written: until then, and for good if the write
+     * fails, the fields stay modified, so the next save retries instead of discarding the edit journal.
+     */
+    private void persistReport(String title, String dateTime, @Nullable ReportRepository.Callback<Long> onSaved) {
+        // Pending edits are journaled ahead of the save; the writer discards the journal only after the row is written
+        handler.removeCallbacks(journalFlush);
+        flushEditJournal();
+        Map<String, String> savedValues = getFieldValuesMap();
+        String reportJson = gson.toJson(savedValues, JsonAdapters.REPORT_VALUES_TYPE);
         String previewText = generatePreviewText();
+        String templateId = currentTemplate.getTemplateId();
+        reportRepository.saveOrUpdateReport(currentReportId, title, dateTime, previewText, reportJson, templateId, ReportRepository.callback(id -> {
+            Log.d(TAG, "Report saved with ID: " + id + " using template: " + templateId);
+            markSaved(savedValues, title);
+            updateSaveButtonState();
+            if (onSaved != null) {
+                onSaved.onResult(id);
+            }
+        }, error -> {
+            // Also shown after an auto-save on leaving the screen; the edits stay journaled either way
+            Toast.makeText(getApplicationContext(), "Report could not be saved. Your changes are kept.", Toast.LENGTH_LONG).show();
+        }));
+    }
 
-        if (currentReportId == -1) {
-            currentReportId = reportDatabase.saveReport(title, currentDateTime, previewText, reportJson, currentTemplate.getTemplateId()); // NEW: Pass templateId
-            this.originalReportJson = reportJson; // Store the newly saved JSON
-            this.isDataModified = false; // Reset flag
-            Log.d(TAG, "New report saved with ID: " + currentReportId + " using template: " + currentTemplate.getTemplateId());
-            Toast.makeText(this, "Report saved successfully", Toast.LENGTH_SHORT).show();
-        } else {
-            if (isReportModified(reportJson)) { // CONDITIONAL SAVE
-                reportDatabase.updateReport(currentReportId, title, currentDateTime, previewText, reportJson, currentTemplate.getTemplateId()); // NEW: Pass templateId
-                this.originalReportJson = reportJson; // Update original only if save happened
-                this.isDataModified = false; // Reset flag
-                Log.d(TAG, "Report updated with ID: " + currentReportId + " using template: " + currentTemplate.getTemplateId());
-                Toast.makeText(this, "Report saved successfully", Toast.LENGTH_SHORT).show();
-            } else {
-                Log.d(TAG, "Report not modified. Skipping update.");
-                // Removed Toast
+    // The values and title a confirmed save wrote become the baseline; anything edited since stays modified
+    private void markSaved(Map<String, String> savedValues, String title) {
+        for (ReportItem item : reportItems) {
+            String saved = savedValues.get(item.getInternalId());
+            if (saved != null) {
+                item.markPersisted(saved);
             }
         }
-        updateSaveButtonState(); // Update button state after save attempt
+        isPersisted = true;
+        if (userDefinedTitle == null || userDefinedTitle.isEmpty() || userDefinedTitle.equals(title)) {
+            isTitleModified = false;
+        }
     }
 
     private void autoSaveReport() {
@@ -716,8 +963,9 @@ public class ReportGeneratorActivity extends AppCompatActivity implements Report
             }
         }
 
-        if (!hasContent && currentReportId == -1) {
+        if (!hasContent && currentReportId.get() == -1) {
             Log.d(TAG, "Auto-save skipped: New report with no content.");
+            reportRepository.discardEditJournal();
             return;
         }
 
@@ -730,8 +978,6 @@ public class ReportGeneratorActivity extends AppCompatActivity implements Report
             }
         }
 
-        String reportJson = generateReport();
-
         SimpleDateFormat sdf = new SimpleDateFormat("dd/MM/yy HH:mm", Locale.getDefault());
         String currentDateTime = sdf.format(new Date());
 
@@ -740,30 +986,19 @@ public class ReportGeneratorActivity extends AppCompatActivity implements Report
             ? this.userDefinedTitle
             : currentTemplate.getName() + " - " + currentDateTime;
 
-        String previewText = generatePreviewText();
-
-        if (currentReportId == -1) {
-            // Save as a new report
-            currentReportId = reportDatabase.saveReport(title, currentDateTime, previewText, reportJson, currentTemplate.getTemplateId());
-            this.originalReportJson = reportJson; // Store the newly saved JSON
-            this.isDataModified = false; // Reset flag
-            Log.d(TAG, "Auto-saved new report with ID: " + currentReportId);
+        if (isReportModified()) { // CONDITIONAL SAVE
+            persistReport(title, currentDateTime, id -> Log.d(TAG, "Auto-saved report with ID: " + id));
         } else {
-            if (isReportModified(reportJson)) { // CONDITIONAL SAVE
-                // Update existing report
-                reportDatabase.updateReport(currentReportId, title, currentDateTime, previewText, reportJson, currentTemplate.getTemplateId());
-                this.originalReportJson = reportJson; // Update original only if save happened
-                this.isDataModified = false; // Reset flag
-                Log.d(TAG, "Auto-updated report with ID: " + currentReportId);
-            } else {
-                Log.d(TAG, "Auto-save skipped: Report not modified.");
-            }
+            Log.d(TAG, "Auto-save skipped: Report not modified.");
+            reportRepository.discardEditJournal(); // Edits, if any, were undone
         }
         updateSaveButtonState(); // Update button state after auto-save attempt
     }
 
     // Renamed from saveAndSendReport to saveAndPreviewReport
     private void saveAndPreviewReport() {
+        if (currentTemplate == null) return; // Existing report still loading
+
         clearAllFieldErrors();
 
         List<ReportItem> trulyEmptyFields = new ArrayList<>();
@@ -777,7 +1012,7 @@ public class ReportGeneratorActivity extends AppCompatActivity implements Report
                         if (item.getInternalId().equals("date_field")) {
                             SimpleDateFormat sdf = new SimpleDateFormat("dd/MM/yy", Locale.getDefault());
                             item.setValue(sdf.format(new Date()));
-                            // No need for notifyDataSetChanged here, as highlightEmptyFields will re-bind
+                            // Shown by the dispatchItemChanges() below
                         } else {
                             // Only force validation for non-optional fields.
                             // The 'additional_notes' field is considered optional, so we skip it here.
@@ -790,14 +1025,14 @@ public class ReportGeneratorActivity extends AppCompatActivity implements Report
             }
         }
 
+        reportAdapter.dispatchItemChanges(); // The auto-filled date, if any
+
         if (!trulyEmptyFields.isEmpty()) {
             highlightEmptyFields(trulyEmptyFields);
             Toast.makeText(this, "Please fill in all highlighted fields", Toast.LENGTH_LONG).show();
             return;
         }
 
-        String reportJson = generateReport();
-
         SimpleDateFormat sdf = new SimpleDateFormat("dd/MM/yy HH:mm", Locale.getDefault());
         String currentDateTime = sdf.format(new Date());
 
@@ -806,26 +1041,10 @@ public class ReportGeneratorActivity extends AppCompatActivity implements Report
             ? this.userDefinedTitle
             : currentTemplate.getName() + " - " + currentDateTime;
 
-        String previewText = generatePreviewText();
-
-        boolean saved = false;
-
-        if (currentReportId == -1) {
-            currentReportId = reportDatabase.saveReport(title, currentDateTime, previewText, reportJson, currentTemplate.getTemplateId());
-            this.originalReportJson = reportJson;
-            this.isDataModified = false; // Reset flag
-            Log.d(TAG, "New report saved with ID: " + currentReportId + " using template: " + currentTemplate.getTemplateId());
-            saved = true;
+        if (isReportModified()) { // CONDITIONAL SAVE
+            persistReport(title, currentDateTime, null);
         } else {
-            if (isReportModified(reportJson)) { // CONDITIONAL SAVE
-                reportDatabase.updateReport(currentReportId, title, currentDateTime, previewText, reportJson, currentTemplate.getTemplateId());
-                this.originalReportJson = reportJson;
-                this.isDataModified = false; // Reset flag
-                Log.d(TAG, "Report updated with ID: " + currentReportId + " using template: " + currentTemplate.getTemplateId());
-                saved = true;
-            } else {
-                Log.d(TAG, "Preview save skipped: Report not modified.");
-            }
+            Log.d(TAG, "Preview save skipped: Report not modified.");
         }
 
         updateSaveButtonState(); // Update button state after save attempt
@@ -848,7 +1067,7 @@ public class ReportGeneratorActivity extends AppCompatActivity implements Report
                 item.setError(false);
             }
         }
-        reportAdapter.notifyDataSetChanged();
+        reportAdapter.dispatchItemChanges(); // Rebinds just the rows whose error state changed
 
         if (!emptyFields.isEmpty()) {
             int firstEmptyPos = reportItems.indexOf(emptyFields.get(0));
@@ -868,39 +1087,16 @@ public class ReportGeneratorActivity extends AppCompatActivity implements Report
             }
         }
         if (changed) {
-            reportAdapter.notifyDataSetChanged();
+            reportAdapter.dispatchItemChanges();
         }
     }
 
     private String generatePreviewText() {
-        Map<String, String> fieldValues = getFieldValuesMap();
-        String formatString = currentTemplate.getPreviewFormat();
-        return replacePlaceholders(formatString, fieldValues);
-    }
-
-    private String generateReport() {
-        return gson.toJson(getFieldValuesMap());
+        return compiledTemplate.getPreviewFormat().render(itemValues);
     }
 
     private String generateReadableReportForSms() {
-        Map<String, String> fieldValues = getFieldValuesMap();
-        String formatString = currentTemplate.getReportFormat();
-
-        // Handle the optional additional_notes line first to ensure it's removed if empty
-        String notes = fieldValues.getOrDefault("additional_notes", "").trim();
-
-        // Remove the placeholder and its surrounding newline from the format string if notes are empty
-        if (notes.isEmpty()) {
-            // We use replaceAll to handle potential multi-line notes placeholder if the template format was complex
-            formatString = formatString.replaceAll("\\{additional_notes\\}\\n?", "");
-        } else {
-            // If notes exist, replace the placeholder with the actual notes.
-            // The notes can contain newlines from the multi-line EditText.
-            formatString = formatString.replace("{additional_notes}", notes);
-        }
-
-        // Now run the standard replacement for all other placeholders.
-        return replacePlaceholders(formatString, fieldValues);
+        return compiledTemplate.getReportFormat().render(itemValues);
     }
 
     private Map<String, String> getFieldValuesMap() {
@@ -913,156 +1109,58 @@ public class ReportGeneratorActivity extends AppCompatActivity implements Report
         return fieldValues;
     }
 
-    private String replacePlaceholders(String formatString, Map<String, String> fieldValues) {
-        Pattern pattern = Pattern.compile("\\{([^}]+)\\}");
-        Matcher matcher = pattern.matcher(formatString);
-        StringBuffer sb = new StringBuffer();
-        while (matcher.find()) {
-            String placeholderKey = matcher.group(1);
-            String replacement = fieldValues.getOrDefault(placeholderKey, "0"); // Default to "0" for numeric values in SMS to prevent empty space
-            matcher.appendReplacement(sb, Matcher.quoteReplacement(replacement));
-        }
-        matcher.appendTail(sb);
-        return sb.toString();
-    }
-
-    // NEW: Helper method to build dependencies
-    private void buildFieldDependencies() {
-        fieldDependencies.clear();
-        for (ReportItem item : reportItems) {
-            if (item.isCalculated()) {
-                String formula = item.getCalculationFormula();
-                if (formula != null && !formula.isEmpty()) {
-                    Pattern pattern = Pattern.compile("\\{([^}]+)\\}");
-                    Matcher matcher = pattern.matcher(formula);
-                    while (matcher.find()) {
-                        String dependentFieldId = matcher.group(1);
-                        fieldDependencies.computeIfAbsent(dependentFieldId, k -> new ArrayList<>()).add(item.getInternalId());
-                    }
-                }
+    private void refreshAllSlots() {
+        for (int ordinal = 0; ordinal < itemsByOrdinal.length; ordinal++) {
+            ReportItem item = itemsByOrdinal[ordinal];
+            if (item != null) {
+                setSlot(ordinal, item.getNumericValue());
             }
         }
-        Log.d(TAG, "Field dependencies built: " + fieldDependencies.toString());
     }
 
-    // NEW: Helper method to recalculate a field
-    private void recalculateField(ReportItem calculatedItem) {
-        String formula = calculatedItem.getCalculationFormula();
-
-        if (formula == null || formula.isEmpty()) {
-            return; // Not a calculated field
-        }
-
-        String evaluatedFormula = formula;
-        Pattern pattern = Pattern.compile("\\{([^}]+)\\}");
-        Matcher matcher = pattern.matcher(formula);
-        boolean allValuesNumeric = true;
+    private void setSlot(int ordinal, long numeric) {
+        int slot = CompiledTemplate.slotOf(ordinal);
+        fixedSlotValues[slot] = numeric;
+        slotValues[slot] = NumericValue.toDouble(numeric);
+    }
 
-        // Replace placeholders with actual values
-        while (matcher.find()) {
-            String placeholderKey = matcher.group(1);
-            ReportItem dependentItem = reportItemMap.get(placeholderKey);
-            String value = (dependentItem != null && dependentItem.getValue() != null && !dependentItem.getValue().isEmpty()) ? dependentItem.getValue() : "0"; // Default to 0 for calculations
+    private void setSlot(int ordinal, double value) {
+        int slot = CompiledTemplate.slotOf(ordinal);
+        slotValues[slot] = value;
+        fixedSlotValues[slot] = NumericValue.fromDouble(value);
+    }
 
-            // Check if value is numeric
-            if (!value.matches("-?\\d+(\\.\\d+)?")) {
-                allValuesNumeric = false;
-            }
-            evaluatedFormula = evaluatedFormula.replace("{" + placeholderKey + "}", value);
+    // NEW: Helper method to recalculate a field. Returns true if the displayed value changed.
+    private boolean recalculateField(int ordinal, ReportItem calculatedItem) {
+        if (!calculatedItem.isCalculated()) {
+            return false; // Not a calculated field
         }
 
-        if (!allValuesNumeric) {
-            calculatedItem.setValue("Error"); // Or empty string, or specific error message
-            Log.w(TAG, "Non-numeric value encountered in calculation for " + calculatedItem.getInternalId() + ": " + evaluatedFormula);
+        // INVALID: a non-numeric operand or an invalid formula (NaN), division by zero (infinite) or overflow
+        long numeric;
+        if (compiledTemplate.isFixedPoint(ordinal)) {
+            numeric = compiledTemplate.evaluateFixed(ordinal, fixedSlotValues, fixedFormulaStack);
+            setSlot(ordinal, numeric);
         } else {
-            try {
-                // Very basic arithmetic evaluation. For production, consider a robust library.
-                double result = evaluateSimpleExpression(evaluatedFormula);
-                calculatedItem.setValue(String.format(Locale.getDefault(), "%.2f", result)); // Format to 2 decimal places
-            } catch (Exception e) {
-                Log.e(TAG, "Error evaluating formula for " + calculatedItem.getInternalId() + ": " + evaluatedFormula, e);
-                calculatedItem.setValue("Error");
-            }
-        }
-
-        int position = reportItems.indexOf(calculatedItem);
-        if (position != -1) {
-            reportAdapter.notifyItemChanged(position);
+            double result = compiledTemplate.evaluate(ordinal, slotValues, formulaStack);
+            setSlot(ordinal, result);
+            numeric = NumericValue.fromDouble(result);
         }
-    }
-
-    // NEW: Very basic arithmetic expression evaluator (only handles +, -, *, / in left-to-right fashion)
-    private double evaluateSimpleExpression(String expression) {
-        // This is a highly simplified evaluator. For production, consider a robust library (e.g., exp4j).
-        // It processes operations from left to right without respecting operator precedence.
-        // Example: "10 + 5 * 2" would be (10+5)*2=30, not 10+(5*2)=20.
-        // For more complex expressions, a dedicated math expression parser library is strongly recommended.
-
-        // First, handle multiplication and division
-        expression = evaluateMultiplicationDivision(expression);
-
-        // Then, handle addition and subtraction
-        String[] parts = expression.split("(?<=[-+])|(?=[-+])"); // Split by + or -, keeping operators
-        double result = 0;
-        String currentOperator = "+";
-
-        for (String part : parts) {
-            part = part.trim();
-            if (part.isEmpty()) continue;
-
-            if (part.equals("+") || part.equals("-")) {
-                currentOperator = part;
-            } else {
-                try {
-                    double number = Double.parseDouble(part);
-                    switch (currentOperator) {
-                        case "+": result += number; break;
-                        case "-": result -= number; break;
-                    }
-                } catch (NumberFormatException e) {
-                    Log.e(TAG, "Invalid number in formula part: " + part, e);
-                    throw new IllegalArgumentException("Invalid number in formula part: " + part);
-                }
-            }
+        String newValue = numeric == NumericValue.INVALID
+                ? "Error"
+                : NumericValue.format(numeric, compiledTemplate.getDisplayDecimals(ordinal)); // Always with '.'
+        if (newValue.equals(calculatedItem.getValue())) {
+            return false;
         }
-        return result;
-    }
-
-    private String evaluateMultiplicationDivision(String expression) {
-        Pattern mdPattern = Pattern.compile("(-?\\d+(\\.\\d+)?)\\s*([*/])\\s*(-?\\d+(\\.\\d+)?)");
-        Matcher matcher = mdPattern.matcher(expression);
-        StringBuffer sb = new StringBuffer();
-
-        while (matcher.find()) {
-            double operand1 = Double.parseDouble(matcher.group(1));
-            String operator = matcher.group(3);
-            double operand2 = Double.parseDouble(matcher.group(4));
-            double intermediateResult;
-
-            switch (operator) {
-                case "*":
-                    intermediateResult = operand1 * operand2;
-                    break;
-                case "/":
-                    if (operand2 != 0) {
-                        intermediateResult = operand1 / operand2;
-                    } else {
-                        Log.e(TAG, "Division by zero in formula: " + expression);
-                        throw new ArithmeticException("Division by zero");
-                    }
-                    break;
-                default:
-                    throw new IllegalStateException("Unexpected operator: " + operator);
-            }
-            matcher.appendReplacement(sb, String.valueOf(intermediateResult));
-        }
-        matcher.appendTail(sb);
-        return sb.toString();
+        calculatedItem.setValue(newValue);
+        return true;
     }
 
 
     // NEW: Dialog for changing the Report Title
     private void showChangeTitleDialog() {
+        if (currentTemplate == null) return; // Existing report still loading
+
         final EditText input = new EditText(this);
         input.setInputType(InputType.TYPE_CLASS_TEXT | InputType.TYPE_TEXT_FLAG_CAP_SENTENCES);
         input.setHint("Enter Report Title");
@@ -1086,7 +1184,7 @@ public class ReportGeneratorActivity extends AppCompatActivity implements Report
                         userDefinedTitle = newTitle;
                         updateToolbarTitle(userDefinedTitle);
                         // Set flag and update button state
-                        isDataModified = true;
+                        isTitleModified = true;
                         updateSaveButtonState();
                         // Auto-save after title change
                         autoSaveReport();
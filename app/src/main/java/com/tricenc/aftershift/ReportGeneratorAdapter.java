@@ -5,6 +5,7 @@ import android.graphics.Color;
 import android.graphics.drawable.ColorDrawable;
 import android.text.Editable;
 import android.text.InputType;
+import android.text.TextUtils;
 import android.text.TextWatcher;
 import android.util.Log;
 import android.util.TypedValue;
@@ -20,13 +21,21 @@ import androidx.annotation.NonNull;
 import androidx.core.content.ContextCompat;
 import androidx.recyclerview.widget.RecyclerView;
 
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class ReportGeneratorAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
 
     private List<ReportGeneratorActivity.ReportItem> reportItems;
     private Context context;
     private OnItemInteractionListener listener;
+    private final Map<String, Long> itemIds = new HashMap<>(); // internalId -> stable id, kept across template changes
+    // What each row last displayed (null value: not bound since the items were replaced), for dispatchItemChanges()
+    private String[] shownValues = new String[0];
+    private boolean[] shownErrors = new boolean[0];
+    private int[] inputTypes = new int[0]; // Position -> InputType flags, 0 until mapped
 
     public interface OnItemInteractionListener {
         void onRequestFocusNext(int currentAdapterPosition);
@@ -37,6 +46,64 @@ public class ReportGeneratorAdapter extends RecyclerView.Adapter<RecyclerView.Vi
         this.context = context;
         this.reportItems = reportItems;
         this.listener = listener;
+        setHasStableIds(true);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        String internalId = reportItems.get(position).getInternalId();
+        Long id = itemIds.get(internalId);
+        if (id == null) {
+            id = (long) itemIds.size();
+            itemIds.put(internalId, id);
+        }
+        return id;
+    }
+
+    // Call after replacing the item list (e.g. a new template): every row is rebound
+    public void onItemsReplaced() {
+        shownValues = new String[reportItems.size()];
+        shownErrors = new boolean[reportItems.size()];
+        inputTypes = new int[reportItems.size()];
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Call after changing items in place: rebinds only the rows whose value or error state differs from what they
+     * show, one notification per run of adjacent rows. Rows not bound yet pick up the new state when they are.
+     */
+    public void dispatchItemChanges() {
+        int runStart = -1;
+        for (int position = 0; position <= reportItems.size(); position++) {
+            boolean changed = position < reportItems.size() && isChangedSinceBind(position);
+            if (changed && runStart == -1) {
+                runStart = position;
+            } else if (!changed && runStart != -1) {
+                notifyItemRangeChanged(runStart, position - runStart);
+                runStart = -1;
+            }
+        }
+    }
+
+    private boolean isChangedSinceBind(int position) {
+        if (position >= shownValues.length || shownValues[position] == null) {
+            return false;
+        }
+        ReportGeneratorActivity.ReportItem item = reportItems.get(position);
+        String value = item.getValue() != null ? item.getValue() : "";
+        return !value.equals(shownValues[position]) || item.isError() != shownErrors[position];
+    }
+
+    private void recordShown(int position, String value, boolean error) {
+        if (position < 0 || position >= reportItems.size()) {
+            return;
+        }
+        if (position >= shownValues.length) {
+            shownValues = Arrays.copyOf(shownValues, reportItems.size());
+            shownErrors = Arrays.copyOf(shownErrors, reportItems.size());
+        }
+        shownValues[position] = value != null ? value : "";
+        shownErrors[position] = error;
     }
 
     @Override
@@ -50,30 +117,31 @@ public class ReportGeneratorAdapter extends RecyclerView.Adapter<RecyclerView.Vi
         LayoutInflater inflater = LayoutInflater.from(parent.getContext());
         if (viewType == ReportGeneratorActivity.ReportItem.TYPE_FIELD) {
             View view = inflater.inflate(R.layout.generator_field_item, parent, false);
-            return new FieldViewHolder(view);
+            return attachListeners(new FieldViewHolder(view));
         } else if (viewType == ReportGeneratorActivity.ReportItem.TYPE_SECTION_FIELD) {
             View view = inflater.inflate(R.layout.generator_section_field_item, parent, false);
-            return new SectionFieldViewHolder(view);
+            return attachListeners(new SectionFieldViewHolder(view));
         } else { // TYPE_HEADER
             View view = inflater.inflate(R.layout.generator_header_item, parent, false);
             return new HeaderViewHolder(view);
         }
     }
 
+    // One watcher and editor listener per holder for its whole life; they look up the holder's current item when called
+    private <T extends EditableFieldViewHolder> T attachListeners(T holder) {
+        FieldListener fieldListener = new FieldListener(holder);
+        holder.fieldValue.addTextChangedListener(fieldListener);
+        holder.fieldValue.setOnEditorActionListener(fieldListener);
+        return holder;
+    }
+
     @Override
     public void onBindViewHolder(@NonNull RecyclerView.ViewHolder holder, int position) {
         ReportGeneratorActivity.ReportItem item = reportItems.get(position);
+        recordShown(position, item.getValue(), item.isError());
 
-        if (holder.getItemViewType() == ReportGeneratorActivity.ReportItem.TYPE_FIELD) {
-            FieldViewHolder fieldHolder = (FieldViewHolder) holder;
-            ReportGeneratorActivity.ReportField field = (ReportGeneratorActivity.ReportField) item;
-            bindFieldViewHolder(fieldHolder, field, position);
-
-        } else if (holder.getItemViewType() == ReportGeneratorActivity.ReportItem.TYPE_SECTION_FIELD) {
-            SectionFieldViewHolder sectionFieldHolder = (SectionFieldViewHolder) holder;
-            ReportGeneratorActivity.SectionField sectionField = (ReportGeneratorActivity.SectionField) item;
-            bindSectionFieldViewHolder(sectionFieldHolder, sectionField, position);
-
+        if (holder instanceof EditableFieldViewHolder) { // TYPE_FIELD and TYPE_SECTION_FIELD
+            bindEditableField((EditableFieldViewHolder) holder, item, position);
         } else { // TYPE_HEADER
             HeaderViewHolder headerHolder = (HeaderViewHolder) holder;
             ReportGeneratorActivity.ReportHeader header = (ReportGeneratorActivity.ReportHeader) item;
@@ -81,108 +149,98 @@ public class ReportGeneratorAdapter extends RecyclerView.Adapter<RecyclerView.Vi
         }
     }
 
-    private void bindFieldViewHolder(FieldViewHolder fieldHolder, ReportGeneratorActivity.ReportField field, int position) {
-        fieldHolder.fieldLabel.setText(field.getDisplayLabel());
+    // Allocates nothing unless the text changes: setText() is skipped when the EditText already shows the value,
+    // and the input type (which forces a layout) is only reapplied when it differs from the holder's last one
+    private void bindEditableField(EditableFieldViewHolder holder, ReportGeneratorActivity.ReportItem field, int position) {
+        holder.fieldLabel.setText(field.getDisplayLabel());
 
-        if (fieldHolder.fieldValue.getTag() instanceof TextWatcher) {
-            fieldHolder.fieldValue.removeTextChangedListener((TextWatcher) fieldHolder.fieldValue.getTag());
+        holder.binding = true; // The watcher ignores text changes made while binding
+        if (!TextUtils.equals(holder.fieldValue.getText(), field.getValue())) {
+            holder.fieldValue.setText(field.getValue());
         }
-
-        fieldHolder.fieldValue.setText(field.getValue());
-        fieldHolder.fieldValue.setEnabled(field.isEditable()); // Use the isEditable() getter
-
-        int inputType = mapInputTypeStringToInt(field.getInputType());
-        fieldHolder.fieldValue.setInputType(inputType);
-
-        // Set IME options based on input type
-        if ((inputType & InputType.TYPE_TEXT_FLAG_MULTI_LINE) == InputType.TYPE_TEXT_FLAG_MULTI_LINE) {
-            fieldHolder.fieldValue.setSingleLine(false);
-            fieldHolder.fieldValue.setImeOptions(EditorInfo.IME_ACTION_NONE); // Enter key inserts newline
-            fieldHolder.fieldValue.setMinLines(2); // Set minimum lines to 2 for multi-line
-            fieldHolder.fieldValue.setMaxLines(5); // Optional: set a max line limit
-        } else {
-            fieldHolder.fieldValue.setSingleLine(true);
-            fieldHolder.fieldValue.setImeOptions(EditorInfo.IME_ACTION_NEXT);
-            fieldHolder.fieldValue.setMinLines(1);
-            fieldHolder.fieldValue.setMaxLines(1);
-        }
-        
-        fieldHolder.fieldValue.setOnEditorActionListener((v, actionId, event) -> {
-            // Only handle IME_ACTION_NEXT for single-line fields
-            if (fieldHolder.fieldValue.isSingleLine() && actionId == EditorInfo.IME_ACTION_NEXT) {
-                if (listener != null) {
-                    listener.onRequestFocusNext(position);
-                }
-                return true;
+        holder.fieldValue.setEnabled(field.isEditable());
+
+        int inputType = getInputType(position);
+        if (inputType != holder.appliedInputType) {
+            holder.appliedInputType = inputType;
+            holder.fieldValue.setInputType(inputType);
+
+            // Set IME options based on input type
+            if ((inputType & InputType.TYPE_TEXT_FLAG_MULTI_LINE) == InputType.TYPE_TEXT_FLAG_MULTI_LINE) {
+                holder.fieldValue.setSingleLine(false);
+                holder.fieldValue.setImeOptions(EditorInfo.IME_ACTION_NONE); // Enter key inserts newline
+                holder.fieldValue.setMinLines(2); // Set minimum lines to 2 for multi-line
+                holder.fieldValue.setMaxLines(5); // Optional: set a max line limit
+            } else {
+                holder.fieldValue.setSingleLine(true);
+                holder.fieldValue.setImeOptions(EditorInfo.IME_ACTION_NEXT);
+                holder.fieldValue.setMinLines(1);
+                holder.fieldValue.setMaxLines(1);
             }
-            // Allow Enter key to insert newline in multi-line fields
-            return false;
-        });
+        }
+        holder.binding = false;
+
+        holder.fieldValue.setBackgroundResource(backgroundFor(field)); // No-op when the resource is unchanged
+    }
 
-        // Apply error background if item is in error state, otherwise normal background
+    // Error background if the item is in error state; calculated fields get the disabled background
+    private static int backgroundFor(ReportGeneratorActivity.ReportItem field) {
         if (field.isError()) {
-            fieldHolder.fieldValue.setBackgroundResource(R.drawable.rounded_edit_text_error_background);
-        } else {
-            // Use different background for non-editable (calculated) fields
-            if (!field.isEditable()) {
-                fieldHolder.fieldValue.setBackgroundResource(R.drawable.rounded_edit_text_disabled_background); // NEW drawable needed
-            } else {
-                fieldHolder.fieldValue.setBackgroundResource(R.drawable.rounded_edit_text_background);
-            }
+            return R.drawable.rounded_edit_text_error_background;
         }
+        return field.isEditable() ? R.drawable.rounded_edit_text_background : R.drawable.rounded_edit_text_disabled_background;
+    }
 
-        TextWatcher textWatcher = new TextWatcher() {
-            @Override
-            public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
-            @Override
-            public void onTextChanged(CharSequence s, int start, int before, int count) {}
-            @Override
-            public void afterTextChanged(Editable s) {
-                field.setValue(s.toString());
-                // If field was in error and now has text, clear error and revert background
-                if (field.isError() && !s.toString().trim().isEmpty()) {
-                    field.setError(false);
-                    fieldHolder.fieldValue.setBackgroundResource(field.isEditable() ? R.drawable.rounded_edit_text_background : R.drawable.rounded_edit_text_disabled_background);
-                }
-                // NEW: Notify activity for potential recalculations, only if field is editable
-                if (listener != null && field.isEditable()) {
-                    listener.onFieldValueUpdated(field.getInternalId(), s.toString());
-                }
-            }
-        };
-        fieldHolder.fieldValue.addTextChangedListener(textWatcher);
-        fieldHolder.fieldValue.setTag(textWatcher);
+    // InputType flags for the item at a position, mapped from its input type string once per item list
+    private int getInputType(int position) {
+        if (position >= inputTypes.length) {
+            inputTypes = Arrays.copyOf(inputTypes, reportItems.size());
+        }
+        int inputType = inputTypes[position];
+        if (inputType == 0) { // Every mapped type has a class, so 0 means not mapped yet
+            inputType = mapInputTypeStringToInt(reportItems.get(position).getInputType());
+            inputTypes[position] = inputType;
+        }
+        return inputType;
     }
 
-    private void bindSectionFieldViewHolder(SectionFieldViewHolder sectionFieldHolder, ReportGeneratorActivity.SectionField sectionField, int position) {
-        sectionFieldHolder.fieldLabel.setText(sectionField.getDisplayLabel());
+    private final class FieldListener implements TextWatcher, TextView.OnEditorActionListener {
+        private final EditableFieldViewHolder holder;
 
-        if (sectionFieldHolder.fieldValue.getTag() instanceof TextWatcher) {
-            sectionFieldHolder.fieldValue.removeTextChangedListener((TextWatcher) sectionFieldHolder.fieldValue.getTag());
+        FieldListener(EditableFieldViewHolder holder) {
+            this.holder = holder;
         }
 
-        sectionFieldHolder.fieldValue.setText(sectionField.getValue());
-        sectionFieldHolder.fieldValue.setEnabled(sectionField.isEditable()); // Use the isEditable() getter
-
-        int inputType = mapInputTypeStringToInt(sectionField.getInputType());
-        sectionFieldHolder.fieldValue.setInputType(inputType);
-
-        // Section fields are typically single line, but we'll apply the same logic just in case
-        if ((inputType & InputType.TYPE_TEXT_FLAG_MULTI_LINE) == InputType.TYPE_TEXT_FLAG_MULTI_LINE) {
-            sectionFieldHolder.fieldValue.setSingleLine(false);
-            sectionFieldHolder.fieldValue.setImeOptions(EditorInfo.IME_ACTION_NONE); // Enter key inserts newline
-            sectionFieldHolder.fieldValue.setMinLines(2);
-            sectionFieldHolder.fieldValue.setMaxLines(5);
-        } else {
-            sectionFieldHolder.fieldValue.setSingleLine(true);
-            sectionFieldHolder.fieldValue.setImeOptions(EditorInfo.IME_ACTION_NEXT);
-            sectionFieldHolder.fieldValue.setMinLines(1);
-            sectionFieldHolder.fieldValue.setMaxLines(1);
+        @Override
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
+        @Override
+        public void onTextChanged(CharSequence s, int start, int before, int count) {}
+        @Override
+        public void afterTextChanged(Editable s) {
+            int position = holder.getBindingAdapterPosition();
+            if (holder.binding || position == RecyclerView.NO_POSITION) {
+                return;
+            }
+            ReportGeneratorActivity.ReportItem field = reportItems.get(position);
+            String value = s.toString();
+            field.setValue(value);
+            // If field was in error and now has text, clear error and revert background
+            if (field.isError() && !value.trim().isEmpty()) {
+                field.setError(false);
+                holder.fieldValue.setBackgroundResource(backgroundFor(field));
+            }
+            recordShown(position, value, field.isError()); // Already on screen
+            // NEW: Notify activity for potential recalculations, only if field is editable
+            if (listener != null && field.isEditable()) {
+                listener.onFieldValueUpdated(field.getInternalId(), value);
+            }
         }
 
-        sectionFieldHolder.fieldValue.setOnEditorActionListener((v, actionId, event) -> {
+        @Override
+        public boolean onEditorAction(TextView v, int actionId, KeyEvent event) {
             // Only handle IME_ACTION_NEXT for single-line fields
-            if (sectionFieldHolder.fieldValue.isSingleLine() && actionId == EditorInfo.IME_ACTION_NEXT) {
+            int position = holder.getBindingAdapterPosition();
+            if (holder.fieldValue.isSingleLine() && actionId == EditorInfo.IME_ACTION_NEXT && position != RecyclerView.NO_POSITION) {
                 if (listener != null) {
                     listener.onRequestFocusNext(position);
                 }
@@ -190,41 +248,7 @@ public class ReportGeneratorAdapter extends RecyclerView.Adapter<RecyclerView.Vi
             }
             // Allow Enter key to insert newline in multi-line fields
             return false;
-        });
-
-        // Apply error background if item is in error state, otherwise normal background
-        if (sectionField.isError()) {
-            sectionFieldHolder.fieldValue.setBackgroundResource(R.drawable.rounded_edit_text_error_background);
-        } else {
-            // Use different background for non-editable (calculated) fields
-            if (!sectionField.isEditable()) {
-                sectionFieldHolder.fieldValue.setBackgroundResource(R.drawable.rounded_edit_text_disabled_background); // NEW drawable needed
-            } else {
-                sectionFieldHolder.fieldValue.setBackgroundResource(R.drawable.rounded_edit_text_background);
-            }
         }
-
-        TextWatcher textWatcher = new TextWatcher() {
-            @Override
-            public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
-            @Override
-            public void onTextChanged(CharSequence s, int start, int before, int count) {}
-            @Override
-            public void afterTextChanged(Editable s) {
-                sectionField.setValue(s.toString());
-                // If field was in error and now has text, clear error and revert background
-                if (sectionField.isError() && !s.toString().trim().isEmpty()) {
-                    sectionField.setError(false);
-                    sectionFieldHolder.fieldValue.setBackgroundResource(sectionField.isEditable() ? R.drawable.rounded_edit_text_background : R.drawable.rounded_edit_text_disabled_background);
-                }
-                // NEW: Notify activity for potential recalculations, only if field is editable
-                if (listener != null && sectionField.isEditable()) {
-                    listener.onFieldValueUpdated(sectionField.getInternalId(), s.toString());
-                }
-            }
-        };
-        sectionFieldHolder.fieldValue.addTextChangedListener(textWatcher);
-        sectionFieldHolder.fieldValue.setTag(textWatcher);
     }
 
     private void bindHeaderViewHolder(HeaderViewHolder headerHolder, ReportGeneratorActivity.ReportHeader header) {
@@ -267,50 +291,29 @@ public class ReportGeneratorAdapter extends RecyclerView.Adapter<RecyclerView.Vi
         return reportItems.size();
     }
 
-    public void highlightField(int position) {
-        // The isError flag is set on the ReportItem itself in ReportGeneratorActivity.highlightEmptyFields
-        notifyItemChanged(position); // This will cause onBindViewHolder to be called for the item
-    }
-
-    @Override
-    public void onViewRecycled(@NonNull RecyclerView.ViewHolder holder) {
-        super.onViewRecycled(holder);
-        if (holder instanceof FieldViewHolder) {
-            FieldViewHolder fieldHolder = (FieldViewHolder) holder;
-            if (fieldHolder.fieldValue.getTag() instanceof TextWatcher) {
-                fieldHolder.fieldValue.removeTextChangedListener((TextWatcher) fieldHolder.fieldValue.getTag());
-                fieldHolder.fieldValue.setTag(null);
-            }
-            fieldHolder.fieldValue.setOnEditorActionListener(null);
-        } else if (holder instanceof SectionFieldViewHolder) {
-            SectionFieldViewHolder sectionFieldHolder = (SectionFieldViewHolder) holder;
-            if (sectionFieldHolder.fieldValue.getTag() instanceof TextWatcher) {
-                sectionFieldHolder.fieldValue.removeTextChangedListener((TextWatcher) sectionFieldHolder.fieldValue.getTag());
-                sectionFieldHolder.fieldValue.setTag(null);
-            }
-            sectionFieldHolder.fieldValue.setOnEditorActionListener(null);
-        }
-    }
-
-    public static class FieldViewHolder extends RecyclerView.ViewHolder {
+    // Field rows; both layouts have a label and an EditText
+    public abstract static class EditableFieldViewHolder extends RecyclerView.ViewHolder {
         TextView fieldLabel;
         EditText fieldValue;
+        int appliedInputType = -1; // InputType last applied to fieldValue
+        boolean binding; // Set while onBindViewHolder changes the text
 
-        public FieldViewHolder(@NonNull View itemView) {
+        EditableFieldViewHolder(@NonNull View itemView) {
             super(itemView);
             fieldLabel = itemView.findViewById(R.id.fieldLabel);
             fieldValue = itemView.findViewById(R.id.fieldValue);
         }
     }
 
-    public static class SectionFieldViewHolder extends RecyclerView.ViewHolder {
-        TextView fieldLabel;
-        EditText fieldValue;
+    public static class FieldViewHolder extends EditableFieldViewHolder {
+        public FieldViewHolder(@NonNull View itemView) {
+            super(itemView);
+        }
+    }
 
+    public static class SectionFieldViewHolder extends EditableFieldViewHolder {
         public SectionFieldViewHolder(@NonNull View itemView) {
             super(itemView);
-            fieldLabel = itemView.findViewById(R.id.fieldLabel);
-            fieldValue = itemView.findViewById(R.id.fieldValue);
         }
     }
 
@@ -0,0 +1,369 @@
+package com.tricenc.aftershift;
+
+import android.content.Context;
+import android.database.SQLException;
+import android.os.Handler;
+import android.os.CancellationSignal;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Asynchronous front for {@link ReportDatabase}.
+ * Writes are serialized on a single background writer thread, reads run on a small reader pool,
+ * and results are delivered back on the main looper. Activities should never touch SQLite directly.
+ *
+ * The writer thread also owns the {@link EditJournal}: edits journaled before a save are always written ahead of it,
+ * and a journal left by a crashed process is replayed into its report before any other write or report read.
+ */
+public class ReportRepository {
+    private static final String TAG = "ReportRepository";
+    private static final int READER_THREADS = 2;
+
+    // Result delivery on the main thread. If the operation throws, onError is called instead, after the error is logged.
+    public interface Callback<T> {
+        void onResult(T result);
+
+        default void onError(Exception error) {
+            // Nothing to do by default; callers that must react to a failure pass callback(onResult, onError)
+        }
+    }
+
+    public interface ErrorCallback {
+        void onError(Exception error);
+    }
+
+    // A callback with both paths, for call sites written as lambdas
+    public static <T> Callback<T> callback(Callback<T> onResult, ErrorCallback onError) {
+        return new Callback<T>() {
+            @Override
+            public void onResult(T result) {
+                onResult.onResult(result);
+            }
+
+            @Override
+            public void onError(Exception error) {
+                onError.onError(error);
+            }
+        };
+    }
+
+    private static ReportRepository instance;
+
+    private final Context appContext;
+    private final ReportDatabase reportDatabase;
+    private final EditJournal editJournal; // Writer thread only
+    private final ExecutorService writeExecutor;
+    private final ExecutorService readExecutor;
+    private final Handler mainHandler;
+    private final Gson gson = JsonAdapters.gson();
+    private final Future<Long> journalRecovery; // Id of the report the previous process's journal was replayed into, or -1
+
+    private ReportRepository(Context context) {
+        this.appContext = context.getApplicationContext();
+        this.reportDatabase = ReportDatabase.getInstance(context);
+        this.editJournal = new EditJournal(appContext.getFilesDir());
+        this.writeExecutor = Executors.newSingleThreadExecutor(new BackgroundThreadFactory("ReportDb-writer"));
+        this.readExecutor = Executors.newFixedThreadPool(READER_THREADS, new BackgroundThreadFactory("ReportDb-reader"));
+        this.mainHandler = new Handler(Looper.getMainLooper());
+        // First task on the writer, so it runs before anything can append to or reset the journal
+        this.journalRecovery = submit(writeExecutor, this::recoverEditJournal, null);
+    }
+
+    public static synchronized ReportRepository getInstance(Context context) {
+        if (instance == null) {
+            instance = new ReportRepository(context);
+        }
+        return instance;
+    }
+
+    // --- Writes (single serialized writer) ---
+
+    public Future<Long> saveReport(String title, String date, String preview, String data, String templateId, @Nullable Callback<Long> callback) {
+        return submit(writeExecutor, () -> reportDatabase.saveReport(title, date, preview, data, templateId), callback);
+    }
+
+    public Future<Void> updateReport(long id, String title, String date, String preview, String data, String templateId, @Nullable Callback<Void> callback) {
+        return submit(writeExecutor, () -> {
+            reportDatabase.updateReport(id, title, date, preview, data, templateId);
+            return null;
+        }, callback);
+    }
+
+    /**
+     * Inserts the report if {@code reportId} is still -1, otherwise updates it.
+     * The id is read and assigned on the writer thread, so saves queued back to back while the
+     * first insert is still in flight update that row instead of inserting duplicates.
+     * The edit journal is discarded once the row is written, since the row now holds every journaled edit. If the
+     * write fails the journal is kept and the callback's onError is invoked.
+     */
+    public Future<Long> saveOrUpdateReport(AtomicLong reportId, String title, String date, String preview, String data, String templateId, @Nullable Callback<Long> callback) {
+        return submit(writeExecutor, () -> {
+            long id = reportId.get();
+            if (id == -1) {
+                id = reportDatabase.saveReport(title, date, preview, data, templateId); // Throws rather than returning -1
+                reportId.set(id);
+            } else if (!reportDatabase.updateReport(id, title, date, preview, data, templateId)) {
+                throw new SQLException("Report " + id + " no longer exists");
+            }
+            editJournal.reset();
+            return id;
+        }, callback);
+    }
+
+    /**
+     * Journals edits (field id -> value, including recalculated fields) to the report being edited. Far cheaper than
+     * a save: one small append and fsync instead of rewriting the report row, its field values and search index.
+     * The map must not be modified afterwards.
+     */
+    public void appendToEditJournal(AtomicLong reportId, String templateId, Map<String, String> edits) {
+        submit(writeExecutor, () -> {
+            editJournal.append(reportId.get(), templateId, edits);
+            return null;
+        }, null);
+    }
+
+    // For when the editor closes without saving because nothing differs from the database
+    public void discardEditJournal() {
+        submit(writeExecutor, () -> {
+            editJournal.reset();
+            return null;
+        }, null);
+    }
+
+    // Delivers the id of the report recovered from the previous process's edit journal, or -1 if there was none.
+    public Future<Long> getRecoveredReportId(@Nullable Callback<Long> callback) {
+        return submit(readExecutor, journalRecovery::get, callback);
+    }
+
+    public Future<Void> deleteReport(long id, @Nullable Callback<Void> callback) {
+        return submit(writeExecutor, () -> {
+            reportDatabase.deleteReport(id);
+            return null;
+        }, callback);
+    }
+
+    // --- Reads (reader pool) ---
+
+    // Pass the last summary already shown as {@code after} to fetch the next page, or null for the first page.
+    public Future<List<MainActivity.SavedReport>> getReportSummaries(@Nullable MainActivity.SavedReport after, int limit, @Nullable Callback<List<MainActivity.SavedReport>> callback) {
+        return submit(readExecutor, () -> {
+            awaitJournalRecovery();
+            return reportDatabase.getReportSummaries(after, limit);
+        }, callback);
+    }
+
+    public Future<Integer> getReportCount(@Nullable Callback<Integer> callback) {
+        return submit(readExecutor, () -> {
+            awaitJournalRecovery(); // A recovered report that was never saved is inserted by the recovery
+            return reportDatabase.getReportCount();
+        }, callback);
+    }
+
+    public Future<MainActivity.SavedReport> getReport(long id, @Nullable Callback<MainActivity.SavedReport> callback) {
+        return submit(readExecutor, () -> {
+            awaitJournalRecovery(); // An editor restored after a crash must see its recovered edits
+            return reportDatabase.getReport(id);
+        }, callback);
+    }
+
+    public Future<ReportDatabase.FieldStats> getFieldStats(String fieldId, long fromMillis, long toMillis, @Nullable Callback<ReportDatabase.FieldStats> callback) {
+        return submit(readExecutor, () -> reportDatabase.getFieldStats(fieldId, fromMillis, toMillis), callback);
+    }
+
+    public Future<List<double[]>> getFieldTrend(String fieldId, long fromMillis, long toMillis, @Nullable Callback<List<double[]>> callback) {
+        return submit(readExecutor, () -> reportDatabase.getFieldTrend(fieldId, fromMillis, toMillis), callback);
+    }
+
+    // Newest first
+    public Future<List<ReportDatabase.Revision>> getRevisions(long reportId, @Nullable Callback<List<ReportDatabase.Revision>> callback) {
+        return submit(readExecutor, () -> reportDatabase.getRevisions(reportId), callback);
+    }
+
+    // Field values as of a past revision, or null if there is no such revision
+    public Future<Map<String, String>> getRevisionValues(long reportId, int revision, @Nullable Callback<Map<String, String>> callback) {
+        return submit(readExecutor, () -> reportDatabase.getRevisionValues(reportId, revision), callback);
+    }
+
+    // Month-to-date baselines keyed by MTD field id; pass reportId -1 for a report that has not been saved yet.
+    public Future<Map<String, Long>> getMtdBaselines(String templateId, long reportId, long createdMillis, List<TemplateField> mtdFields, @Nullable Callback<Map<String, Long>> callback) {
+        return submit(readExecutor, () -> reportDatabase.getMtdBaselines(templateId, reportId, createdMillis, mtdFields), callback);
+    }
+
+    /**
+     * Ranked full-text search. Cancelling the returned future also aborts the running SQLite query,
+     * so callers searching as the user types should cancel the previous search before starting a new one.
+     */
+    public Future<List<MainActivity.SavedReport>> searchReports(String query, int limit, @Nullable Callback<List<MainActivity.SavedReport>> callback) {
+        CancellationSignal cancellationSignal = new CancellationSignal();
+        return submit(readExecutor, () -> reportDatabase.searchReports(query, limit, cancellationSignal), callback, cancellationSignal);
+    }
+
+    public Future<Boolean> hasReportsUsingTemplate(String templateId, @Nullable Callback<Boolean> callback) {
+        return submit(readExecutor, () -> reportDatabase.hasReportsUsingTemplate(templateId), callback);
+    }
+
+    // --- Edit journal recovery ---
+
+    /**
+     * Replays a journal left by a process that died before saving: the journaled values are merged over the report's
+     * saved data (or the template defaults, for a report that was never inserted) and written as a normal save.
+     * Returns the report id, or -1 if there was nothing to recover. The journal is discarded either way.
+     */
+    private long recoverEditJournal() {
+        EditJournal.Contents journaled;
+        try {
+            journaled = editJournal.read();
+        } catch (IOException e) {
+            Log.e(TAG, "Unreadable edit journal discarded", e);
+            journaled = null;
+        }
+        if (journaled == null) {
+            editJournal.reset();
+            return -1;
+        }
+
+        try {
+            MainActivity.SavedReport saved = journaled.getReportId() != -1 ? reportDatabase.getReport(journaled.getReportId()) : null;
+            String templateId = saved != null ? saved.getTemplateId() : journaled.getTemplateId();
+            ReportTemplate template = TemplateManager.getInstance(appContext).getTemplate(templateId);
+
+            Map<String, String> values = null;
+            if (saved != null) {
+                try {
+                    values = gson.fromJson(saved.getReportData(), JsonAdapters.REPORT_VALUES_TYPE);
+                } catch (JsonParseException e) {
+                    Log.e(TAG, "Report " + saved.getId() + " has unreadable data; recovering the journaled fields only", e);
+                }
+            }
+            if (values == null) {
+                values = new HashMap<>();
+            }
+            if (template != null) {
+                for (TemplateField field : template.getFields()) {
+                    if (field.getType() != TemplateField.TYPE_HEADER) {
+                        values.putIfAbsent(field.getInternalId(), field.getDefaultValue() != null ? field.getDefaultValue() : "");
+                    }
+                }
+            }
+            values.putAll(journaled.getValues());
+
+            String dateTime = new SimpleDateFormat("dd/MM/yy HH:mm", Locale.getDefault()).format(new Date());
+            String data = gson.toJson(values, JsonAdapters.REPORT_VALUES_TYPE);
+            String preview = template != null ? renderPreview(template, values) : saved != null ? saved.getPreviewText() : "";
+            long id;
+            if (saved != null) {
+                id = saved.getId();
+                reportDatabase.updateReport(id, saved.getTitle(), dateTime, preview, data, templateId);
+            } else {
+                String name = template != null ? template.getName() : "Report";
+                String title = name + " - " + new SimpleDateFormat("dd/MM/yy", Locale.getDefault()).format(new Date());
+                id = reportDatabase.saveReport(title, dateTime, preview, data, templateId);
+            }
+            Log.i(TAG, "Recovered " + journaled.getValues().size() + " unsaved field(s) into report " + id);
+            return id;
+        } finally {
+            editJournal.reset();
+        }
+    }
+
+    // The preview line as ReportGeneratorActivity renders it; fields without a value render as "0"
+    private static String renderPreview(ReportTemplate template, Map<String, String> values) {
+        CompiledTemplate compiled = template.getCompiledTemplate();
+        return compiled.getPreviewFormat().render(ordinal -> {
+            String value = values.get(compiled.getField(ordinal).getInternalId());
+            return value != null ? value : "0";
+        });
+    }
+
+    private void awaitJournalRecovery() {
+        try {
+            journalRecovery.get();
+        } catch (ExecutionException e) {
+            // Already logged; read whatever the database has
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private <T> Future<T> submit(ExecutorService executor, Callable<T> work, @Nullable Callback<T> callback) {
+        return submit(executor, work, callback, null);
+    }
+
+    private <T> Future<T> submit(ExecutorService executor, Callable<T> work, @Nullable Callback<T> callback, @Nullable CancellationSignal cancellationSignal) {
+        FutureTask<T> task = new FutureTask<T>(work) {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                if (cancellationSignal != null) {
+                    cancellationSignal.cancel();
+                }
+                return super.cancel(mayInterruptIfRunning);
+            }
+
+            @Override
+            protected void done() {
+                if (isCancelled()) {
+                    return;
+                }
+                T result;
+                try {
+                    result = get();
+                } catch (ExecutionException | InterruptedException e) {
+                    Throwable cause = e.getCause() != null ? e.getCause() : e;
+                    Log.e(TAG, "Database operation failed", cause);
+                    if (callback != null) {
+                        Exception error = cause instanceof Exception ? (Exception) cause : e;
+                        mainHandler.post(() -> callback.onError(error));
+                    }
+                    return;
+                }
+                if (callback != null) {
+                    mainHandler.post(() -> callback.onResult(result));
+                }
+            }
+        };
+        executor.execute(task);
+        return task;
+    }
+
+    private static class BackgroundThreadFactory implements ThreadFactory {
+        private final String namePrefix;
+        private final AtomicInteger count = new AtomicInteger(1);
+
+        BackgroundThreadFactory(String namePrefix) {
+            this.namePrefix = namePrefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runnable.run();
+            }, namePrefix + "-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
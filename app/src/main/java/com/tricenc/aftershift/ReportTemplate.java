@@ -1,14 +1,39 @@
 package com.tricenc.aftershift;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 public class ReportTemplate {
+    // Fields whose plain {field_id} placeholder in the report format disappears with the newline after it when the field
+    // is empty (see TemplateFormat). Templates without "collapsibleFields" predate optional lines and get the notes
+    // field, which the app always treated this way
+    private static final List<String> LEGACY_COLLAPSIBLE_FIELDS = Collections.singletonList("additional_notes");
+
     private String templateId; // Unique ID for the template
     private String name;       // Display name for the template
     private String description;
     private List<TemplateField> fields; // List of fields/headers
     private String reportFormat; // String for SMS output, with placeholders
     private String previewFormat; // String for main activity preview, with placeholders
+    private int decimalScale = TemplateField.NO_DECIMAL_SCALE; // Default decimal mode for derived fields; fields may override
+    private String rounding; // Default rounding for decimal mode; null means "half_up"
+    private List<String> collapsibleFields; // Null if the template does not set it; see LEGACY_COLLAPSIBLE_FIELDS
+    private transient FieldDependencyGraph dependencyGraph; // Built on first use, never serialized
+    private transient TemplateFormat compiledReportFormat; // Tokenized on first use, never serialized
+    private transient TemplateFormat compiledPreviewFormat;
+    private transient CompiledTemplate compiledTemplate; // Built on first use and shared by every report using this template
+
+    public ReportTemplate(String templateId, String name, String description, List<TemplateField> fields, String reportFormat, String previewFormat, int decimalScale, String rounding, List<String> collapsibleFields) {
+        this(templateId, name, description, fields, reportFormat, previewFormat, decimalScale, rounding);
+        this.collapsibleFields = collapsibleFields;
+    }
+
+    public ReportTemplate(String templateId, String name, String description, List<TemplateField> fields, String reportFormat, String previewFormat, int decimalScale, String rounding) {
+        this(templateId, name, description, fields, reportFormat, previewFormat);
+        this.decimalScale = decimalScale;
+        this.rounding = rounding;
+    }
 
     public ReportTemplate(String templateId, String name, String description, List<TemplateField> fields, String reportFormat, String previewFormat) {
         this.templateId = templateId;
@@ -26,6 +51,40 @@ public class ReportTemplate {
     public List<TemplateField> getFields() { return fields; }
     public String getReportFormat() { return reportFormat; }
     public String getPreviewFormat() { return previewFormat; }
+    public int getDecimalScale() { return decimalScale; }
+    public String getRounding() { return rounding; }
+    public List<String> getCollapsibleFields() { return collapsibleFields; } // Null when the template does not set it
+
+    public synchronized TemplateFormat getCompiledReportFormat() {
+        if (compiledReportFormat == null) {
+            compiledReportFormat = TemplateFormat.compile(reportFormat, fields,
+                    collapsibleFields != null ? collapsibleFields : LEGACY_COLLAPSIBLE_FIELDS);
+        }
+        return compiledReportFormat;
+    }
+
+    public synchronized TemplateFormat getCompiledPreviewFormat() {
+        if (compiledPreviewFormat == null) {
+            compiledPreviewFormat = TemplateFormat.compile(previewFormat, fields);
+        }
+        return compiledPreviewFormat;
+    }
+
+    // Throws IllegalArgumentException if a formula is malformed or formulas depend on each other in a cycle
+    public synchronized FieldDependencyGraph getDependencyGraph() {
+        if (dependencyGraph == null) {
+            dependencyGraph = FieldDependencyGraph.build(fields != null ? fields : new ArrayList<>());
+        }
+        return dependencyGraph;
+    }
+
+    // Layout, slots, formulas and formats for the report screen. Never throws; see CompiledTemplate.getFormulaError()
+    public synchronized CompiledTemplate getCompiledTemplate() {
+        if (compiledTemplate == null) {
+            compiledTemplate = CompiledTemplate.compile(this);
+        }
+        return compiledTemplate;
+    }
 
     // No setters needed for immutable template data once loaded
 }
@@ -2,6 +2,10 @@ package com.tricenc.aftershift;
 
 import android.app.AlertDialog;
 import android.content.Context;
+import android.graphics.Typeface;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.StyleSpan;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -10,54 +14,73 @@ import android.widget.ImageButton;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.AsyncListDiffer;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.Date;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Locale;
+import java.util.Objects;
 
 public class SavedReportsAdapter extends RecyclerView.Adapter<SavedReportsAdapter.SavedReportViewHolder> {
 
-    private List<MainActivity.SavedReport> savedReports;
+    // Rows are matched by report id and rebound only when something they display changed
+    private static final DiffUtil.ItemCallback<MainActivity.SavedReport> DIFF_CALLBACK = new DiffUtil.ItemCallback<MainActivity.SavedReport>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull MainActivity.SavedReport oldReport, @NonNull MainActivity.SavedReport newReport) {
+            return oldReport.getId() == newReport.getId();
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull MainActivity.SavedReport oldReport, @NonNull MainActivity.SavedReport newReport) {
+            return Objects.equals(oldReport.getTitle(), newReport.getTitle())
+                    && Objects.equals(oldReport.getDate(), newReport.getDate())
+                    && Objects.equals(oldReport.getCreatedDate(), newReport.getCreatedDate())
+                    && Objects.equals(oldReport.getPreviewText(), newReport.getPreviewText())
+                    && Objects.equals(oldReport.getSearchSnippet(), newReport.getSearchSnippet());
+        }
+    };
+
+    private final AsyncListDiffer<MainActivity.SavedReport> differ = new AsyncListDiffer<>(this, DIFF_CALLBACK); // Diffs off the main thread
     private Context context;
     private OnReportInteractionListener listener;
+    private final RelativeDateLabels dateLabels = new RelativeDateLabels();
+    private int shownLabelGeneration; // Generation of the labels the bound rows show
 
     public interface OnReportInteractionListener {
         void onReportClick(MainActivity.SavedReport report);
         void onReportDelete(MainActivity.SavedReport report);
     }
 
-    public SavedReportsAdapter(Context context, List<MainActivity.SavedReport> savedReports, OnReportInteractionListener listener) {
+    public SavedReportsAdapter(Context context, OnReportInteractionListener listener) {
         this.context = context;
-        this.savedReports = savedReports;
         this.listener = listener;
+        setHasStableIds(true);
     }
 
-    @NonNull
-    @Override
-    public SavedReportViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
-        View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.saved_report_item, parent, false);
-        return new SavedReportViewHolder(view);
+    // Shows a copy of the given list; only rows that were added, removed, moved or changed are rebound
+    public void submitList(List<MainActivity.SavedReport> reports) {
+        differ.submitList(new ArrayList<>(reports));
     }
 
     @Override
-    public void onBindViewHolder(@NonNull SavedReportViewHolder holder, int position) {
-        MainActivity.SavedReport report = savedReports.get(position);
-
-        holder.titleText.setText(report.getTitle());
-        
-        // Use the enhanced formatter for both dates
-        holder.dateText.setText(String.format("Last Edited: %s", formatDateWithRelativeTime(report.getDate())));
-        holder.createdDateText.setText(String.format("Created: %s", formatDateWithRelativeTime(report.getCreatedDate())));
-        
-        holder.previewText.setText(report.getPreviewText());
-
-        holder.itemView.setOnClickListener(v -> listener.onReportClick(report));
+    public long getItemId(int position) {
+        return differ.getCurrentList().get(position).getId();
+    }
 
+    @NonNull
+    @Override
+    public SavedReportViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.saved_report_item, parent, false);
+        SavedReportViewHolder holder = new SavedReportViewHolder(view);
+        // Click listeners are set once per holder and resolve its current report when clicked
+        holder.itemView.setOnClickListener(v -> {
+            MainActivity.SavedReport report = reportAt(holder);
+            if (report != null) listener.onReportClick(report);
+        });
         holder.deleteButton.setOnClickListener(v -> {
+            MainActivity.SavedReport report = reportAt(holder);
+            if (report == null) return;
             new AlertDialog.Builder(context)
                 .setTitle("Delete Report")
                 .setMessage("Are you sure you want to delete this report?")
@@ -65,78 +88,77 @@ public class SavedReportsAdapter extends RecyclerView.Adapter<SavedReportsAdapte
                 .setNegativeButton("Cancel", null)
                 .show();
         });
+        return holder;
+    }
+
+    private MainActivity.SavedReport reportAt(SavedReportViewHolder holder) {
+        int position = holder.getBindingAdapterPosition();
+        return position != RecyclerView.NO_POSITION ? differ.getCurrentList().get(position) : null;
     }
 
     @Override
-    public int getItemCount() {
-        return savedReports.size();
+    public void onBindViewHolder(@NonNull SavedReportViewHolder holder, int position) {
+        MainActivity.SavedReport report = differ.getCurrentList().get(position);
+
+        holder.titleText.setText(report.getTitle());
+
+        // Relative labels are computed once per report and day, not per bind
+        int generation = dateLabels.getGeneration();
+        if (report.getLabelGeneration() != generation) {
+            report.setDateLabels("Last Edited: " + dateLabels.format(report.getLastEditedMillis(), report.getDate()),
+                    "Created: " + dateLabels.format(report.getCreatedMillis(), report.getCreatedDate()), generation);
+        }
+        holder.dateText.setText(report.getLastEditedLabel());
+        holder.createdDateText.setText(report.getCreatedLabel());
+        
+        if (report.getSearchSnippet() != null) {
+            holder.previewText.setText(highlightSnippet(report.getSearchSnippet()));
+        } else {
+            holder.previewText.setText(report.getPreviewText());
+        }
     }
 
-    /**
-     * Formats the date string to use relative time (Today, Yesterday, DayOfWeek) if recent,
-     * otherwise uses the full date and time.
-     * @param dateString The date string in "dd/MM/yy HH:mm" format.
-     * @return The formatted date string.
-     */
-    private String formatDateWithRelativeTime(String dateString) {
-        SimpleDateFormat dbFormat = new SimpleDateFormat("dd/MM/yy HH:mm", Locale.getDefault());
-        SimpleDateFormat displayTimeFormat = new SimpleDateFormat("HH:mm", Locale.getDefault());
-        SimpleDateFormat displayDayOfWeekTimeFormat = new SimpleDateFormat("EEEE HH:mm", Locale.getDefault());
-        SimpleDateFormat displayDateFormat = new SimpleDateFormat("dd/MM/yy HH:mm", Locale.getDefault());
-
-        try {
-            Date reportDate = dbFormat.parse(dateString);
-            if (reportDate == null) return dateString;
-
-            Calendar today = Calendar.getInstance();
-            today.setTime(new Date());
-            Calendar yesterday = Calendar.getInstance();
-            yesterday.setTime(new Date());
-            yesterday.add(Calendar.DAY_OF_YEAR, -1);
-            
-            Calendar sevenDaysAgo = Calendar.getInstance();
-            sevenDaysAgo.setTime(new Date());
-            sevenDaysAgo.add(Calendar.DAY_OF_YEAR, -7);
-
-            Calendar reportCal = Calendar.getInstance();
-            reportCal.setTime(reportDate);
-            
-            // Set time components of comparison dates to 00:00:00 for accurate day comparison
-            clearTime(today);
-            clearTime(yesterday);
-            clearTime(sevenDaysAgo);
-            clearTime(reportCal);
-            
-            // Re-parse the original date to get the correct time component back
-            reportCal.setTime(reportDate);
-
-            if (isSameDay(reportCal, today)) {
-                return "Today " + displayTimeFormat.format(reportDate);
-            } else if (isSameDay(reportCal, yesterday)) {
-                return "Yesterday " + displayTimeFormat.format(reportDate);
-            } else if (reportCal.after(sevenDaysAgo)) {
-                // Within the last 7 days (excluding today and yesterday, which are already handled)
-                return displayDayOfWeekTimeFormat.format(reportDate); // e.g., "Wednesday 10:30"
-            } else {
-                return displayDateFormat.format(reportDate);
-            }
+    @Override
+    public int getItemCount() {
+        return differ.getCurrentList().size();
+    }
 
-        } catch (ParseException e) {
-            e.printStackTrace();
-            return dateString;
+    // Rebinds every row if the relative date labels went stale (e.g. "Today" after midnight)
+    public void refreshDateLabels() {
+        int generation = dateLabels.getGeneration();
+        if (generation != shownLabelGeneration) {
+            shownLabelGeneration = generation;
+            notifyItemRangeChanged(0, getItemCount());
         }
     }
-    
-    private void clearTime(Calendar calendar) {
-        calendar.set(Calendar.HOUR_OF_DAY, 0);
-        calendar.set(Calendar.MINUTE, 0);
-        calendar.set(Calendar.SECOND, 0);
-        calendar.set(Calendar.MILLISECOND, 0);
+
+    // Call when the time zone or clock changed, before refreshDateLabels()
+    public void onClockChanged() {
+        dateLabels.onClockChanged();
+    }
+
+    public long getNextMidnightMillis() {
+        return dateLabels.getNextMidnightMillis();
     }
 
-    private boolean isSameDay(Calendar cal1, Calendar cal2) {
-        return cal1.get(Calendar.YEAR) == cal2.get(Calendar.YEAR) &&
-               cal1.get(Calendar.DAY_OF_YEAR) == cal2.get(Calendar.DAY_OF_YEAR);
+    // Strips the match markers from a search snippet and bolds the text between them.
+    private CharSequence highlightSnippet(String snippet) {
+        SpannableStringBuilder builder = new SpannableStringBuilder();
+        int matchStart = -1;
+        for (int i = 0; i < snippet.length(); i++) {
+            char c = snippet.charAt(i);
+            if (c == ReportDatabase.SNIPPET_MATCH_START) {
+                matchStart = builder.length();
+            } else if (c == ReportDatabase.SNIPPET_MATCH_END) {
+                if (matchStart != -1) {
+                    builder.setSpan(new StyleSpan(Typeface.BOLD), matchStart, builder.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                    matchStart = -1;
+                }
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder;
     }
 
     public static class SavedReportViewHolder extends RecyclerView.ViewHolder {
@@ -7,6 +7,13 @@ public class TemplateField {
     public static final int TYPE_HEADER = 1;
     public static final int TYPE_SECTION_FIELD = 2;
 
+    // Reset periods for month-to-date (running total) fields
+    public static final String MTD_RESET_MONTH = "month";
+    public static final String MTD_RESET_YEAR = "year";
+
+    // decimalScale when a field does not set one (it then follows its template)
+    public static final int NO_DECIMAL_SCALE = -1;
+
     private int type;
     private String internalId;
     private String displayLabel;
@@ -16,8 +23,19 @@ public class TemplateField {
     private boolean isCustom; // Whether this field can be removed/edited by user (not used for this feature, but good to keep)
     private String parentSectionId; // For TYPE_SECTION_FIELD
     private String calculationFormula; // NEW: Formula for calculated fields, e.g., "{field1} + {field2}"
+    private String mtdSourceField; // Running-total fields: the field whose values are accumulated, e.g. "r_na" for "mtd_r_na"
+    private String mtdResetPeriod; // Running-total fields: MTD_RESET_MONTH (default) or MTD_RESET_YEAR
+    private int decimalScale = NO_DECIMAL_SCALE; // Derived fields: 0-4 switches to exact decimal arithmetic with this many places
+    private String rounding; // Decimal mode: "half_up" (default), "half_even" or "down"; null follows the template
+    private transient Formula compiledFormula; // Parsed from calculationFormula on first use, never serialized
 
-    public TemplateField(int type, String internalId, String displayLabel, String defaultValue, String inputType, boolean editable, boolean isCustom, String parentSectionId, String calculationFormula) {
+    public TemplateField(int type, String internalId, String displayLabel, String defaultValue, String inputType, boolean editable, boolean isCustom, String parentSectionId, String calculationFormula, String mtdSourceField, String mtdResetPeriod, int decimalScale, String rounding) {
+        this(type, internalId, displayLabel, defaultValue, inputType, editable, isCustom, parentSectionId, calculationFormula, mtdSourceField, mtdResetPeriod);
+        this.decimalScale = decimalScale;
+        this.rounding = rounding;
+    }
+
+    public TemplateField(int type, String internalId, String displayLabel, String defaultValue, String inputType, boolean editable, boolean isCustom, String parentSectionId, String calculationFormula, String mtdSourceField, String mtdResetPeriod) {
         this.type = type;
         this.internalId = internalId;
         this.displayLabel = displayLabel;
@@ -27,13 +45,19 @@ public class TemplateField {
         this.isCustom = isCustom;
         this.parentSectionId = parentSectionId;
         this.calculationFormula = calculationFormula;
+        this.mtdSourceField = mtdSourceField;
+        this.mtdResetPeriod = mtdResetPeriod;
 
-        // If a calculation formula is provided, the field is implicitly not editable
-        if (this.calculationFormula != null && !this.calculationFormula.isEmpty()) {
+        // If a calculation formula or running-total source is provided, the field is implicitly not editable
+        if (isCalculated() || isMtd()) {
             this.editable = false;
         }
     }
 
+    public TemplateField(int type, String internalId, String displayLabel, String defaultValue, String inputType, boolean editable, boolean isCustom, String parentSectionId, String calculationFormula) {
+        this(type, internalId, displayLabel, defaultValue, inputType, editable, isCustom, parentSectionId, calculationFormula, null, null);
+    }
+
     // Constructor for non-section fields (TYPE_FIELD, TYPE_HEADER) without formula
     public TemplateField(int type, String internalId, String displayLabel, String defaultValue, String inputType, boolean editable, boolean isCustom) {
         this(type, internalId, displayLabel, defaultValue, inputType, editable, isCustom, null, null);
@@ -50,9 +74,24 @@ public class TemplateField {
     public String getDisplayLabel() { return displayLabel; }
     public String getDefaultValue() { return defaultValue; }
     public String getInputType() { return inputType; }
-    public boolean isEditable() { return editable; }
+    // Templates loaded from JSON bypass the constructor, so derived fields can't rely on the editable flag there
+    public boolean isEditable() { return editable && !isCalculated() && !isMtd(); }
     public boolean isCustom() { return isCustom; }
     public String getParentSectionId() { return parentSectionId; }
     public String getCalculationFormula() { return calculationFormula; }
     public boolean isCalculated() { return calculationFormula != null && !calculationFormula.isEmpty(); }
+    // Null if the field is not calculated; throws IllegalArgumentException if the formula is malformed
+    public Formula getCompiledFormula() {
+        if (compiledFormula == null && isCalculated()) {
+            compiledFormula = Formula.compile(calculationFormula);
+        }
+        return compiledFormula;
+    }
+    // Lets a template restored from the binary pack skip parsing its formula again
+    void setCompiledFormula(Formula formula) { this.compiledFormula = formula; }
+    public String getMtdSourceField() { return mtdSourceField; }
+    public String getMtdResetPeriod() { return mtdResetPeriod != null ? mtdResetPeriod : MTD_RESET_MONTH; }
+    public boolean isMtd() { return mtdSourceField != null && !mtdSourceField.isEmpty(); }
+    public int getDecimalScale() { return decimalScale; }
+    public String getRounding() { return rounding; }
 }
@@ -0,0 +1,245 @@
+package com.tricenc.aftershift;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A report or preview format string tokenized once into literal and placeholder segments.
+ *
+ * {@code {field_id}} is replaced with the field's value; ids that are not fields of the template render as "0".
+ * {@code {?field_id}} marks an optional line: the value is trimmed, and if it is empty the whole line containing
+ * the placeholder (including its newline) is left out.
+ * A plain placeholder of a collapsible field (see ReportTemplate.getCollapsibleFields()) is replaced by the trimmed
+ * value; if that is empty the placeholder and the newline right after it are removed, and the rest of the line stays.
+ *
+ * Placeholders are bound to field ordinals (indexes into the template's field list) at compile time, so rendering
+ * is a single pass over the segments with no map lookups or regular expressions.
+ */
+public final class TemplateFormat {
+    // Supplies the current value of the template field at the given ordinal
+    public interface ValueSource {
+        String valueAt(int ordinal);
+    }
+
+    private static final int LITERAL = -1; // Segment ordinal for literal text
+    private static final int UNKNOWN_FIELD = -2; // Placeholder whose id is not a field of the template
+    private static final String UNKNOWN_FIELD_VALUE = "0"; // Keeps numeric lines readable when a placeholder is wrong
+    // Placeholder kinds
+    private static final byte PLAIN = 0;
+    private static final byte OPTIONAL = 1; // {?field_id}
+    private static final byte COLLAPSIBLE = 2;
+    private static final byte COLLAPSIBLE_NEWLINE = 3; // Collapsible, and the newline after it goes with it
+
+    private final String[] literals; // Literal text, or null for placeholder segments
+    private final int[] ordinals; // LITERAL, UNKNOWN_FIELD or the field ordinal
+    private final byte[] kinds; // Placeholder kind per segment; PLAIN for literals
+    private final int[] lineStarts; // First segment of each line, plus a final entry equal to the segment count
+    private final int[][] lineConditions; // Per line, the ordinals that must be non-blank for it to render (or null)
+    private final int estimatedLength;
+
+    private TemplateFormat(String[] literals, int[] ordinals, byte[] kinds, int[] lineStarts, int[][] lineConditions, int estimatedLength) {
+        this.literals = literals;
+        this.ordinals = ordinals;
+        this.kinds = kinds;
+        this.lineStarts = lineStarts;
+        this.lineConditions = lineConditions;
+        this.estimatedLength = estimatedLength;
+    }
+
+    /**
+     * Tokenizes {@code format} against the template's fields. Headers are not fields, so their ids render as unknown.
+     * An unterminated '{' or an empty "{}" is kept as literal text.
+     */
+    public static TemplateFormat compile(String format, List<TemplateField> fields) {
+        return compile(format, fields, Collections.emptyList());
+    }
+
+    // As above, with the plain placeholders of the given field ids collapsible
+    public static TemplateFormat compile(String format, List<TemplateField> fields, Collection<String> collapsibleFields) {
+        Map<String, Integer> fieldOrdinals = new HashMap<>();
+        if (fields != null) {
+            for (int i = 0; i < fields.size(); i++) {
+                TemplateField field = fields.get(i);
+                if (field.getType() != TemplateField.TYPE_HEADER) {
+                    fieldOrdinals.put(field.getInternalId(), i);
+                }
+            }
+        }
+
+        List<String> literals = new ArrayList<>();
+        List<Integer> ordinals = new ArrayList<>();
+        List<Byte> kinds = new ArrayList<>();
+        List<Integer> lineStarts = new ArrayList<>();
+        List<int[]> lineConditions = new ArrayList<>();
+        int estimatedLength = 0;
+
+        String text = format != null ? format : "";
+        int pos = 0;
+        while (pos < text.length()) {
+            int lineEnd = text.indexOf('\n', pos);
+            lineEnd = lineEnd == -1 ? text.length() : lineEnd + 1; // The newline belongs to its line
+            lineStarts.add(literals.size());
+            List<Integer> conditions = null;
+
+            StringBuilder literal = new StringBuilder();
+            int i = pos;
+            while (i < lineEnd) {
+                char c = text.charAt(i);
+                int close = c == '{' ? text.indexOf('}', i + 1) : -1;
+                if (close == -1 || close >= lineEnd || close == i + 1) {
+                    literal.append(c);
+                    i++;
+                    continue;
+                }
+
+                if (literal.length() > 0) {
+                    literals.add(literal.toString());
+                    ordinals.add(LITERAL);
+                    kinds.add(PLAIN);
+                    estimatedLength += literal.length();
+                    literal.setLength(0);
+                }
+
+                String key = text.substring(i + 1, close);
+                boolean isOptional = key.startsWith("?");
+                if (isOptional) {
+                    key = key.substring(1);
+                }
+                Integer ordinal = fieldOrdinals.get(key);
+                int bound = ordinal != null ? ordinal : UNKNOWN_FIELD;
+                byte kind = PLAIN;
+                i = close + 1;
+                if (isOptional) {
+                    kind = OPTIONAL;
+                    if (conditions == null) conditions = new ArrayList<>();
+                    conditions.add(bound);
+                } else if (collapsibleFields.contains(key)) {
+                    kind = COLLAPSIBLE;
+                    if (i < lineEnd && text.charAt(i) == '\n') {
+                        kind = COLLAPSIBLE_NEWLINE;
+                        i++;
+                    }
+                }
+                literals.add(null);
+                ordinals.add(bound);
+                kinds.add(kind);
+                estimatedLength += 8; // Typical rendered value length
+            }
+            if (literal.length() > 0) {
+                literals.add(literal.toString());
+                ordinals.add(LITERAL);
+                kinds.add(PLAIN);
+                estimatedLength += literal.length();
+            }
+
+            int[] conditionArray = null;
+            if (conditions != null) {
+                conditionArray = new int[conditions.size()];
+                for (int c = 0; c < conditionArray.length; c++) {
+                    conditionArray[c] = conditions.get(c);
+                }
+            }
+            lineConditions.add(conditionArray);
+            pos = lineEnd;
+        }
+        lineStarts.add(literals.size());
+
+        int[] ordinalArray = new int[ordinals.size()];
+        byte[] kindArray = new byte[kinds.size()];
+        for (int i = 0; i < ordinalArray.length; i++) {
+            ordinalArray[i] = ordinals.get(i);
+            kindArray[i] = kinds.get(i);
+        }
+        int[] lineStartArray = new int[lineStarts.size()];
+        for (int i = 0; i < lineStartArray.length; i++) {
+            lineStartArray[i] = lineStarts.get(i);
+        }
+        return new TemplateFormat(literals.toArray(new String[0]), ordinalArray, kindArray, lineStartArray,
+                lineConditions.toArray(new int[0][]), estimatedLength);
+    }
+
+    // Field ids referenced by the format's placeholders ("?" stripped), in order, following the same rules as compile()
+    public static List<String> findPlaceholders(String format) {
+        List<String> ids = new ArrayList<>();
+        if (format == null) {
+            return ids;
+        }
+        int i = 0;
+        while (i < format.length()) {
+            int open = format.indexOf('{', i);
+            if (open == -1) break;
+            int close = format.indexOf('}', open + 1);
+            int lineEnd = format.indexOf('\n', open);
+            if (close == -1 || (lineEnd != -1 && close > lineEnd) || close == open + 1) {
+                i = open + 1;
+                continue;
+            }
+            String key = format.substring(open + 1, close);
+            ids.add(key.startsWith("?") ? key.substring(1) : key);
+            i = close + 1;
+        }
+        return ids;
+    }
+
+    public String render(ValueSource values) {
+        StringBuilder builder = new StringBuilder(estimatedLength);
+        for (int line = 0; line < lineConditions.length; line++) {
+            if (!conditionsMet(lineConditions[line], values)) {
+                continue;
+            }
+            for (int segment = lineStarts[line]; segment < lineStarts[line + 1]; segment++) {
+                int ordinal = ordinals[segment];
+                byte kind = kinds[segment];
+                if (ordinal == LITERAL) {
+                    builder.append(literals[segment]);
+                } else if (kind == COLLAPSIBLE || kind == COLLAPSIBLE_NEWLINE) {
+                    String value = ordinal != UNKNOWN_FIELD ? values.valueAt(ordinal) : null;
+                    if (!isBlank(value)) {
+                        builder.append(value.trim());
+                        if (kind == COLLAPSIBLE_NEWLINE) {
+                            builder.append('\n');
+                        }
+                    }
+                } else if (ordinal == UNKNOWN_FIELD) {
+                    if (kind != OPTIONAL) {
+                        builder.append(UNKNOWN_FIELD_VALUE);
+                    }
+                } else {
+                    String value = values.valueAt(ordinal);
+                    if (value != null) {
+                        builder.append(kind == OPTIONAL ? value.trim() : value);
+                    }
+                }
+            }
+        }
+        return builder.toString();
+    }
+
+    private static boolean conditionsMet(int[] conditions, ValueSource values) {
+        if (conditions == null) {
+            return true;
+        }
+        for (int ordinal : conditions) {
+            if (ordinal == UNKNOWN_FIELD || isBlank(values.valueAt(ordinal))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isBlank(String value) {
+        if (value == null) {
+            return true;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (!Character.isWhitespace(value.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
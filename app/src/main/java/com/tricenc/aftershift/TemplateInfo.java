@@ -0,0 +1,42 @@
+package com.tricenc.aftershift;
+
+import java.io.File;
+
+// Lightweight description of a template, kept in the template index so the full JSON
+// only has to be parsed when the template is actually used.
+public class TemplateInfo {
+    private String templateId;
+    private String name;
+    private String description;
+    private int fieldCount;
+    private String fileName; // Null for the built-in default template
+    private String fileHash; // SHA-256 of the template file's bytes
+    private long fileLength;
+    private long fileLastModified;
+
+    public TemplateInfo(String templateId, String name, String description, int fieldCount, String fileName, String fileHash, long fileLength, long fileLastModified) {
+        this.templateId = templateId;
+        this.name = name;
+        this.description = description;
+        this.fieldCount = fieldCount;
+        this.fileName = fileName;
+        this.fileHash = fileHash;
+        this.fileLength = fileLength;
+        this.fileLastModified = fileLastModified;
+    }
+
+    // Getters
+    public String getTemplateId() { return templateId; }
+    public String getName() { return name; }
+    public String getDescription() { return description; }
+    public int getFieldCount() { return fieldCount; }
+    public String getFileName() { return fileName; }
+    public String getFileHash() { return fileHash; }
+    public long getFileLength() { return fileLength; }
+    public long getFileLastModified() { return fileLastModified; }
+
+    // Cheap staleness check: the indexed entry still describes this file if its size and timestamp are unchanged
+    public boolean matches(File file) {
+        return file.getName().equals(fileName) && file.length() == fileLength && file.lastModified() == fileLastModified;
+    }
+}
@@ -2,25 +2,39 @@ package com.tricenc.aftershift;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.Process;
 import android.util.Log;
 
 import androidx.appcompat.app.AppCompatDelegate; // NEW
 
 import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import com.google.gson.reflect.TypeToken;
 
 import java.io.BufferedReader;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class TemplateManager {
     private static final String TAG = "TemplateManager";
@@ -29,20 +43,39 @@ public class TemplateManager {
     private static final String KEY_THEME_MODE = "theme_mode"; // NEW: For theme preference
     private static final String TEMPLATE_DIR = "templates"; // Directory for user-imported templates
 
+    private static final long MAX_TEMPLATE_BYTES = 512 * 1024; // Import limit; real templates are a few KB
+    private static final String INDEX_FILE = "template_index.json"; // Metadata for every imported template
+    private static final String PACK_FILE = "templates.pack"; // Binary copy of the imported templates, in TEMPLATE_DIR
+
     private static TemplateManager instance;
     private final Context context;
     private final Gson gson;
     private final SharedPreferences prefs;
 
-    // Map to hold all loaded templates, by ID
-    private Map<String, ReportTemplate> availableTemplates;
+    // The current template snapshot. Loaded from the index at startup without parsing any template; templates are
+    // parsed on first getTemplate() or by the background warm-up. Readers use it without locking. Every change
+    // happens inside a synchronized method, which builds a new snapshot and then replaces this field.
+    private volatile TemplateRegistry registry = TemplateRegistry.EMPTY;
+    private boolean warmUpStarted = false;
+
+    // Imported templates are decoded from the pack instead of parsed from JSON while their hash still matches
+    private TemplatePack templatePack; // Null if there is none or it is unreadable
+    private boolean packStale = false; // The pack is missing, or lacks or holds outdated templates
+    private boolean packRebuildQueued = false;
+    private final ExecutorService packWriter = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            runnable.run();
+        }, "TemplatePackWriter");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     private TemplateManager(Context context) {
         this.context = context.getApplicationContext(); // Use application context to prevent leaks
-        this.gson = new Gson();
+        this.gson = JsonAdapters.gson(); // Shared instance with reflection-free adapters
         this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-        this.availableTemplates = new HashMap<>();
-        loadAllTemplates();
+        loadTemplateIndex();
     }
 
     public static synchronized TemplateManager getInstance(Context context) {
@@ -52,30 +85,195 @@ public class TemplateManager {
         return instance;
     }
 
-    private void loadAllTemplates() {
-        availableTemplates.clear(); // Clear existing to ensure fresh load
+    // Reads the small metadata index and lists the template directory. No template JSON is parsed here,
+    // so startup cost does not grow with the number of imported templates.
+    private synchronized void loadTemplateIndex() {
+        LinkedHashMap<String, TemplateInfo> infos = new LinkedHashMap<>();
+        HashMap<String, ReportTemplate> templates = new HashMap<>();
+        List<File> unindexedFiles = new ArrayList<>();
+
         // Always add the default template first
-        availableTemplates.put(DEFAULT_TEMPLATE_ID, createDefaultTemplate());
+        ReportTemplate defaultTemplate = createDefaultTemplate();
+        templates.put(DEFAULT_TEMPLATE_ID, defaultTemplate);
+        infos.put(DEFAULT_TEMPLATE_ID, new TemplateInfo(DEFAULT_TEMPLATE_ID, defaultTemplate.getName(),
+                defaultTemplate.getDescription(), defaultTemplate.getFields().size(), null, null, 0, 0));
+
+        Map<String, TemplateInfo> indexedByFile = new HashMap<>();
+        File indexFile = new File(context.getFilesDir(), INDEX_FILE);
+        if (indexFile.exists()) {
+            try {
+                TemplateInfo[] entries = gson.fromJson(new String(readFileBytes(indexFile), StandardCharsets.UTF_8), TemplateInfo[].class);
+                if (entries != null) {
+                    for (TemplateInfo entry : entries) {
+                        indexedByFile.put(entry.getFileName(), entry);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Template index unreadable, rebuilding it", e);
+            }
+        }
 
-        // Load user-imported templates from internal storage
         File templateDir = new File(context.getFilesDir(), TEMPLATE_DIR);
-        if (templateDir.exists() && templateDir.isDirectory()) {
-            File[] templateFiles = templateDir.listFiles((dir, name) -> name.endsWith(".json"));
-            if (templateFiles != null) {
-                for (File file : templateFiles) {
-                    try {
-                        String json = readFile(file);
-                        ReportTemplate template = parseTemplateJson(json);
-                        if (template != null) {
-                            availableTemplates.put(template.getTemplateId(), template);
-                        }
-                    } catch (IOException e) {
-                        Log.e(TAG, "Error reading imported template file: " + file.getName(), e);
-                    }
+        File[] templateFiles = templateDir.listFiles((dir, name) -> name.endsWith(".json"));
+        if (templateFiles != null) {
+            for (File file : templateFiles) {
+                TemplateInfo info = indexedByFile.get(file.getName());
+                if (info != null && info.matches(file) && !infos.containsKey(info.getTemplateId())) {
+                    infos.put(info.getTemplateId(), info);
+                } else {
+                    unindexedFiles.add(file);
                 }
             }
         }
-        Log.d(TAG, "Loaded " + availableTemplates.size() + " templates.");
+        if (!unindexedFiles.isEmpty()) {
+            Log.d(TAG, unindexedFiles.size() + " template file(s) not in the index; they will be parsed on demand.");
+        }
+        Log.d(TAG, "Indexed " + infos.size() + " templates.");
+        registry = new TemplateRegistry(infos, templates, unindexedFiles);
+        openTemplatePack(infos.values(), unindexedFiles.isEmpty());
+    }
+
+    // Maps the pack and checks which indexed templates it holds in their current version
+    private void openTemplatePack(Collection<TemplateInfo> infos, boolean allIndexed) {
+        long start = System.nanoTime();
+        templatePack = TemplatePack.open(new File(new File(context.getFilesDir(), TEMPLATE_DIR), PACK_FILE));
+        int imported = 0;
+        int packed = 0;
+        for (TemplateInfo info : infos) {
+            if (info.getFileName() == null) continue; // Built in
+            imported++;
+            if (templatePack != null && templatePack.contains(info.getTemplateId(), info.getFileHash())) {
+                packed++;
+            }
+        }
+        int packSize = templatePack != null ? templatePack.size() : 0;
+        packStale = packed < imported || packSize > packed || !allIndexed;
+        Log.d(TAG, "Template pack holds " + packed + " of " + imported + " imported templates, opened in "
+                + (System.nanoTime() - start) / 1000 + " us.");
+    }
+
+    // Writes a fresh pack on the pack thread. Changes made while it runs queue another rebuild.
+    private synchronized void schedulePackRebuild() {
+        packStale = true;
+        if (packRebuildQueued) {
+            return;
+        }
+        packRebuildQueued = true;
+        packWriter.execute(this::rebuildPack);
+    }
+
+    private void rebuildPack() {
+        synchronized (this) {
+            packRebuildQueued = false;
+            packStale = false;
+        }
+        List<TemplatePack.Entry> entries = new ArrayList<>();
+        for (TemplateInfo info : getTemplateInfos()) {
+            if (info.getFileName() == null) continue; // The built-in template is never packed
+            ReportTemplate template = getTemplate(info.getTemplateId()); // Parses from JSON or the old pack if needed
+            if (template != null) {
+                entries.add(new TemplatePack.Entry(info.getFileHash(), template));
+            }
+        }
+        try {
+            TemplatePack.write(new File(new File(context.getFilesDir(), TEMPLATE_DIR), PACK_FILE), entries);
+            Log.d(TAG, "Template pack rebuilt with " + entries.size() + " templates.");
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write template pack", e);
+            return;
+        }
+        synchronized (this) {
+            templatePack = null; // Every template is parsed now; release the old mapping
+        }
+    }
+
+    // Parses template files the index does not know about yet and rewrites the index if anything changed
+    private synchronized void indexUnindexedFiles() {
+        TemplateRegistry current = registry;
+        if (current.getUnindexedFiles().isEmpty()) {
+            return;
+        }
+        TemplateRegistry updated = current.withUnindexedFiles(new ArrayList<>());
+        for (File file : current.getUnindexedFiles()) {
+            try {
+                updated = indexTemplateFile(updated, file);
+            } catch (IOException e) {
+                Log.e(TAG, "Error reading imported template file: " + file.getName(), e);
+            }
+        }
+        registry = updated;
+        saveTemplateIndex(updated);
+    }
+
+    // Reads, hashes and parses one template file. Returns the registry with it added, or unchanged if it is not a valid template.
+    private TemplateRegistry indexTemplateFile(TemplateRegistry current, File file) throws IOException {
+        byte[] bytes = readFileBytes(file);
+        ReportTemplate template = parseTemplateJson(new String(bytes, StandardCharsets.UTF_8));
+        if (template == null || template.getTemplateId() == null) {
+            return current;
+        }
+        if (DEFAULT_TEMPLATE_ID.equals(template.getTemplateId())) {
+            Log.w(TAG, "Ignoring " + file.getName() + ": it uses the built-in template's ID.");
+            return current;
+        }
+        return current.withTemplate(describeTemplateFile(template, file, bytes), template);
+    }
+
+    private static TemplateInfo describeTemplateFile(ReportTemplate template, File file, byte[] bytes) {
+        return new TemplateInfo(template.getTemplateId(), template.getName(), template.getDescription(),
+                template.getFields() != null ? template.getFields().size() : 0,
+                file.getName(), sha256(bytes), file.length(), file.lastModified());
+    }
+
+    // Writes the index of imported templates (the default template is built in and not indexed)
+    private void saveTemplateIndex(TemplateRegistry snapshot) {
+        List<TemplateInfo> entries = new ArrayList<>();
+        for (TemplateInfo info : snapshot.getInfos()) {
+            if (info.getFileName() != null) {
+                entries.add(info);
+            }
+        }
+        File indexFile = new File(context.getFilesDir(), INDEX_FILE);
+        File tempFile = new File(context.getFilesDir(), INDEX_FILE + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tempFile)) {
+            fos.write(gson.toJson(entries).getBytes(StandardCharsets.UTF_8));
+            fos.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write template index", e);
+            return;
+        }
+        if (!tempFile.renameTo(indexFile)) {
+            Log.e(TAG, "Failed to replace template index");
+        }
+    }
+
+    /**
+     * Parses the remaining templates (and compiles each into a CompiledTemplate) on a background thread.
+     * Call once the first frame is up; later getTemplate() calls then return without touching disk.
+     */
+    public synchronized void warmUpInBackground() {
+        if (warmUpStarted) {
+            return;
+        }
+        warmUpStarted = true;
+        Thread thread = new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            indexUnindexedFiles();
+            for (TemplateInfo info : getTemplateInfos()) {
+                ReportTemplate template = getTemplate(info.getTemplateId());
+                if (template != null) {
+                    template.getCompiledTemplate(); // Formats, formulas and calculation order, ready for the report screen
+                }
+            }
+            synchronized (this) {
+                if (packStale) {
+                    schedulePackRebuild(); // So the next cold start can skip JSON parsing
+                }
+            }
+            Log.d(TAG, "Template warm-up finished.");
+        }, "TemplateWarmUp");
+        thread.setDaemon(true);
+        thread.start();
     }
 
     // This method creates a template from the original hardcoded fields.
@@ -106,33 +304,33 @@ public class TemplateManager {
 
         fields.add(new TemplateField(TemplateField.TYPE_HEADER, "header_na", "New Atronics", null, "text", false, false));
         fields.add(new TemplateField(TemplateField.TYPE_SECTION_FIELD, "r_na", "R", "", "numberDecimal", true, false, "header_na"));
-        fields.add(new TemplateField(TemplateField.TYPE_SECTION_FIELD, "mtd_r_na", "MTD R", "", "numberDecimal", true, false, "header_na"));
+        fields.add(mtdField("mtd_r_na", "MTD R", "r_na", "header_na"));
         fields.add(new TemplateField(TemplateField.TYPE_SECTION_FIELD, "us_na", "US", "", "numberDecimal", true, false, "header_na"));
-        fields.add(new TemplateField(TemplateField.TYPE_SECTION_FIELD, "mtd_us_na", "MTD US", "", "numberDecimal", true, false, "header_na"));
+        fields.add(mtdField("mtd_us_na", "MTD US", "us_na", "header_na"));
 
         fields.add(new TemplateField(TemplateField.TYPE_HEADER, "header_mg", "Mixed Grain", null, "text", false, false));
         fields.add(new TemplateField(TemplateField.TYPE_SECTION_FIELD, "r_mg", "R", "", "numberDecimal", true, false, "header_mg"));
-        fields.add(new TemplateField(TemplateField.TYPE_SECTION_FIELD, "mtd_r_mg", "MTD R", "", "numberDecimal", true, false, "header_mg"));
+        fields.add(mtdField("mtd_r_mg", "MTD R", "r_mg", "header_mg"));
         fields.add(new TemplateField(TemplateField.TYPE_SECTION_FIELD, "us_mg", "US", "", "numberDecimal", true, false, "header_mg"));
-        fields.add(new TemplateField(TemplateField.TYPE_SECTION_FIELD, "mtd_us_mg", "MTD US", "", "numberDecimal", true, false, "header_mg"));
+        fields.add(mtdField("mtd_us_mg", "MTD US", "us_mg", "header_mg"));
 
         fields.add(new TemplateField(TemplateField.TYPE_HEADER, "header_chunks", "Chunks", null, "text", false, false));
         fields.add(new TemplateField(TemplateField.TYPE_SECTION_FIELD, "r_chunks", "R", "", "numberDecimal", true, false, "header_chunks"));
-        fields.add(new TemplateField(TemplateField.TYPE_SECTION_FIELD, "mtd_r_chunks", "MTD R", "", "numberDecimal", true, false, "header_chunks"));
+        fields.add(mtdField("mtd_r_chunks", "MTD R", "r_chunks", "header_chunks"));
         fields.add(new TemplateField(TemplateField.TYPE_SECTION_FIELD, "us_chunks", "US", "", "numberDecimal", true, false, "header_chunks"));
-        fields.add(new TemplateField(TemplateField.TYPE_SECTION_FIELD, "mtd_us_chunks", "MTD US", "", "numberDecimal", true, false, "header_chunks"));
+        fields.add(mtdField("mtd_us_chunks", "MTD US", "us_chunks", "header_chunks"));
 
         fields.add(new TemplateField(TemplateField.TYPE_HEADER, "header_jumbo", "Jumbo", null, "text", false, false));
         fields.add(new TemplateField(TemplateField.TYPE_SECTION_FIELD, "r_jumbo", "R", "", "numberDecimal", true, false, "header_jumbo"));
-        fields.add(new TemplateField(TemplateField.TYPE_SECTION_FIELD, "mtd_r_jumbo", "MTD R", "", "numberDecimal", true, false, "header_jumbo"));
+        fields.add(mtdField("mtd_r_jumbo", "MTD R", "r_jumbo", "header_jumbo"));
         fields.add(new TemplateField(TemplateField.TYPE_SECTION_FIELD, "us_jumbo", "US", "", "numberDecimal", true, false, "header_jumbo"));
-        fields.add(new TemplateField(TemplateField.TYPE_SECTION_FIELD, "mtd_us_jumbo", "MTD US", "", "numberDecimal", true, false, "header_jumbo"));
+        fields.add(mtdField("mtd_us_jumbo", "MTD US", "us_jumbo", "header_jumbo"));
 
         fields.add(new TemplateField(TemplateField.TYPE_HEADER, "header_unyawuthi", "Unyawuthi", null, "text", false, false));
         fields.add(new TemplateField(TemplateField.TYPE_SECTION_FIELD, "r_unyawuthi", "R", "", "numberDecimal", true, false, "header_unyawuthi"));
-        fields.add(new TemplateField(TemplateField.TYPE_SECTION_FIELD, "mtd_r_unyawuthi", "MTD R", "", "numberDecimal", true, false, "header_unyawuthi"));
+        fields.add(mtdField("mtd_r_unyawuthi", "MTD R", "r_unyawuthi", "header_unyawuthi"));
         fields.add(new TemplateField(TemplateField.TYPE_SECTION_FIELD, "us_unyawuthi", "US", "", "numberDecimal", true, false, "header_unyawuthi"));
-        fields.add(new TemplateField(TemplateField.TYPE_SECTION_FIELD, "mtd_us_unyawuthi", "MTD US", "", "numberDecimal", true, false, "header_unyawuthi"));
+        fields.add(mtdField("mtd_us_unyawuthi", "MTD US", "us_unyawuthi", "header_unyawuthi"));
 
         // MODIFIED: apex_took and admiral_took inputType set to "text" (free-form)
         fields.add(new TemplateField(TemplateField.TYPE_FIELD, "apex_took", "Apex took", "", "text", true, false));
@@ -150,10 +348,10 @@ public class TemplateManager {
         fields.add(new TemplateField(TemplateField.TYPE_SECTION_FIELD, "total_p_bar", "Total P", "", "numberDecimal", true, false, "header_bar"));
 
         fields.add(new TemplateField(TemplateField.TYPE_FIELD, "admiral_$", "Admiral $", "", "numberDecimal", true, false));
-        fields.add(new TemplateField(TemplateField.TYPE_FIELD, "mtd_$_admiral", "MTD $", "", "numberDecimal", true, false));
+        fields.add(mtdField("mtd_$_admiral", "MTD $", "admiral_$", null));
         fields.add(new TemplateField(TemplateField.TYPE_FIELD, "cash_$", "Cash $", "", "numberDecimal", true, false));
         fields.add(new TemplateField(TemplateField.TYPE_FIELD, "apex_cash_$", "Apex Cash $", "", "numberDecimal", true, false));
-        fields.add(new TemplateField(TemplateField.TYPE_FIELD, "mtd_$_apex_cash", "MTD $", "", "numberDecimal", true, false));
+        fields.add(mtdField("mtd_$_apex_cash", "MTD $", "apex_cash_$", null));
 
         // Default preview format
         String previewFormat = "Admiral: {admiral_$} | MTD: {mtd_$_admiral} | Cash: {cash_$}";
@@ -185,8 +383,8 @@ public class TemplateManager {
                 " US{us_unyawuthi}.   MTD US{mtd_us_unyawuthi}.\n" +
                 "Apex took {apex_took}\n" + 
                 "Admiral took {admiral_took}\n" + 
-                // Placeholder for optional notes. We will remove this line entirely if the field is empty in ReportGeneratorActivity.
-                "{additional_notes}\n" +
+                // Optional line: left out entirely when the notes field is empty
+                "{?additional_notes}\n" +
                 "Bar\n" +
                 " R{r_bar}.   Total R{total_r_bar}.\n" +
                 " US{us_bar}.   Total US{total_us_bar}.\n" +
@@ -194,17 +392,85 @@ public class TemplateManager {
                 "Admiral ${admiral_$}    MTD ${mtd_$_admiral}    Cash ${cash_$}\n" +
                 "Apex Cash ${apex_cash_$}    MTD ${mtd_$_apex_cash}\n";
 
-        return new ReportTemplate(DEFAULT_TEMPLATE_ID, "Report", "The original report structure", fields, smsFormat, previewFormat);
+        // Running totals are money and unit counts, so add them up exactly at 2 decimal places
+        return new ReportTemplate(DEFAULT_TEMPLATE_ID, "Report", "The original report structure", fields, smsFormat, previewFormat, 2, null);
+    }
+
+    // A month-to-date field: read-only, derived from today's value of sourceFieldId plus the month's earlier reports.
+    // Placed in a section when parentSectionId is given, otherwise a top-level field.
+    private TemplateField mtdField(String internalId, String displayLabel, String sourceFieldId, String parentSectionId) {
+        int type = parentSectionId != null ? TemplateField.TYPE_SECTION_FIELD : TemplateField.TYPE_FIELD;
+        return new TemplateField(type, internalId, displayLabel, "", "numberDecimal", false, false, parentSectionId, null,
+                sourceFieldId, TemplateField.MTD_RESET_MONTH);
     }
 
     public static final String DEFAULT_TEMPLATE_ID = "default_shop_report";
 
+    // Metadata for every available template, default first. Does not parse any template.
+    // The list is the registry's own and unmodifiable; callers that sort or filter it must copy it first.
+    public List<TemplateInfo> getTemplateInfos() {
+        TemplateRegistry current = registry;
+        if (!current.getUnindexedFiles().isEmpty()) {
+            indexUnindexedFiles(); // Only does work for files imported outside the app or by an older version
+            current = registry;
+        }
+        return current.getInfos(); // Unmodifiable; later changes publish a new list
+    }
+
+    // Parses every template; prefer getTemplateInfos() when only names and IDs are needed
     public List<ReportTemplate> getAvailableTemplates() {
-        return new ArrayList<>(availableTemplates.values());
+        List<ReportTemplate> templates = new ArrayList<>();
+        for (TemplateInfo info : getTemplateInfos()) {
+            ReportTemplate template = getTemplate(info.getTemplateId());
+            if (template != null) {
+                templates.add(template);
+            }
+        }
+        return templates;
     }
 
+    // Parses the template on first use and caches it. Already-parsed templates are returned without locking.
     public ReportTemplate getTemplate(String templateId) {
-        return availableTemplates.get(templateId);
+        ReportTemplate template = registry.getTemplate(templateId);
+        return template != null ? template : loadTemplate(templateId);
+    }
+
+    private synchronized ReportTemplate loadTemplate(String templateId) {
+        TemplateRegistry current = registry;
+        ReportTemplate template = current.getTemplate(templateId);
+        if (template != null) {
+            return template; // Parsed by another thread while we waited for the lock
+        }
+        TemplateInfo info = current.getInfo(templateId);
+        if (info == null || info.getFileName() == null) {
+            indexUnindexedFiles();
+            return registry.getTemplate(templateId);
+        }
+
+        File file = new File(new File(context.getFilesDir(), TEMPLATE_DIR), info.getFileName());
+        if (templatePack != null) {
+            template = templatePack.read(templateId, info.getFileHash()); // Null unless packed from this version of the file
+        }
+        if (template == null) {
+            try {
+                template = parseTemplateJson(new String(readFileBytes(file), StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                Log.e(TAG, "Error reading imported template file: " + file.getName(), e);
+            }
+        }
+        if (template != null && templateId.equals(template.getTemplateId())) {
+            registry = current.withParsedTemplate(template);
+            return template;
+        }
+        // The file no longer matches its index entry; re-index it
+        Log.w(TAG, "Template file " + file.getName() + " does not match the index, re-indexing.");
+        List<File> unindexedFiles = new ArrayList<>(current.getUnindexedFiles());
+        if (file.exists()) {
+            unindexedFiles.add(file);
+        }
+        registry = current.withoutTemplate(templateId).withUnindexedFiles(unindexedFiles);
+        indexUnindexedFiles();
+        return registry.getTemplate(templateId);
     }
 
     // This method now saves the *default template for new reports*
@@ -219,33 +485,58 @@ public class TemplateManager {
 
     // This method retrieves the *default template for new reports*
     public ReportTemplate getCurrentTemplate() {
-        return availableTemplates.get(getCurrentTemplateId());
+        return getTemplate(getCurrentTemplateId());
     }
 
     /**
-     * Imports a new template from an InputStream, parses it, and saves it to internal storage.
+     * Imports a new template from an InputStream, validates it, and saves it to internal storage.
+     * The JSON is parsed straight from the stream (at most MAX_TEMPLATE_BYTES) and the file is written atomically.
      * If a template with the same ID already exists, it will be overwritten.
-     * After import, it reloads all templates to ensure the new one is available.
+     * After import, only this template's registry entry and the index are updated.
      *
      * @param inputStream The input stream of the JSON template file.
-     * @param originalFilename The original filename (used for logging).
-     * @throws IOException If there's an error reading or writing the file.
+     * @param originalFilename The original filename (used in error messages).
+     * @throws IOException If the file cannot be read or written, is not valid JSON, or fails validation.
+     *                     The message lists the problems found, with the JSON path or field position.
      */
-    public void importTemplate(InputStream inputStream, String originalFilename) throws IOException {
-        String json = readStream(inputStream);
-        ReportTemplate template = parseTemplateJson(json);
-        if (template != null) {
-            if (availableTemplates.containsKey(template.getTemplateId())) {
-                Log.w(TAG, "Template with ID " + template.getTemplateId() + " already exists. Overwriting.");
+    public synchronized void importTemplate(InputStream inputStream, String originalFilename) throws IOException {
+        ReportTemplate template;
+        try (JsonReader reader = new JsonReader(new BufferedReader(new InputStreamReader(
+                new SizeLimitedInputStream(inputStream, MAX_TEMPLATE_BYTES), StandardCharsets.UTF_8)))) {
+            template = gson.fromJson(reader, ReportTemplate.class);
+            if (template != null && reader.peek() != JsonToken.END_DOCUMENT) {
+                throw new JsonSyntaxException("Unexpected content after the template at " + reader.getPath());
             }
-            // Save to internal storage
-            saveTemplateToFile(template);
-            // Reload all templates to include the new one
-            loadAllTemplates();
-            Log.d(TAG, "Template imported and reloaded: " + template.getName());
-        } else {
-            throw new IOException("Failed to parse template from file: " + originalFilename);
+        } catch (JsonParseException e) {
+            // Malformed JSON; Gson's message includes the line, column and path. Size-limit errors arrive wrapped too.
+            Throwable cause = e.getCause() instanceof IOException ? e.getCause() : e;
+            throw new IOException(originalFilename + ": " + cause.getMessage(), e);
+        }
+        if (template == null) {
+            throw new IOException(originalFilename + ": file is empty");
+        }
+
+        List<String> problems = TemplateValidator.validate(template);
+        if (!problems.isEmpty()) {
+            throw new IOException(originalFilename + " is not a valid template:\n" + TemplateValidator.summarize(problems));
         }
+
+        TemplateRegistry current = registry;
+        TemplateInfo previous = current.getInfo(template.getTemplateId());
+        if (previous != null) {
+            Log.w(TAG, "Template with ID " + template.getTemplateId() + " already exists. Overwriting.");
+        }
+        // Save to internal storage, then publish the one changed entry; no other template is touched
+        byte[] bytes = gson.toJson(template).getBytes(StandardCharsets.UTF_8);
+        File file = saveTemplateToFile(template.getTemplateId(), bytes);
+        if (previous != null && previous.getFileName() != null && !previous.getFileName().equals(file.getName())) {
+            new File(file.getParentFile(), previous.getFileName()).delete(); // Same ID stored under an older file name
+        }
+        TemplateRegistry updated = current.withTemplate(describeTemplateFile(template, file, bytes), template);
+        registry = updated;
+        saveTemplateIndex(updated);
+        schedulePackRebuild();
+        Log.d(TAG, "Template imported: " + template.getName());
     }
 
     private ReportTemplate parseTemplateJson(String json) {
@@ -257,51 +548,92 @@ public class TemplateManager {
         }
     }
 
-    private void saveTemplateToFile(ReportTemplate template) throws IOException {
+    private File saveTemplateToFile(String templateId, byte[] bytes) throws IOException {
         File templateDir = new File(context.getFilesDir(), TEMPLATE_DIR);
         if (!templateDir.exists()) {
             templateDir.mkdirs();
         }
 
-        String fileName = template.getTemplateId() + ".json"; // Use templateId as filename for uniqueness
+        String fileName = templateId + ".json"; // Use templateId as filename for uniqueness
         File file = new File(templateDir, fileName);
+        File tempFile = new File(templateDir, fileName + ".tmp"); // Not picked up as a template: wrong extension
+
+        // Write and sync a temporary file, then rename it over the old one, so a crash never leaves a half-written template
+        try (FileOutputStream fos = new FileOutputStream(tempFile)) {
+            fos.write(bytes);
+            fos.getFD().sync();
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Failed to save template to " + file.getAbsolutePath());
+        }
+        Log.d(TAG, "Template saved to " + file.getAbsolutePath());
+        return file;
+    }
 
-        try (FileOutputStream fos = new FileOutputStream(file)) {
-            fos.write(gson.toJson(template).getBytes());
-            Log.d(TAG, "Template saved to " + file.getAbsolutePath());
+    private byte[] readFileBytes(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        try (DataInputStream input = new DataInputStream(new FileInputStream(file))) {
+            input.readFully(bytes);
         }
+        return bytes;
     }
 
-    private String readFile(File file) throws IOException {
-        StringBuilder builder = new StringBuilder();
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file)))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                builder.append(line);
+    private static String sha256(byte[] bytes) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
             }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every Android device provides SHA-256
         }
-        return builder.toString();
     }
 
-    private String readStream(InputStream inputStream) throws IOException {
-        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
-        StringBuilder sb = new StringBuilder();
-        String line;
-        while ((line = reader.readLine()) != null) {
-            sb.append(line).append('\n');
+    // Fails the read once more than maxBytes have come through, so a huge file can't exhaust memory
+    private static class SizeLimitedInputStream extends FilterInputStream {
+        private final long maxBytes;
+        private long bytesRead = 0;
+
+        SizeLimitedInputStream(InputStream in, long maxBytes) {
+            super(in);
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) count(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = super.read(buffer, offset, length);
+            if (n > 0) count(n);
+            return n;
+        }
+
+        private void count(int n) throws IOException {
+            bytesRead += n;
+            if (bytesRead > maxBytes) {
+                throw new IOException("Template file is larger than " + (maxBytes / 1024) + " KB");
+            }
         }
-        reader.close();
-        return sb.toString();
     }
 
-    // NEW: Delete a template file from internal storage and reload available templates
-    public void deleteTemplate(String templateId) throws IOException, IllegalArgumentException {
+    // NEW: Delete a template file from internal storage and drop it from the registry
+    public synchronized void deleteTemplate(String templateId) throws IOException, IllegalArgumentException {
         if (templateId.equals(DEFAULT_TEMPLATE_ID)) {
             throw new IllegalArgumentException("Cannot delete the built-in default template.");
         }
 
         File templateDir = new File(context.getFilesDir(), TEMPLATE_DIR);
-        String fileName = templateId + ".json";
+        TemplateRegistry current = registry;
+        TemplateInfo info = current.getInfo(templateId);
+        String fileName = info != null && info.getFileName() != null ? info.getFileName() : templateId + ".json";
         File file = new File(templateDir, fileName);
 
         if (file.exists()) {
@@ -311,7 +643,10 @@ public class TemplateManager {
                 if (getCurrentTemplateId().equals(templateId)) {
                     saveCurrentTemplateId(DEFAULT_TEMPLATE_ID);
                 }
-                loadAllTemplates(); // Reload all templates to update the in-memory map
+                TemplateRegistry updated = current.withoutTemplate(templateId);
+                registry = updated;
+                saveTemplateIndex(updated);
+                schedulePackRebuild();
             } else {
                 throw new IOException("Failed to delete template file: " + file.getAbsolutePath());
             }
@@ -0,0 +1,415 @@
+package com.tricenc.aftershift;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A binary snapshot of the imported templates, already parsed, with formulas stored as their compiled programs.
+ * Opening it memory-maps the file, checks its checksum and reads only a small directory; a template is decoded from
+ * the mapping the first time it is asked for, which is far cheaper than parsing its JSON.
+ *
+ * Every entry records the SHA-256 of the JSON file it was built from, and is only used while the template index
+ * reports the same hash for that template. The JSON files remain the source of truth.
+ *
+ * Layout (big-endian):
+ * <pre>
+ *   int magic, int version, int checksum                                              (CRC-32 of everything after it)
+ *   int stringCount, int[stringCount + 1] string offsets, byte[] UTF-8 string data   (each distinct string once)
+ *   int templateCount, per template: int templateId, int fileHash, int recordOffset  (string indexes)
+ *   template records: see encodeTemplate()
+ * </pre>
+ * String references are indexes into the string table, -1 for null. Every count is checked against the bytes left
+ * before anything is allocated for it, so a damaged pack is rejected rather than running out of memory.
+ */
+final class TemplatePack {
+    private static final String TAG = "TemplatePack";
+    private static final int MAGIC = 0x41535450; // "ASTP"
+    private static final int VERSION = 5; // 2: decimal scale and rounding, 3: section aggregates, 4: checksum, 5: collapsible fields
+    private static final int HEADER_SIZE = 12;
+    private static final int FLAG_EDITABLE = 1;
+    private static final int FLAG_CUSTOM = 2;
+    private static final int FLAG_PROGRAM = 4; // A compiled formula program follows the field
+
+    static final class Entry {
+        final String fileHash;
+        final ReportTemplate template;
+
+        Entry(String fileHash, ReportTemplate template) {
+            this.fileHash = fileHash;
+            this.template = template;
+        }
+    }
+
+    private final ByteBuffer buffer; // Read with absolute gets only, so one buffer serves every caller
+    private final int[] stringOffsets; // Absolute positions; one extra entry marks the end of the last string
+    private final String[] strings; // Decoded on first use
+    private final Map<String, int[]> directory; // templateId -> {fileHash string index, record offset}
+
+    private TemplatePack(ByteBuffer buffer, int[] stringOffsets, Map<String, int[]> directory) {
+        this.buffer = buffer;
+        this.stringOffsets = stringOffsets;
+        this.strings = new String[stringOffsets.length - 1];
+        this.directory = directory;
+    }
+
+    /**
+     * Maps the pack and reads its directory. Returns null if there is no pack or it is unreadable;
+     * callers then fall back to the JSON files.
+     */
+    static TemplatePack open(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()); // Stays valid after close
+            int pos = 0;
+            if (buffer.getInt(pos) != MAGIC || buffer.getInt(pos + 4) != VERSION) {
+                Log.w(TAG, "Ignoring template pack with an unknown format");
+                return null;
+            }
+            if (buffer.getInt(pos + 8) != checksum(buffer)) {
+                Log.w(TAG, "Ignoring damaged template pack");
+                return null;
+            }
+            pos += HEADER_SIZE;
+
+            int stringCount = count(buffer, pos, 4);
+            pos += 4;
+            int dataStart = pos + (stringCount + 1) * 4;
+            int[] stringOffsets = new int[stringCount + 1];
+            for (int i = 0; i <= stringCount; i++) {
+                int offset = buffer.getInt(pos + i * 4);
+                stringOffsets[i] = dataStart + offset;
+                if (offset < 0 || offset > buffer.limit() - dataStart || (i > 0 && stringOffsets[i] < stringOffsets[i - 1])) {
+                    throw new IndexOutOfBoundsException("Bad string offset");
+                }
+            }
+            pos = stringOffsets[stringCount];
+
+            int templateCount = count(buffer, pos, 12);
+            pos += 4;
+            Map<String, int[]> directory = new HashMap<>();
+            TemplatePack pack = new TemplatePack(buffer, stringOffsets, directory);
+            for (int i = 0; i < templateCount; i++) {
+                String templateId = pack.string(buffer.getInt(pos));
+                int fileHash = buffer.getInt(pos + 4);
+                pack.string(fileHash); // Checked here, as contains() reads it outside any catch
+                directory.put(templateId, new int[]{fileHash, buffer.getInt(pos + 8)});
+                pos += 12;
+            }
+            return pack;
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Template pack unreadable; templates will be parsed from JSON", e);
+            return null;
+        }
+    }
+
+    // True if the pack holds the template as built from a file with this hash
+    synchronized boolean contains(String templateId, String fileHash) {
+        int[] entry = directory.get(templateId);
+        return entry != null && fileHash != null && fileHash.equals(string(entry[0]));
+    }
+
+    synchronized int size() {
+        return directory.size();
+    }
+
+    /**
+     * Decodes a template, or returns null if the pack does not hold it for a file with this hash
+     * (or the record is damaged).
+     */
+    synchronized ReportTemplate read(String templateId, String fileHash) {
+        if (!contains(templateId, fileHash)) {
+            return null;
+        }
+        try {
+            return readTemplate(templateId, directory.get(templateId)[1]);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Damaged template record for " + templateId, e);
+            return null;
+        }
+    }
+
+    private ReportTemplate readTemplate(String templateId, int pos) {
+        String name = string(buffer.getInt(pos));
+        String description = string(buffer.getInt(pos + 4));
+        String reportFormat = string(buffer.getInt(pos + 8));
+        String previewFormat = string(buffer.getInt(pos + 12));
+        int decimalScale = buffer.getInt(pos + 16);
+        String rounding = string(buffer.getInt(pos + 20));
+        List<String> collapsibleFields = null;
+        pos += 24;
+        if (buffer.getInt(pos) != -1) {
+            int collapsibleCount = count(buffer, pos, 4);
+            collapsibleFields = new ArrayList<>(collapsibleCount);
+            for (int i = 0; i < collapsibleCount; i++) {
+                collapsibleFields.add(string(buffer.getInt(pos + 4 + i * 4)));
+            }
+            pos += collapsibleCount * 4;
+        }
+        pos += 4;
+        int fieldCount = count(buffer, pos, 48);
+        pos += 4;
+
+        List<TemplateField> fields = new ArrayList<>(fieldCount);
+        for (int f = 0; f < fieldCount; f++) {
+            int type = buffer.getInt(pos);
+            int flags = buffer.getInt(pos + 4);
+            String[] values = new String[8];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = string(buffer.getInt(pos + 8 + i * 4));
+            }
+            int fieldDecimalScale = buffer.getInt(pos + 40);
+            String fieldRounding = string(buffer.getInt(pos + 44));
+            pos += 48;
+            TemplateField field = new TemplateField(type, values[0], values[1], values[2], values[3],
+                    (flags & FLAG_EDITABLE) != 0, (flags & FLAG_CUSTOM) != 0, values[4], values[5], values[6], values[7],
+                    fieldDecimalScale, fieldRounding);
+
+            if ((flags & FLAG_PROGRAM) != 0) {
+                int maxStackDepth = buffer.getInt(pos);
+                int[] code = new int[count(buffer, pos + 4, 4)];
+                if (maxStackDepth < 1 || maxStackDepth > code.length) {
+                    throw new IndexOutOfBoundsException("Bad stack depth " + maxStackDepth); // Each push is an instruction
+                }
+                pos += 8;
+                for (int i = 0; i < code.length; i++, pos += 4) {
+                    code[i] = buffer.getInt(pos);
+                }
+                double[] constants = new double[count(buffer, pos, 8)];
+                pos += 4;
+                for (int i = 0; i < constants.length; i++, pos += 8) {
+                    constants[i] = buffer.getDouble(pos);
+                }
+                List<String> fieldRefs = new ArrayList<>();
+                int refCount = count(buffer, pos, 4);
+                pos += 4;
+                for (int i = 0; i < refCount; i++, pos += 4) {
+                    fieldRefs.add(string(buffer.getInt(pos)));
+                }
+                List<Formula.Aggregate> aggregates = new ArrayList<>();
+                int aggregateCount = count(buffer, pos, 12);
+                pos += 4;
+                for (int i = 0; i < aggregateCount; i++, pos += 12) {
+                    aggregates.add(new Formula.Aggregate(buffer.getInt(pos), string(buffer.getInt(pos + 4)), string(buffer.getInt(pos + 8))));
+                }
+                field.setCompiledFormula(Formula.restore(values[5], code, constants, fieldRefs, aggregates, maxStackDepth));
+            }
+            fields.add(field);
+        }
+        return new ReportTemplate(templateId, name, description, fields, reportFormat, previewFormat, decimalScale, rounding,
+                collapsibleFields);
+    }
+
+    // Reads the count at pos and checks that that many elements of elementSize bytes fit in what follows it
+    private static int count(ByteBuffer buffer, int pos, int elementSize) {
+        int count = buffer.getInt(pos);
+        if (count < 0 || count > (buffer.limit() - pos - 4) / elementSize) {
+            throw new IndexOutOfBoundsException("Bad count " + count + " at " + pos);
+        }
+        return count;
+    }
+
+    // CRC-32 of the bytes after the header. ByteBuffer input to CRC32 needs API 26, so it is copied out in chunks
+    private static int checksum(ByteBuffer buffer) {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[8192];
+        ByteBuffer body = buffer.duplicate();
+        body.position(Math.min(HEADER_SIZE, body.limit()));
+        while (body.hasRemaining()) {
+            int length = Math.min(chunk.length, body.remaining());
+            body.get(chunk, 0, length);
+            crc.update(chunk, 0, length);
+        }
+        return (int) crc.getValue();
+    }
+
+    private String string(int index) {
+        if (index == -1) {
+            return null;
+        }
+        String value = strings[index];
+        if (value == null) {
+            int start = stringOffsets[index];
+            byte[] bytes = new byte[stringOffsets[index + 1] - start];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = buffer.get(start + i);
+            }
+            value = new String(bytes, StandardCharsets.UTF_8);
+            strings[index] = value;
+        }
+        return value;
+    }
+
+    /**
+     * Writes a pack of the given templates: to a temporary file first, synced and then renamed over the old pack.
+     * Templates whose formulas do not compile are stored without a program and parsed again when used.
+     */
+    static void write(File file, List<Entry> entries) throws IOException {
+        StringTable strings = new StringTable();
+        List<byte[]> records = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            strings.indexOf(entry.template.getTemplateId());
+            strings.indexOf(entry.fileHash);
+            records.add(encodeTemplate(entry.template, strings));
+        }
+
+        // The body is built in memory first: the header carries its checksum
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+        List<byte[]> encoded = strings.encoded();
+        out.writeInt(encoded.size());
+        int offset = 0;
+        for (byte[] bytes : encoded) {
+            out.writeInt(offset);
+            offset += bytes.length;
+        }
+        out.writeInt(offset);
+        for (byte[] bytes : encoded) {
+            out.write(bytes);
+        }
+
+        int headerEnd = HEADER_SIZE + out.size() + 4 + entries.size() * 12;
+        out.writeInt(entries.size());
+        int recordOffset = headerEnd;
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            out.writeInt(strings.indexOf(entry.template.getTemplateId()));
+            out.writeInt(strings.indexOf(entry.fileHash));
+            out.writeInt(recordOffset);
+            recordOffset += records.get(i).length;
+        }
+        for (byte[] record : records) {
+            out.write(record);
+        }
+        out.flush();
+        byte[] bodyBytes = body.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bodyBytes, 0, bodyBytes.length);
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tempFile)) {
+            DataOutputStream fileOut = new DataOutputStream(new BufferedOutputStream(fos));
+            fileOut.writeInt(MAGIC);
+            fileOut.writeInt(VERSION);
+            fileOut.writeInt((int) crc.getValue());
+            fileOut.write(bodyBytes);
+            fileOut.flush();
+            fos.getFD().sync();
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Failed to replace template pack " + file.getAbsolutePath());
+        }
+    }
+
+    // Record: name, description, reportFormat, previewFormat, decimalScale, rounding, the collapsible field count (-1 if
+    // not set) and their ids, fieldCount, then per field
+    // type, flags, eight strings, decimalScale and rounding, followed by the formula program when FLAG_PROGRAM is set
+    private static byte[] encodeTemplate(ReportTemplate template, StringTable strings) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        List<TemplateField> fields = template.getFields() != null ? template.getFields() : new ArrayList<>();
+        out.writeInt(strings.indexOf(template.getName()));
+        out.writeInt(strings.indexOf(template.getDescription()));
+        out.writeInt(strings.indexOf(template.getReportFormat()));
+        out.writeInt(strings.indexOf(template.getPreviewFormat()));
+        out.writeInt(template.getDecimalScale());
+        out.writeInt(strings.indexOf(template.getRounding()));
+        List<String> collapsibleFields = template.getCollapsibleFields();
+        out.writeInt(collapsibleFields != null ? collapsibleFields.size() : -1);
+        if (collapsibleFields != null) {
+            for (String fieldId : collapsibleFields) {
+                out.writeInt(strings.indexOf(fieldId));
+            }
+        }
+        out.writeInt(fields.size());
+        for (TemplateField field : fields) {
+            Formula formula = null;
+            try {
+                formula = field.getCompiledFormula();
+            } catch (IllegalArgumentException e) {
+                // Kept as source only; the error is reported again when the template is used
+            }
+            int flags = (field.isEditable() ? FLAG_EDITABLE : 0) | (field.isCustom() ? FLAG_CUSTOM : 0) | (formula != null ? FLAG_PROGRAM : 0);
+            out.writeInt(field.getType());
+            out.writeInt(flags);
+            out.writeInt(strings.indexOf(field.getInternalId()));
+            out.writeInt(strings.indexOf(field.getDisplayLabel()));
+            out.writeInt(strings.indexOf(field.getDefaultValue()));
+            out.writeInt(strings.indexOf(field.getInputType()));
+            out.writeInt(strings.indexOf(field.getParentSectionId()));
+            out.writeInt(strings.indexOf(field.getCalculationFormula()));
+            out.writeInt(strings.indexOf(field.getMtdSourceField()));
+            out.writeInt(strings.indexOf(field.isMtd() ? field.getMtdResetPeriod() : null));
+            out.writeInt(field.getDecimalScale());
+            out.writeInt(strings.indexOf(field.getRounding()));
+            if (formula != null) {
+                int[] code = formula.getCode();
+                double[] constants = formula.getConstants();
+                out.writeInt(formula.getMaxStackDepth());
+                out.writeInt(code.length);
+                for (int op : code) {
+                    out.writeInt(op);
+                }
+                out.writeInt(constants.length);
+                for (double constant : constants) {
+                    out.writeDouble(constant);
+                }
+                out.writeInt(formula.getFieldRefs().size());
+                for (String ref : formula.getFieldRefs()) {
+                    out.writeInt(strings.indexOf(ref));
+                }
+                out.writeInt(formula.getAggregates().size());
+                for (Formula.Aggregate aggregate : formula.getAggregates()) {
+                    out.writeInt(aggregate.getFunction());
+                    out.writeInt(strings.indexOf(aggregate.getSectionId()));
+                    out.writeInt(strings.indexOf(aggregate.getColumn()));
+                }
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    // Assigns each distinct string one index, in order of first use
+    private static final class StringTable {
+        private final Map<String, Integer> indexes = new LinkedHashMap<>();
+
+        int indexOf(String value) {
+            if (value == null) {
+                return -1;
+            }
+            Integer index = indexes.get(value);
+            if (index == null) {
+                index = indexes.size();
+                indexes.put(value, index);
+            }
+            return index;
+        }
+
+        List<byte[]> encoded() {
+            List<byte[]> encoded = new ArrayList<>(indexes.size());
+            for (String value : indexes.keySet()) {
+                encoded.add(value.getBytes(StandardCharsets.UTF_8));
+            }
+            return encoded;
+        }
+    }
+}
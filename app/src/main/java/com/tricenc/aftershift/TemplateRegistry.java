@@ -0,0 +1,85 @@
+package com.tricenc.aftershift;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable snapshot of the known templates: metadata for every template, the templates parsed so far,
+ * and template files the index does not describe yet.
+ *
+ * TemplateManager publishes one snapshot at a time through a volatile field. Readers use whichever snapshot
+ * they loaded without locking; a change builds a new snapshot with a single-entry delta and swaps it in.
+ */
+final class TemplateRegistry {
+    static final TemplateRegistry EMPTY = new TemplateRegistry(new LinkedHashMap<>(), new HashMap<>(), new ArrayList<>());
+
+    private final Map<String, TemplateInfo> infos; // By ID, in display order (default template first)
+    private final List<TemplateInfo> infoList;
+    private final Map<String, ReportTemplate> templates; // Parsed templates by ID
+    private final List<File> unindexedFiles;
+
+    // Takes ownership of the given collections; callers must not modify them afterwards
+    TemplateRegistry(LinkedHashMap<String, TemplateInfo> infos, HashMap<String, ReportTemplate> templates, List<File> unindexedFiles) {
+        this.infos = Collections.unmodifiableMap(infos);
+        this.infoList = Collections.unmodifiableList(new ArrayList<>(infos.values()));
+        this.templates = Collections.unmodifiableMap(templates);
+        this.unindexedFiles = Collections.unmodifiableList(unindexedFiles);
+    }
+
+    TemplateInfo getInfo(String templateId) {
+        return infos.get(templateId);
+    }
+
+    List<TemplateInfo> getInfos() {
+        return infoList;
+    }
+
+    // Null if the template is unknown or has not been parsed yet
+    ReportTemplate getTemplate(String templateId) {
+        return templates.get(templateId);
+    }
+
+    List<File> getUnindexedFiles() {
+        return unindexedFiles;
+    }
+
+    // Adds or replaces a template. A replaced entry keeps its position. Pass a null template to have it parsed on demand.
+    TemplateRegistry withTemplate(TemplateInfo info, ReportTemplate template) {
+        LinkedHashMap<String, TemplateInfo> newInfos = new LinkedHashMap<>(infos);
+        newInfos.put(info.getTemplateId(), info);
+        HashMap<String, ReportTemplate> newTemplates = new HashMap<>(templates);
+        if (template != null) {
+            newTemplates.put(info.getTemplateId(), template);
+        } else {
+            newTemplates.remove(info.getTemplateId()); // Whatever was parsed before may be stale
+        }
+        return new TemplateRegistry(newInfos, newTemplates, new ArrayList<>(unindexedFiles));
+    }
+
+    // Caches a template parsed from its (unchanged) indexed file
+    TemplateRegistry withParsedTemplate(ReportTemplate template) {
+        HashMap<String, ReportTemplate> newTemplates = new HashMap<>(templates);
+        newTemplates.put(template.getTemplateId(), template);
+        return new TemplateRegistry(new LinkedHashMap<>(infos), newTemplates, new ArrayList<>(unindexedFiles));
+    }
+
+    TemplateRegistry withoutTemplate(String templateId) {
+        if (!infos.containsKey(templateId) && !templates.containsKey(templateId)) {
+            return this;
+        }
+        LinkedHashMap<String, TemplateInfo> newInfos = new LinkedHashMap<>(infos);
+        newInfos.remove(templateId);
+        HashMap<String, ReportTemplate> newTemplates = new HashMap<>(templates);
+        newTemplates.remove(templateId);
+        return new TemplateRegistry(newInfos, newTemplates, new ArrayList<>(unindexedFiles));
+    }
+
+    TemplateRegistry withUnindexedFiles(List<File> files) {
+        return new TemplateRegistry(new LinkedHashMap<>(infos), new HashMap<>(templates), new ArrayList<>(files));
+    }
+}
@@ -0,0 +1,184 @@
+package com.tricenc.aftershift;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Checks an imported template before it is saved. Every problem found is reported with the position of the
+ * offending field, so a template author can fix them all in one pass.
+ */
+final class TemplateValidator {
+    static final int MAX_FIELDS = 500;
+    private static final int MAX_REPORTED_PROBLEMS = 10;
+    // The id becomes the file name, so keep it to characters that are safe there
+    private static final Pattern TEMPLATE_ID_PATTERN = Pattern.compile("[A-Za-z0-9_.-]{1,100}");
+
+    private TemplateValidator() {}
+
+    // Returns the problems found; empty if the template is valid
+    static List<String> validate(ReportTemplate template) {
+        List<String> problems = new ArrayList<>();
+
+        String templateId = template.getTemplateId();
+        if (templateId == null || templateId.isEmpty()) {
+            problems.add("templateId is missing");
+        } else if (!TEMPLATE_ID_PATTERN.matcher(templateId).matches()) {
+            problems.add("templateId '" + templateId + "' may only contain letters, digits, '_', '-' and '.'");
+        } else if (TemplateManager.DEFAULT_TEMPLATE_ID.equals(templateId)) {
+            problems.add("templateId '" + templateId + "' is reserved for the built-in template");
+        }
+        if (template.getName() == null || template.getName().trim().isEmpty()) {
+            problems.add("name is missing");
+        }
+        checkDecimalMode("", template.getDecimalScale(), template.getRounding(), problems);
+
+        List<TemplateField> fields = template.getFields();
+        if (fields == null || fields.isEmpty()) {
+            problems.add("fields is missing or empty");
+            return problems;
+        }
+        if (fields.size() > MAX_FIELDS) {
+            problems.add("too many fields (" + fields.size() + ", at most " + MAX_FIELDS + ")");
+            return problems;
+        }
+
+        // Structure: ids, types and section membership
+        Map<String, TemplateField> valueFields = new HashMap<>(); // Non-header fields by id
+        Set<String> seenIds = new HashSet<>();
+        Set<String> headersSoFar = new HashSet<>();
+        for (int i = 0; i < fields.size(); i++) {
+            TemplateField field = fields.get(i);
+            String where = describe(i, field);
+            String id = field.getInternalId();
+            if (id == null || id.trim().isEmpty()) {
+                problems.add(where + ": internalId is missing");
+                continue;
+            }
+            if (!seenIds.add(id)) {
+                problems.add(where + ": duplicate internalId");
+            }
+
+            switch (field.getType()) {
+                case TemplateField.TYPE_HEADER:
+                    headersSoFar.add(id);
+                    break;
+                case TemplateField.TYPE_SECTION_FIELD:
+                    if (field.getParentSectionId() == null) {
+                        problems.add(where + ": section field needs a parentSectionId");
+                    } else if (!headersSoFar.contains(field.getParentSectionId())) {
+                        problems.add(where + ": parentSectionId '" + field.getParentSectionId() + "' is not a header defined before it");
+                    }
+                    valueFields.put(id, field);
+                    break;
+                case TemplateField.TYPE_FIELD:
+                    valueFields.put(id, field);
+                    break;
+                default:
+                    problems.add(where + ": unknown type " + field.getType() + " (expected 0, 1 or 2)");
+                    break;
+            }
+        }
+
+        // References: formulas, running totals and format placeholders must name value fields, aggregates a header
+        for (int i = 0; i < fields.size(); i++) {
+            TemplateField field = fields.get(i);
+            String where = describe(i, field);
+            if (field.isCalculated()) {
+                try {
+                    Formula formula = field.getCompiledFormula();
+                    for (String ref : formula.getFieldRefs()) {
+                        if (!valueFields.containsKey(ref)) {
+                            problems.add(where + ": formula references unknown field '" + ref + "'");
+                        }
+                    }
+                    for (Formula.Aggregate aggregate : formula.getAggregates()) {
+                        if (!headersSoFar.contains(aggregate.getSectionId())) { // Holds every header by now
+                            problems.add(where + ": " + aggregate + " names unknown header '" + aggregate.getSectionId() + "'");
+                        } else if (aggregate.resolve(fields).isEmpty()) {
+                            problems.add(where + ": " + aggregate + " matches no numeric fields");
+                        }
+                    }
+                } catch (IllegalArgumentException e) {
+                    problems.add(where + ": " + e.getMessage());
+                }
+            }
+            if (field.isMtd()) {
+                if (!valueFields.containsKey(field.getMtdSourceField())) {
+                    problems.add(where + ": mtdSourceField references unknown field '" + field.getMtdSourceField() + "'");
+                }
+                String period = field.getMtdResetPeriod();
+                if (!TemplateField.MTD_RESET_MONTH.equals(period) && !TemplateField.MTD_RESET_YEAR.equals(period)) {
+                    problems.add(where + ": mtdResetPeriod must be '" + TemplateField.MTD_RESET_MONTH + "' or '" + TemplateField.MTD_RESET_YEAR + "'");
+                }
+            }
+            checkDecimalMode(where + ": ", field.getDecimalScale(), field.getRounding(), problems);
+        }
+        checkPlaceholders("reportFormat", template.getReportFormat(), true, valueFields, problems);
+        if (template.getCollapsibleFields() != null) {
+            for (String fieldId : template.getCollapsibleFields()) {
+                if (!valueFields.containsKey(fieldId)) {
+                    problems.add("collapsibleFields: '" + fieldId + "' is not a field");
+                }
+            }
+        }
+        checkPlaceholders("previewFormat", template.getPreviewFormat(), false, valueFields, problems);
+
+        // Only worth checking for cycles once every formula parses
+        if (problems.isEmpty()) {
+            try {
+                FieldDependencyGraph.build(fields);
+            } catch (IllegalArgumentException e) {
+                problems.add(e.getMessage());
+            }
+        }
+        return problems;
+    }
+
+    // Joins the problems into one message, listing at most the first few
+    static String summarize(List<String> problems) {
+        StringBuilder message = new StringBuilder();
+        int shown = Math.min(problems.size(), MAX_REPORTED_PROBLEMS);
+        for (int i = 0; i < shown; i++) {
+            message.append(i == 0 ? "" : "\n").append(problems.get(i));
+        }
+        if (problems.size() > shown) {
+            message.append("\n(").append(problems.size() - shown).append(" more)");
+        }
+        return message.toString();
+    }
+
+    private static void checkPlaceholders(String formatName, String format, boolean required, Map<String, TemplateField> valueFields, List<String> problems) {
+        if (format == null) {
+            if (required) {
+                problems.add(formatName + " is missing");
+            }
+            return;
+        }
+        Set<String> reported = new HashSet<>();
+        for (String id : TemplateFormat.findPlaceholders(format)) {
+            if (!valueFields.containsKey(id) && reported.add(id)) {
+                problems.add(formatName + ": placeholder {" + id + "} has no matching field");
+            }
+        }
+    }
+
+    private static void checkDecimalMode(String where, int decimalScale, String rounding, List<String> problems) {
+        if (decimalScale != TemplateField.NO_DECIMAL_SCALE && (decimalScale < 0 || decimalScale > NumericValue.SCALE)) {
+            problems.add(where + "decimalScale must be between 0 and " + NumericValue.SCALE);
+        }
+        if (rounding != null && NumericValue.parseRounding(rounding) == -1) {
+            problems.add(where + "rounding must be 'half_up', 'half_even' or 'down'");
+        }
+    }
+
+    private static String describe(int index, TemplateField field) {
+        return field.getInternalId() != null
+                ? "fields[" + index + "] '" + field.getInternalId() + "'"
+                : "fields[" + index + "]";
+    }
+}
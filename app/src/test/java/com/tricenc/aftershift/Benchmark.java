@@ -0,0 +1,50 @@
+package com.tricenc.aftershift;
+
+import org.junit.Assume;
+
+import java.util.Locale;
+
+/**
+ * Minimal timing harness for the benchmark tests: runs the operation once as a warm-up pass, then reports the best of
+ * several timed passes in nanoseconds per operation. The best pass rather than the mean, so a GC pause or a busy
+ * machine does not decide the comparison. Meant for comparing two implementations in the same run, not for
+ * absolute device timings.
+ *
+ * Timing is opt-in (./gradlew test -Pbenchmarks): on a shared CI machine the ratios are too noisy to fail a build on.
+ * The benchmark tests check their results in separate test methods, which always run.
+ */
+final class Benchmark {
+    private static final int TIMED_PASSES = 5;
+
+    static final boolean ENABLED = Boolean.getBoolean("benchmarks");
+
+    static volatile Object sink; // Results are stored here so the JIT cannot drop the work being timed
+
+    interface Operation {
+        void run(int iteration) throws Exception;
+    }
+
+    private Benchmark() {}
+
+    // Skips the calling test unless benchmarks were asked for
+    static void assumeEnabled() {
+        Assume.assumeTrue("Benchmarks run with ./gradlew test -Pbenchmarks", ENABLED);
+    }
+
+    static double nanosPerOp(String name, int iterations, Operation operation) throws Exception {
+        for (int i = 0; i < iterations; i++) {
+            operation.run(i);
+        }
+        long best = Long.MAX_VALUE;
+        for (int pass = 0; pass < TIMED_PASSES; pass++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                operation.run(i);
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        double nanos = best / (double) iterations;
+        System.out.println(String.format(Locale.ROOT, "%-55s %14.1f ns/op", name, nanos));
+        return nanos;
+    }
+}
@@ -0,0 +1,168 @@
+package com.tricenc.aftershift;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Times one recalculation of a derived field: the compiled Formula (in double and in fixed-point mode, each followed
+ * by formatting the result as the report screen does) against the string evaluator it replaced, which substituted
+ * the field values into the formula text and evaluated that with regular expressions. The timing runs only with
+ * -Pbenchmarks (see Benchmark); the results are checked on every run.
+ */
+public class FormulaBenchmarkTest {
+    private static final int ITERATIONS = 50_000;
+    // Formulas the old evaluator could handle: no parentheses, no functions
+    private static final String[] FORMULAS = {
+            "{gross_sales} - {tax_amount}",
+            "{cash} + {card} - {refunds} + {tips} * {rate}", // It could not chain "* {rate} / 100"
+    };
+
+    private static final Map<String, String> TEXT_VALUES = new HashMap<>();
+
+    static {
+        TEXT_VALUES.put("gross_sales", "1520.75");
+        TEXT_VALUES.put("tax_amount", "98.10");
+        TEXT_VALUES.put("cash", "640.5");
+        TEXT_VALUES.put("card", "880.25");
+        TEXT_VALUES.put("refunds", "12");
+        TEXT_VALUES.put("tips", "45.5");
+        TEXT_VALUES.put("rate", "15");
+    }
+
+    @Test
+    public void compiledFormulaMatchesStringSubstitution() {
+        for (String source : FORMULAS) {
+            Compiled compiled = new Compiled(source);
+            String expected = LegacyEvaluator.recalculate(source, TEXT_VALUES);
+            assertEquals(source, expected, compiled.evaluate());
+            assertEquals(source, expected, compiled.evaluateFixed());
+        }
+    }
+
+    @Test
+    public void compiledFormulaBeatsStringSubstitution() throws Exception {
+        Benchmark.assumeEnabled();
+        for (String source : FORMULAS) {
+            Compiled compiled = new Compiled(source);
+            System.out.println(source);
+            double legacy = Benchmark.nanosPerOp("  string substitution + regex evaluation", ITERATIONS,
+                    i -> Benchmark.sink = LegacyEvaluator.recalculate(source, TEXT_VALUES));
+            double viaDouble = Benchmark.nanosPerOp("  compiled, double", ITERATIONS, i -> Benchmark.sink = compiled.evaluate());
+            double fixed = Benchmark.nanosPerOp("  compiled, fixed point", ITERATIONS, i -> Benchmark.sink = compiled.evaluateFixed());
+            Benchmark.nanosPerOp("  compile once (per template load)", ITERATIONS, i -> Benchmark.sink = Formula.compile(source));
+
+            assertTrue(source + ": " + viaDouble + " vs " + legacy, viaDouble * 5 < legacy);
+            assertTrue(source + ": " + fixed + " vs " + legacy, fixed * 5 < legacy);
+        }
+    }
+
+    // A compiled formula with its operand slots filled from TEXT_VALUES; each evaluation formats the result as the
+    // report screen does
+    private static final class Compiled {
+        private final Formula formula;
+        private final int[] refSlots;
+        private final double[] slotValues;
+        private final long[] fixedSlotValues;
+        private final int[][] noAggregates = new int[0][];
+        private final double[] stack;
+        private final long[] fixedStack;
+
+        Compiled(String source) {
+            formula = Formula.compile(source);
+            List<String> refs = formula.getFieldRefs();
+            refSlots = new int[refs.size()];
+            slotValues = new double[refs.size()];
+            fixedSlotValues = new long[refs.size()];
+            stack = new double[formula.getMaxStackDepth()];
+            fixedStack = new long[formula.getMaxStackDepth()];
+            for (int i = 0; i < refSlots.length; i++) {
+                refSlots[i] = i;
+                fixedSlotValues[i] = NumericValue.parse(TEXT_VALUES.get(refs.get(i)));
+                slotValues[i] = NumericValue.toDouble(fixedSlotValues[i]);
+            }
+        }
+
+        String evaluate() {
+            return NumericValue.format(NumericValue.fromDouble(formula.evaluate(slotValues, refSlots, noAggregates, stack)), 2);
+        }
+
+        String evaluateFixed() {
+            return NumericValue.format(formula.evaluateFixed(fixedSlotValues, refSlots, noAggregates, NumericValue.ROUND_HALF_UP, fixedStack), 2);
+        }
+    }
+
+    // The evaluator Formula replaced (ReportGeneratorActivity.recalculateField before the compiled engine), minus logging
+    private static final class LegacyEvaluator {
+        static String recalculate(String formula, Map<String, String> values) {
+            String evaluatedFormula = formula;
+            Pattern pattern = Pattern.compile("\\{([^}]+)\\}");
+            Matcher matcher = pattern.matcher(formula);
+            boolean allValuesNumeric = true;
+            while (matcher.find()) {
+                String placeholderKey = matcher.group(1);
+                String stored = values.get(placeholderKey);
+                String value = stored != null && !stored.isEmpty() ? stored : "0";
+                if (!value.matches("-?\\d+(\\.\\d+)?")) {
+                    allValuesNumeric = false;
+                }
+                evaluatedFormula = evaluatedFormula.replace("{" + placeholderKey + "}", value);
+            }
+            if (!allValuesNumeric) {
+                return "Error";
+            }
+            try {
+                return String.format(Locale.ROOT, "%.2f", evaluateSimpleExpression(evaluatedFormula));
+            } catch (RuntimeException e) {
+                return "Error";
+            }
+        }
+
+        private static double evaluateSimpleExpression(String expression) {
+            expression = evaluateMultiplicationDivision(expression);
+            String[] parts = expression.split("(?<=[-+])|(?=[-+])");
+            double result = 0;
+            String currentOperator = "+";
+            for (String part : parts) {
+                part = part.trim();
+                if (part.isEmpty()) continue;
+                if (part.equals("+") || part.equals("-")) {
+                    currentOperator = part;
+                } else {
+                    double number = Double.parseDouble(part);
+                    result = currentOperator.equals("+") ? result + number : result - number;
+                }
+            }
+            return result;
+        }
+
+        private static String evaluateMultiplicationDivision(String expression) {
+            Pattern mdPattern = Pattern.compile("(-?\\d+(\\.\\d+)?)\\s*([*/])\\s*(-?\\d+(\\.\\d+)?)");
+            Matcher matcher = mdPattern.matcher(expression);
+            StringBuffer sb = new StringBuffer();
+            while (matcher.find()) {
+                double operand1 = Double.parseDouble(matcher.group(1));
+                double operand2 = Double.parseDouble(matcher.group(4));
+                double intermediateResult;
+                if (matcher.group(3).equals("*")) {
+                    intermediateResult = operand1 * operand2;
+                } else if (operand2 != 0) {
+                    intermediateResult = operand1 / operand2;
+                } else {
+                    throw new ArithmeticException("Division by zero");
+                }
+                matcher.appendReplacement(sb, String.valueOf(intermediateResult));
+            }
+            matcher.appendTail(sb);
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.tricenc.aftershift;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Randomized checks of Formula.evaluateFixed: random expressions over three fields are compiled and evaluated, and
+ * compared with a straightforward BigDecimal evaluation of the same expression tree that rounds each product,
+ * quotient and round() to SCALE places and turns anything that leaves the long range into INVALID.
+ */
+public class FormulaFixedPointTest {
+    private static final int ITERATIONS = 50_000;
+    private static final String[] FIELDS = {"a", "b", "c"};
+    private static final BigDecimal ONE = BigDecimal.TEN.pow(NumericValue.SCALE);
+    private static final BigInteger MIN_VALID = BigInteger.valueOf(NumericValue.INVALID + 1);
+    private static final BigInteger MAX_VALID = BigInteger.valueOf(Long.MAX_VALUE);
+
+    // Expression tree: the source text and a reference evaluation (scaled BigInteger, null for INVALID)
+    private abstract static class Node {
+        abstract String source();
+        abstract BigInteger evaluate(long[] fields, RoundingMode mode);
+    }
+
+    @Test
+    public void evaluateFixedMatchesBigDecimal() {
+        Random random = new Random(7);
+        int[] roundings = {NumericValue.ROUND_HALF_UP, NumericValue.ROUND_HALF_EVEN, NumericValue.ROUND_DOWN};
+        long[] slotValues = new long[FIELDS.length];
+        for (int i = 0; i < ITERATIONS; i++) {
+            Node expression = randomNode(random, 4);
+            Formula formula = Formula.compile(expression.source());
+            List<String> refs = formula.getFieldRefs();
+            int[] refSlots = new int[refs.size()];
+            for (int r = 0; r < refSlots.length; r++) {
+                refSlots[r] = refs.get(r).charAt(0) - 'a';
+            }
+            for (int field = 0; field < FIELDS.length; field++) {
+                // Mostly everyday values, so most results are valid and rounding decides them; the rest from the edges
+                slotValues[field] = random.nextInt(4) != 0 ? random.nextInt(20_000_001) - 10_000_000 : NumericValueTest.randomValue(random);
+            }
+            for (int rounding : roundings) {
+                BigInteger expected = expression.evaluate(slotValues, NumericValueTest.mode(rounding));
+                long actual = formula.evaluateFixed(slotValues, refSlots, new int[0][], rounding, stack(formula));
+                assertEquals(expression.source() + " with a=" + slotValues[0] + ", b=" + slotValues[1] + ", c=" + slotValues[2]
+                        + ", rounding " + rounding, expected == null ? NumericValue.INVALID : expected.longValue(), actual);
+            }
+        }
+    }
+
+    @Test
+    public void invalidFieldMakesTheResultInvalid() {
+        Formula formula = Formula.compile("({a} + {b}) * 0.15 - round({a} / 3, 2)");
+        long[] values = {NumericValue.parse("12.5"), NumericValue.INVALID};
+        assertEquals(NumericValue.INVALID, formula.evaluateFixed(values, refSlots(formula), new int[0][], NumericValue.ROUND_HALF_UP, stack(formula)));
+        values[1] = NumericValue.parse("7.5");
+        // 20 * 0.15 - 4.17
+        assertEquals(NumericValue.parse("-1.17"), formula.evaluateFixed(values, refSlots(formula), new int[0][], NumericValue.ROUND_HALF_UP, stack(formula)));
+        Formula division = Formula.compile("{a} / ({b} - 7.5)");
+        assertEquals(NumericValue.INVALID, division.evaluateFixed(values, new int[]{0, 1}, new int[0][], NumericValue.ROUND_HALF_UP, stack(division)));
+    }
+
+    @Test
+    public void roundingModeDecidesTies() {
+        // 0.0005 / 10 = 0.00005, and 2.5 / 1 rounded to 0 places, under each mode
+        Formula quotient = Formula.compile("{a} / 10");
+        Formula rounded = Formula.compile("round({a})");
+        int[] slots = {0};
+        long[][] cases = {
+                {NumericValue.ROUND_HALF_UP, 5, 1, 25_000, 30_000},
+                {NumericValue.ROUND_HALF_EVEN, 5, 0, 25_000, 20_000},
+                {NumericValue.ROUND_DOWN, 5, 0, 25_000, 20_000},
+                {NumericValue.ROUND_HALF_UP, -5, -1, -25_000, -30_000},
+                {NumericValue.ROUND_HALF_EVEN, 15, 2, 35_000, 40_000},
+        };
+        for (long[] c : cases) {
+            int rounding = (int) c[0];
+            assertEquals("quotient/" + rounding, c[2], quotient.evaluateFixed(new long[]{c[1]}, slots, new int[0][], rounding, stack(quotient)));
+            assertEquals("round/" + rounding, c[4], rounded.evaluateFixed(new long[]{c[3]}, slots, new int[0][], rounding, stack(rounded)));
+        }
+    }
+
+    private static long[] stack(Formula formula) {
+        return new long[formula.getMaxStackDepth()];
+    }
+
+    private static int[] refSlots(Formula formula) {
+        List<String> refs = formula.getFieldRefs();
+        int[] slots = new int[refs.size()];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = refs.get(i).equals("a") ? 0 : 1;
+        }
+        return slots;
+    }
+
+    private static Node randomNode(Random random, int depth) {
+        int choice = depth == 0 ? random.nextInt(2) : random.nextInt(10);
+        switch (choice) {
+            case 0: return field(FIELDS[random.nextInt(FIELDS.length)]);
+            case 1: return constant(random);
+            case 2: return binary(randomNode(random, depth - 1), "+", randomNode(random, depth - 1));
+            case 3: return binary(randomNode(random, depth - 1), "-", randomNode(random, depth - 1));
+            case 4: return binary(randomNode(random, depth - 1), "*", randomNode(random, depth - 1));
+            case 5: return binary(randomNode(random, depth - 1), "/", randomNode(random, depth - 1));
+            case 6: return unary(randomNode(random, depth - 1), random.nextBoolean() ? "-" : "abs");
+            case 7: return minMax(random.nextBoolean(), randomNode(random, depth - 1), randomNode(random, depth - 1));
+            default: return round(randomNode(random, depth - 1), random.nextInt(3) == 0 ? Integer.MIN_VALUE : random.nextInt(9) - 4);
+        }
+    }
+
+    private static Node field(String id) {
+        return new Node() {
+            String source() { return "{" + id + "}"; }
+            BigInteger evaluate(long[] fields, RoundingMode mode) {
+                long value = fields[id.charAt(0) - 'a'];
+                return value == NumericValue.INVALID ? null : BigInteger.valueOf(value);
+            }
+        };
+    }
+
+    // Up to 6 integer digits and SCALE decimals, so the literal is exact as a double
+    private static Node constant(Random random) {
+        String text = random.nextInt(1_000_000) + (random.nextBoolean() ? "." + random.nextInt(10_000) : "");
+        BigInteger value = new BigDecimal(text).multiply(ONE).toBigIntegerExact();
+        return new Node() {
+            String source() { return text; }
+            BigInteger evaluate(long[] fields, RoundingMode mode) { return value; }
+        };
+    }
+
+    private static Node binary(Node left, String operator, Node right) {
+        return new Node() {
+            String source() { return "(" + left.source() + " " + operator + " " + right.source() + ")"; }
+            BigInteger evaluate(long[] fields, RoundingMode mode) {
+                BigInteger a = left.evaluate(fields, mode);
+                BigInteger b = right.evaluate(fields, mode);
+                if (a == null || b == null) return null;
+                switch (operator) {
+                    case "+": return fit(a.add(b));
+                    case "-": return fit(a.subtract(b));
+                    case "*": return fit(new BigDecimal(a.multiply(b)).divide(ONE, 0, mode).toBigInteger());
+                    default: return b.signum() == 0 ? null : fit(new BigDecimal(a).multiply(ONE).divide(new BigDecimal(b), 0, mode).toBigInteger());
+                }
+            }
+        };
+    }
+
+    private static Node unary(Node operand, String function) {
+        return new Node() {
+            String source() { return function.equals("-") ? "-(" + operand.source() + ")" : "abs(" + operand.source() + ")"; }
+            BigInteger evaluate(long[] fields, RoundingMode mode) {
+                BigInteger value = operand.evaluate(fields, mode);
+                return value == null ? null : fit(function.equals("-") ? value.negate() : value.abs());
+            }
+        };
+    }
+
+    private static Node minMax(boolean min, Node left, Node right) {
+        return new Node() {
+            String source() { return (min ? "min(" : "max(") + left.source() + ", " + right.source() + ")"; }
+            BigInteger evaluate(long[] fields, RoundingMode mode) {
+                BigInteger a = left.evaluate(fields, mode);
+                BigInteger b = right.evaluate(fields, mode);
+                if (a == null || b == null) return null;
+                return min ? a.min(b) : a.max(b);
+            }
+        };
+    }
+
+    // round(x) when digits is Integer.MIN_VALUE, otherwise round(x, digits)
+    private static Node round(Node operand, int digits) {
+        boolean defaultDigits = digits == Integer.MIN_VALUE;
+        return new Node() {
+            String source() {
+                return "round(" + operand.source() + (defaultDigits ? ")" : ", " + (digits < 0 ? "-" + -digits : digits) + ")");
+            }
+            BigInteger evaluate(long[] fields, RoundingMode mode) {
+                BigInteger value = operand.evaluate(fields, mode);
+                if (value == null) return null;
+                int places = defaultDigits ? 0 : digits;
+                if (places >= NumericValue.SCALE) return value;
+                return fit(new BigDecimal(value).setScale(places - NumericValue.SCALE, mode).toBigIntegerExact());
+            }
+        };
+    }
+
+    private static BigInteger fit(BigInteger value) {
+        return value.compareTo(MIN_VALID) < 0 || value.compareTo(MAX_VALID) > 0 ? null : value;
+    }
+}
@@ -0,0 +1,119 @@
+package com.tricenc.aftershift;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.Gson;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Times writing and parsing a template and a report payload with JsonAdapters.gson() against a plain new Gson(),
+ * which reads and writes the same classes through reflection. Both must agree on the content first. The "fresh" rows
+ * create the Gson per operation, as ReportGeneratorActivity did per screen, so they include building the reflective
+ * adapters. A template the size of the default one: headers, section fields, totals and month-to-date fields.
+ * The timing runs only with -Pbenchmarks (see Benchmark); the content check runs every time.
+ */
+public class JsonAdaptersBenchmarkTest {
+    private static final int ITERATIONS = 5_000;
+    private static final int SECTIONS = 12;
+
+    @Test
+    public void streamingAdaptersMatchReflection() {
+        Gson reflective = new Gson();
+        Gson streaming = JsonAdapters.gson();
+        ReportTemplate template = template();
+        Map<String, String> values = reportValues(template);
+
+        // Same content either way: the reflective JSON (every field written) parses to the same template through both
+        String templateJson = reflective.toJson(template);
+        assertEquals(streaming.toJson(template), streaming.toJson(reflective.fromJson(templateJson, ReportTemplate.class)));
+        assertEquals(streaming.toJson(template), streaming.toJson(streaming.fromJson(templateJson, ReportTemplate.class)));
+        String valuesJson = streaming.toJson(values, JsonAdapters.REPORT_VALUES_TYPE);
+        assertEquals(valuesJson, reflective.toJson(values, JsonAdapters.REPORT_VALUES_TYPE));
+        assertEquals(values, reflective.fromJson(valuesJson, JsonAdapters.REPORT_VALUES_TYPE));
+        assertEquals(values, streaming.fromJson(valuesJson, JsonAdapters.REPORT_VALUES_TYPE));
+    }
+
+    @Test
+    public void streamingAdaptersBeatReflection() throws Exception {
+        Benchmark.assumeEnabled();
+        Gson reflective = new Gson();
+        Gson streaming = JsonAdapters.gson();
+        ReportTemplate template = template();
+        Map<String, String> values = reportValues(template);
+        String templateJson = reflective.toJson(template);
+        String valuesJson = streaming.toJson(values, JsonAdapters.REPORT_VALUES_TYPE);
+
+        System.out.println("Template with " + template.getFields().size() + " fields, " + templateJson.length() + " chars");
+        double reflectiveWrite = Benchmark.nanosPerOp("  write, reflective", ITERATIONS,
+                i -> Benchmark.sink = reflective.toJson(template));
+        double streamingWrite = Benchmark.nanosPerOp("  write, streaming adapters", ITERATIONS,
+                i -> Benchmark.sink = streaming.toJson(template));
+        Benchmark.nanosPerOp("  parse, reflective", ITERATIONS,
+                i -> Benchmark.sink = reflective.fromJson(templateJson, ReportTemplate.class));
+        double streamingRead = Benchmark.nanosPerOp("  parse, streaming adapters", ITERATIONS,
+                i -> Benchmark.sink = streaming.fromJson(templateJson, ReportTemplate.class));
+        double freshRead = Benchmark.nanosPerOp("  parse, reflective with a fresh Gson", ITERATIONS,
+                i -> Benchmark.sink = new Gson().fromJson(templateJson, ReportTemplate.class));
+
+        System.out.println("Report payload with " + values.size() + " values, " + valuesJson.length() + " chars");
+        Benchmark.nanosPerOp("  write, reflective", ITERATIONS,
+                i -> Benchmark.sink = reflective.toJson(values, JsonAdapters.REPORT_VALUES_TYPE));
+        Benchmark.nanosPerOp("  write, streaming adapters", ITERATIONS,
+                i -> Benchmark.sink = streaming.toJson(values, JsonAdapters.REPORT_VALUES_TYPE));
+        double reflectiveValuesRead = Benchmark.nanosPerOp("  parse, reflective", ITERATIONS,
+                i -> Benchmark.sink = reflective.fromJson(valuesJson, JsonAdapters.REPORT_VALUES_TYPE));
+        double streamingValuesRead = Benchmark.nanosPerOp("  parse, streaming adapters", ITERATIONS,
+                i -> Benchmark.sink = streaming.fromJson(valuesJson, JsonAdapters.REPORT_VALUES_TYPE));
+        double freshValuesRead = Benchmark.nanosPerOp("  parse, reflective with a fresh Gson", ITERATIONS,
+                i -> Benchmark.sink = new Gson().fromJson(valuesJson, JsonAdapters.REPORT_VALUES_TYPE));
+
+        // A warmed-up reflective template parse is about even with the adapters on a desktop JIT, so it is not asserted
+        assertTrue("template write: " + streamingWrite + " vs " + reflectiveWrite, streamingWrite < reflectiveWrite);
+        assertTrue("template parse: " + streamingRead + " vs fresh " + freshRead, streamingRead < freshRead);
+        assertTrue("payload parse: " + streamingValuesRead + " vs " + reflectiveValuesRead, streamingValuesRead < reflectiveValuesRead);
+        assertTrue("payload parse: " + streamingValuesRead + " vs fresh " + freshValuesRead, streamingValuesRead < freshValuesRead);
+    }
+
+    // Laid out like the default template: a header per section with today's and month-to-date values, plus totals.
+    // Also used by TemplatePackBenchmarkTest
+    static ReportTemplate template() {
+        List<TemplateField> fields = new ArrayList<>();
+        fields.add(new TemplateField(TemplateField.TYPE_FIELD, "date_field", "Date", "", "text", true, false));
+        for (int s = 0; s < SECTIONS; s++) {
+            String header = "header_" + s;
+            fields.add(new TemplateField(TemplateField.TYPE_HEADER, header, "Section " + s, null, "text", false, false));
+            fields.add(new TemplateField(TemplateField.TYPE_SECTION_FIELD, "r_" + s, "R", "", "numberDecimal", true, false, header));
+            fields.add(new TemplateField(TemplateField.TYPE_SECTION_FIELD, "us_" + s, "US", "", "numberDecimal", true, false, header));
+            fields.add(new TemplateField(TemplateField.TYPE_SECTION_FIELD, "total_" + s, "Total", "", "numberDecimal", false, false,
+                    header, "{r_" + s + "} + {us_" + s + "} * 0.5", null, null));
+            fields.add(new TemplateField(TemplateField.TYPE_SECTION_FIELD, "mtd_r_" + s, "MTD R", "", "numberDecimal", false, false,
+                    header, null, "r_" + s, TemplateField.MTD_RESET_MONTH));
+        }
+        fields.add(new TemplateField(TemplateField.TYPE_FIELD, "additional_notes", "Notes", "", "text", true, false));
+        StringBuilder format = new StringBuilder("Report {date_field}\n");
+        for (int s = 0; s < SECTIONS; s++) {
+            format.append("Section ").append(s).append(" R{r_").append(s).append("} US{us_").append(s)
+                    .append("} Total {total_").append(s).append("} MTD {mtd_r_").append(s).append("}\n");
+        }
+        format.append("{?additional_notes}\n");
+        return new ReportTemplate("benchmark_report", "Benchmark", "Sections like the default template", fields,
+                format.toString(), "{date_field}: {total_0}", 2, null);
+    }
+
+    private static Map<String, String> reportValues(ReportTemplate template) {
+        Map<String, String> values = new LinkedHashMap<>();
+        int i = 0;
+        for (TemplateField field : template.getFields()) {
+            if (field.getType() == TemplateField.TYPE_HEADER) continue;
+            values.put(field.getInternalId(), field.getInputType().equals("text") ? "Quiet shift, till balanced" : (i++ * 37 % 1000) + ".50");
+        }
+        return values;
+    }
+}
@@ -0,0 +1,230 @@
+package com.tricenc.aftershift;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.util.Random;
+
+/**
+ * Randomized checks of NumericValue against BigDecimal: every operation is either exact (rounded to SCALE places
+ * with the requested mode) or INVALID, never silently wrong. Operands are drawn near the interesting edges:
+ * 0, +-1 unit, ties at the 10^SCALE boundary, and values whose results no longer fit in a long.
+ * Seeds are fixed so a failure reproduces; the message names the operands.
+ */
+public class NumericValueTest {
+    private static final int ITERATIONS = 200_000;
+    private static final int[] ROUNDINGS = {NumericValue.ROUND_HALF_UP, NumericValue.ROUND_HALF_EVEN, NumericValue.ROUND_DOWN};
+    private static final BigDecimal ONE = BigDecimal.TEN.pow(NumericValue.SCALE);
+    private static final BigInteger MIN_VALID = BigInteger.valueOf(NumericValue.INVALID + 1);
+    private static final BigInteger MAX_VALID = BigInteger.valueOf(Long.MAX_VALUE);
+
+    @Test
+    public void addAndSubtractAreExactOrInvalid() {
+        Random random = new Random(1);
+        for (int i = 0; i < ITERATIONS; i++) {
+            long a = randomValue(random);
+            long b = randomValue(random);
+            assertEquals(describe("add", a, b), expected(a, b, BigInteger::add), NumericValue.add(a, b));
+            assertEquals(describe("subtract", a, b), expected(a, b, BigInteger::subtract), NumericValue.subtract(a, b));
+        }
+    }
+
+    @Test
+    public void multiplyRoundsLikeBigDecimal() {
+        Random random = new Random(2);
+        for (int i = 0; i < ITERATIONS; i++) {
+            long a = randomValue(random);
+            long b = randomValue(random);
+            for (int rounding : ROUNDINGS) {
+                long expected = a == NumericValue.INVALID || b == NumericValue.INVALID ? NumericValue.INVALID
+                        : fit(new BigDecimal(BigInteger.valueOf(a).multiply(BigInteger.valueOf(b))).divide(ONE, 0, mode(rounding)));
+                assertEquals(describe("multiply/" + rounding, a, b), expected, NumericValue.multiply(a, b, rounding));
+            }
+        }
+    }
+
+    @Test
+    public void divideRoundsLikeBigDecimal() {
+        Random random = new Random(3);
+        for (int i = 0; i < ITERATIONS; i++) {
+            long a = randomValue(random);
+            long b = randomValue(random);
+            for (int rounding : ROUNDINGS) {
+                long expected = a == NumericValue.INVALID || b == NumericValue.INVALID || b == 0 ? NumericValue.INVALID
+                        : fit(new BigDecimal(BigInteger.valueOf(a)).multiply(ONE).divide(BigDecimal.valueOf(b), 0, mode(rounding)));
+                assertEquals(describe("divide/" + rounding, a, b), expected, NumericValue.divide(a, b, rounding));
+            }
+        }
+    }
+
+    @Test
+    public void roundMatchesBigDecimalSetScale() {
+        Random random = new Random(4);
+        for (int i = 0; i < ITERATIONS; i++) {
+            long a = randomValue(random);
+            int decimals = random.nextInt(30) - 22; // Down to units far beyond a long
+            for (int rounding : ROUNDINGS) {
+                long expected;
+                if (a == NumericValue.INVALID || decimals >= NumericValue.SCALE) {
+                    expected = a;
+                } else {
+                    expected = fit(BigDecimal.valueOf(a).setScale(decimals - NumericValue.SCALE, mode(rounding)));
+                }
+                assertEquals("round(" + a + ", " + decimals + ")/" + rounding, expected, NumericValue.round(a, decimals, rounding));
+            }
+        }
+    }
+
+    @Test
+    public void roundingModesAtTies() {
+        // 2.5, 3.5, -2.5 and 0.00005 (half a unit below SCALE, reached through divide)
+        assertEquals(30_000, NumericValue.round(25_000, 0, NumericValue.ROUND_HALF_UP));
+        assertEquals(20_000, NumericValue.round(25_000, 0, NumericValue.ROUND_HALF_EVEN));
+        assertEquals(20_000, NumericValue.round(25_000, 0, NumericValue.ROUND_DOWN));
+        assertEquals(40_000, NumericValue.round(35_000, 0, NumericValue.ROUND_HALF_EVEN));
+        assertEquals(-30_000, NumericValue.round(-25_000, 0, NumericValue.ROUND_HALF_UP));
+        assertEquals(-20_000, NumericValue.round(-25_000, 0, NumericValue.ROUND_HALF_EVEN));
+        assertEquals(1, NumericValue.divide(1, 20_000, NumericValue.ROUND_HALF_UP));
+        assertEquals(0, NumericValue.divide(1, 20_000, NumericValue.ROUND_HALF_EVEN));
+        assertEquals(0, NumericValue.divide(1, 20_000, NumericValue.ROUND_DOWN));
+        assertEquals(-1, NumericValue.divide(-1, 20_000, NumericValue.ROUND_HALF_UP));
+    }
+
+    @Test
+    public void invalidPropagatesAndIsNeverProduced() {
+        long[] values = {0, 1, -1, 10_000, Long.MAX_VALUE, NumericValue.INVALID + 1};
+        for (long value : values) {
+            assertEquals(NumericValue.INVALID, NumericValue.add(value, NumericValue.INVALID));
+            assertEquals(NumericValue.INVALID, NumericValue.subtract(NumericValue.INVALID, value));
+            assertEquals(NumericValue.INVALID, NumericValue.multiply(NumericValue.INVALID, value, NumericValue.ROUND_HALF_UP));
+            assertEquals(NumericValue.INVALID, NumericValue.divide(value, NumericValue.INVALID, NumericValue.ROUND_HALF_UP));
+            assertEquals(NumericValue.INVALID, NumericValue.divide(value, 0, NumericValue.ROUND_HALF_UP));
+            assertEquals(NumericValue.INVALID, NumericValue.min(value, NumericValue.INVALID));
+            assertEquals(NumericValue.INVALID, NumericValue.max(NumericValue.INVALID, value));
+        }
+        assertEquals(NumericValue.INVALID, NumericValue.negate(NumericValue.INVALID));
+        assertEquals(NumericValue.INVALID, NumericValue.abs(NumericValue.INVALID));
+        assertEquals(NumericValue.INVALID, NumericValue.round(NumericValue.INVALID, 0, NumericValue.ROUND_HALF_UP));
+        // A result of exactly Long.MIN_VALUE would read as INVALID, so it is reported as one
+        assertEquals(NumericValue.INVALID, NumericValue.subtract(NumericValue.INVALID + 1, 1));
+        assertEquals(NumericValue.INVALID + 1, NumericValue.negate(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void parseMatchesBigDecimal() {
+        Random random = new Random(5);
+        BigDecimal maxExact = new BigDecimal(Long.MAX_VALUE / 10).divide(ONE); // parse's documented limit
+        for (int i = 0; i < ITERATIONS; i++) {
+            String text = randomNumberText(random);
+            long parsed = NumericValue.parse(text);
+            String plain = text.trim().replace(',', '.');
+            if (plain.isEmpty()) {
+                assertEquals("Blank text counts as 0", 0, parsed);
+                continue;
+            }
+            if (!plain.matches("[+-]?(\\d+\\.?\\d*|\\.\\d+)")) {
+                assertEquals("parse(\"" + text + "\")", NumericValue.INVALID, parsed);
+                continue;
+            }
+            BigDecimal value = new BigDecimal(plain.endsWith(".") ? plain + "0" : plain).setScale(NumericValue.SCALE, RoundingMode.HALF_UP);
+            if (value.abs().compareTo(maxExact) < 0) {
+                assertEquals("parse(\"" + text + "\")", value.unscaledValue().longValueExact(), parsed);
+            } else if (parsed != NumericValue.INVALID) {
+                // Near the limit a value may be rejected, but one that is accepted must be exact
+                assertEquals("parse(\"" + text + "\")", value.unscaledValue(), BigInteger.valueOf(parsed));
+            }
+        }
+        assertEquals(0, NumericValue.parse("  "));
+        assertEquals(0, NumericValue.parse(null));
+        assertEquals(NumericValue.INVALID, NumericValue.parse("1e5"));
+        assertEquals(NumericValue.INVALID, NumericValue.parse("1,000.5"));
+        assertEquals(NumericValue.INVALID, NumericValue.parse("99999999999999999999"));
+    }
+
+    @Test
+    public void formatRoundsHalfAwayFromZero() {
+        Random random = new Random(6);
+        for (int i = 0; i < ITERATIONS; i++) {
+            long value = randomValue(random);
+            if (value == NumericValue.INVALID) continue;
+            int decimals = random.nextInt(NumericValue.SCALE + 1);
+            BigDecimal rounded = BigDecimal.valueOf(value, NumericValue.SCALE).setScale(decimals, RoundingMode.HALF_UP);
+            String expected = rounded.signum() == 0 ? rounded.abs().toPlainString() : rounded.toPlainString();
+            assertEquals("format(" + value + ", " + decimals + ")", expected, NumericValue.format(value, decimals));
+            if (Math.abs(value) < (1L << 50)) {
+                assertEquals("double round trip of " + value, value, NumericValue.fromDouble(NumericValue.toDouble(value)));
+                assertEquals(value, NumericValue.parse(NumericValue.format(value, NumericValue.SCALE)));
+            }
+        }
+    }
+
+    @Test
+    public void fromDoubleRejectsWhatDoesNotFit() {
+        assertEquals(NumericValue.INVALID, NumericValue.fromDouble(Double.NaN));
+        assertEquals(NumericValue.INVALID, NumericValue.fromDouble(Double.POSITIVE_INFINITY));
+        assertEquals(NumericValue.INVALID, NumericValue.fromDouble(-1e300));
+        assertEquals(125_000, NumericValue.fromDouble(12.5));
+        assertEquals(1_000, NumericValue.fromDouble(0.1));
+        assertTrue(Double.isNaN(NumericValue.toDouble(NumericValue.INVALID)));
+    }
+
+    // Operands clustered around the edges: small values and ties, the 10^SCALE boundary, and near overflow
+    static long randomValue(Random random) {
+        switch (random.nextInt(8)) {
+            case 0: return NumericValue.INVALID;
+            case 1: return random.nextInt(5) - 2; // 0 and +-1, +-2 units
+            case 2: return (random.nextInt(21) - 10) * 5_000L + random.nextInt(3) - 1; // Around halves and whole numbers
+            case 3: return (random.nextBoolean() ? 1 : -1) * (10_000L + random.nextInt(3) - 1); // 1 +- a unit
+            case 4: return random.nextLong(); // Anywhere, mostly near overflow
+            case 5: return (random.nextBoolean() ? Long.MAX_VALUE : NumericValue.INVALID + 1) - (random.nextBoolean() ? 1 : -1) * random.nextInt(3);
+            case 6: return (random.nextInt(2_000_001) - 1_000_000) * (long) Math.pow(10, random.nextInt(12)); // Products near the fast path's limit
+            default: return random.nextInt(20_000_001) - 10_000_000; // Typical field values, up to +-1000
+        }
+    }
+
+    private static String randomNumberText(Random random) {
+        StringBuilder text = new StringBuilder();
+        if (random.nextInt(4) == 0) text.append(' ');
+        if (random.nextInt(3) == 0) text.append(random.nextBoolean() ? '-' : '+');
+        int integerDigits = random.nextInt(4) == 0 ? random.nextInt(22) : random.nextInt(5);
+        for (int i = 0; i < integerDigits; i++) text.append((char) ('0' + random.nextInt(10)));
+        if (random.nextBoolean()) {
+            text.append(random.nextBoolean() ? '.' : ',');
+            int fractionDigits = random.nextInt(8);
+            for (int i = 0; i < fractionDigits; i++) text.append((char) ('0' + random.nextInt(10)));
+        }
+        if (random.nextInt(50) == 0) text.append("xe.,-".charAt(random.nextInt(5))); // Occasionally malformed
+        if (random.nextInt(4) == 0) text.append(' ');
+        return text.toString();
+    }
+
+    private static long expected(long a, long b, java.util.function.BinaryOperator<BigInteger> operation) {
+        if (a == NumericValue.INVALID || b == NumericValue.INVALID) return NumericValue.INVALID;
+        return fit(new BigDecimal(operation.apply(BigInteger.valueOf(a), BigInteger.valueOf(b))));
+    }
+
+    // INVALID if the scaled result does not fit (Long.MIN_VALUE itself is the INVALID sentinel)
+    private static long fit(BigDecimal scaled) {
+        BigInteger value = scaled.setScale(0, RoundingMode.UNNECESSARY).toBigInteger();
+        return value.compareTo(MIN_VALID) < 0 || value.compareTo(MAX_VALID) > 0 ? NumericValue.INVALID : value.longValue();
+    }
+
+    static RoundingMode mode(int rounding) {
+        switch (rounding) {
+            case NumericValue.ROUND_HALF_EVEN: return RoundingMode.HALF_EVEN;
+            case NumericValue.ROUND_DOWN: return RoundingMode.DOWN;
+            case NumericValue.ROUND_HALF_UP: return RoundingMode.HALF_UP;
+            default: fail("Unknown rounding " + rounding); return null;
+        }
+    }
+
+    private static String describe(String operation, long a, long b) {
+        return operation + "(" + a + ", " + b + ")";
+    }
+}
@@ -0,0 +1,128 @@
+package com.tricenc.aftershift;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.SQLiteMode;
+
+import java.util.List;
+
+/**
+ * Times saveReport and loading the whole report list with 5,000 reports, with one long-lived WAL connection (as
+ * ReportDatabase.getInstance() keeps it) against the former pattern of opening the database for each call and
+ * closing it afterwards with a rollback journal. Host timings, so only the ratio is meaningful; they run only with
+ * -Pbenchmarks (see Benchmark).
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 33)
+@SQLiteMode(SQLiteMode.Mode.NATIVE)
+public class ReportDatabaseBenchmarkTest {
+    private static final String DATABASE_NAME = "shop_reports.db";
+    private static final int REPORT_COUNT = 5_000;
+    private static final int SAVES = 100;
+    private static final int LIST_LOADS = 5;
+    private static final int PAGE_SIZE = 50; // As MainActivity pages the list
+    private static final String DATA = "{\"sales\":\"123.45\",\"count\":\"7\",\"note\":\"Quiet shift, till balanced\"}";
+
+    private Context context;
+    private ReportDatabase reportDatabase;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.getApplication();
+        context.deleteDatabase(DATABASE_NAME);
+        reportDatabase = new ReportDatabase(context);
+    }
+
+    @After
+    public void tearDown() {
+        reportDatabase.close();
+        context.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void bothConnectionPatternsListEveryReport() {
+        seed();
+        reportDatabase.close();
+        ReportDatabase perCall = openPerCall();
+        try {
+            assertEquals(REPORT_COUNT, loadAll(perCall));
+        } finally {
+            perCall.close();
+        }
+        reportDatabase = new ReportDatabase(context);
+        assertEquals(REPORT_COUNT, loadAll(reportDatabase));
+    }
+
+    @Test
+    public void oneWalConnectionBeatsReopeningPerCall() throws Exception {
+        Benchmark.assumeEnabled();
+        seed();
+        reportDatabase.close(); // The per-call helpers below switch the file back to a rollback journal
+
+        double reopenedSave = Benchmark.nanosPerOp("saveReport, opened and closed per call", SAVES, i -> {
+            ReportDatabase perCall = openPerCall();
+            try {
+                save(perCall, i);
+            } finally {
+                perCall.close();
+            }
+        });
+        double reopenedList = Benchmark.nanosPerOp("list 5,000 reports, opened and closed per call", LIST_LOADS, i -> {
+            ReportDatabase perCall = openPerCall();
+            try {
+                Benchmark.sink = loadAll(perCall);
+            } finally {
+                perCall.close();
+            }
+        });
+
+        reportDatabase = new ReportDatabase(context);
+        double persistentSave = Benchmark.nanosPerOp("saveReport, one WAL connection", SAVES, i -> save(reportDatabase, i));
+        double persistentList = Benchmark.nanosPerOp("list 5,000 reports, one WAL connection", LIST_LOADS,
+                i -> Benchmark.sink = loadAll(reportDatabase));
+
+        assertTrue("save: " + persistentSave + " vs " + reopenedSave, persistentSave < reopenedSave);
+        assertTrue("list: " + persistentList + " vs " + reopenedList, persistentList < reopenedList);
+    }
+
+    // The configuration before the shared instance: no write-ahead log, a fresh connection and page cache per call
+    private ReportDatabase openPerCall() {
+        ReportDatabase perCall = new ReportDatabase(context);
+        perCall.setWriteAheadLoggingEnabled(false);
+        return perCall;
+    }
+
+    private void seed() {
+        for (int i = 0; i < REPORT_COUNT; i++) {
+            save(reportDatabase, i);
+        }
+    }
+
+    private static void save(ReportDatabase db, int i) {
+        db.saveReport("Report " + i, "15/03/24 09:00", "Preview " + i, DATA, TemplateManager.DEFAULT_TEMPLATE_ID);
+    }
+
+    // Every summary, a page at a time as the main screen loads them while scrolling
+    private static int loadAll(ReportDatabase db) {
+        int loaded = 0;
+        MainActivity.SavedReport last = null;
+        while (true) {
+            List<MainActivity.SavedReport> page = db.getReportSummaries(last, PAGE_SIZE);
+            loaded += page.size();
+            if (page.size() < PAGE_SIZE) break;
+            last = page.get(page.size() - 1);
+        }
+        assertTrue(loaded >= REPORT_COUNT);
+        return loaded;
+    }
+}
@@ -0,0 +1,237 @@
+package com.tricenc.aftershift;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.CancellationSignal;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.SQLiteMode;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Upgrades a database written by the last release before v4 (one reports table with text dates) and checks that
+ * every report survives with its content, and that the derived tables and indexes of the current schema exist
+ * and agree with the reports. Runs on the device's SQLite build through Robolectric's native mode, so FTS4 and
+ * the query planner behave as on a phone.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 33)
+@SQLiteMode(SQLiteMode.Mode.NATIVE)
+public class ReportDatabaseMigrationTest {
+    private static final String DATABASE_NAME = "shop_reports.db"; // The file existing installs have
+    private static final int REPORT_COUNT = 5_000;
+    private static final int UNPARSEABLE_EVERY = 500; // Reports whose text date is damaged
+    private static final String OTHER_TEMPLATE_ID = "bar_report";
+
+    private Context context;
+    private ReportDatabase reportDatabase;
+    private final List<Long> createdMillis = new ArrayList<>(); // By report id - 1; 0 for damaged dates
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.getApplication();
+        context.deleteDatabase(DATABASE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        if (reportDatabase != null) reportDatabase.close();
+        context.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void upgradeFromV3KeepsEveryReportAndBuildsTheDerivedTables() throws ParseException {
+        writeVersion3Database();
+
+        reportDatabase = new ReportDatabase(context);
+        assertEquals(REPORT_COUNT, reportDatabase.getReportCount());
+        SQLiteDatabase db = reportDatabase.getWritableDatabase();
+        assertTrue("upgraded to the current version", db.getVersion() > 3);
+
+        // Content and timestamps, report by report
+        SimpleDateFormat format = new SimpleDateFormat("dd/MM/yy HH:mm", Locale.getDefault());
+        for (long id = 1; id <= REPORT_COUNT; id++) {
+            MainActivity.SavedReport report = reportDatabase.getReport(id);
+            assertNotNull("report " + id, report);
+            assertEquals(title(id), report.getTitle());
+            assertEquals(dataJson(id), report.getReportData());
+            assertEquals(templateId(id), report.getTemplateId());
+            long expectedCreated = createdMillis.get((int) id - 1);
+            assertEquals("created of report " + id, expectedCreated, report.getCreatedMillis());
+            long expectedLastEdited = isDamaged(id) ? 0 : format.parse(lastEditedText(id)).getTime();
+            assertEquals("last edited of report " + id, expectedLastEdited, report.getLastEditedMillis());
+        }
+
+        // Derived tables: every field of every report, the search index and the running totals
+        assertEquals(REPORT_COUNT * 3L, count(db, "SELECT COUNT(*) FROM report_values"));
+        assertEquals(REPORT_COUNT * 2L, count(db, "SELECT COUNT(*) FROM report_values WHERE numeric_value IS NOT NULL"));
+        assertEquals(REPORT_COUNT, count(db, "SELECT COUNT(*) FROM reports_fts"));
+        assertEquals(REPORT_COUNT * 2L, count(db, "SELECT COUNT(*) FROM report_totals"));
+        assertEquals(0, count(db, "SELECT COUNT(*) FROM report_revisions")); // Written from the next save on
+        assertEquals(sumOfSales(), count(db, "SELECT CAST(ROUND(SUM(numeric_value) * 100) AS INTEGER) FROM report_values WHERE field_id = 'sales'"));
+
+        List<MainActivity.SavedReport> hits = reportDatabase.searchReports("note1234", 10, new CancellationSignal());
+        assertEquals(1, hits.size());
+        assertEquals(1234, hits.get(0).getId());
+
+        // The MTD baseline of the last report of a month counts every earlier report of its template in that month
+        long id = lastReportOfMonth();
+        TemplateField mtdSales = new TemplateField(TemplateField.TYPE_FIELD, "mtd_sales", "MTD sales", "", "numberDecimal",
+                false, false, null, null, "sales", TemplateField.MTD_RESET_MONTH);
+        long baseline = reportDatabase.getMtdBaselines(templateId(id), id, createdMillis.get((int) id - 1),
+                Collections.singletonList(mtdSales)).get("mtd_sales");
+        assertEquals(NumericValue.parse(expectedMonthToDate(id)), baseline);
+
+        Set<String> indexes = new HashSet<>();
+        try (Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'index' AND name NOT LIKE 'sqlite_%'", null)) {
+            while (cursor.moveToNext()) indexes.add(cursor.getString(0));
+        }
+        for (String index : new String[]{"idx_reports_last_edited", "idx_reports_created", "idx_reports_template_id",
+                "idx_report_values_field", "idx_report_totals_order"}) {
+            assertTrue(index + " in " + indexes, indexes.contains(index));
+        }
+    }
+
+    @Test
+    public void upgradedDatabaseAcceptsNewReports() {
+        writeVersion3Database();
+        reportDatabase = new ReportDatabase(context);
+
+        long id = reportDatabase.saveReport("After upgrade", "15/03/24 09:00", "preview", "{\"sales\":\"1.5\"}", TemplateManager.DEFAULT_TEMPLATE_ID);
+        assertEquals(REPORT_COUNT + 1, id); // AUTOINCREMENT carries on from the v3 table
+        assertEquals(REPORT_COUNT + 1, reportDatabase.getReportCount());
+        reportDatabase.deleteReport(1);
+        assertEquals(REPORT_COUNT, reportDatabase.getReportCount());
+    }
+
+    // The schema and text dates of v3, filled the way v3 saved reports
+    private void writeVersion3Database() {
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(context.getDatabasePath(DATABASE_NAME), null);
+        try {
+            db.execSQL("CREATE TABLE reports (id INTEGER PRIMARY KEY AUTOINCREMENT, title TEXT NOT NULL, date TEXT NOT NULL, " +
+                    "preview TEXT, data TEXT NOT NULL, template_id TEXT DEFAULT '" + TemplateManager.DEFAULT_TEMPLATE_ID + "', " +
+                    "created_date TEXT NOT NULL DEFAULT '01/01/70 00:00')");
+            SimpleDateFormat format = new SimpleDateFormat("dd/MM/yy HH:mm", Locale.getDefault());
+            SQLiteStatement insert = db.compileStatement("INSERT INTO reports (title, date, preview, data, template_id, created_date) " +
+                    "VALUES (?, ?, ?, ?, ?, ?)");
+            db.beginTransaction();
+            try {
+                for (long id = 1; id <= REPORT_COUNT; id++) {
+                    String created = createdText(id);
+                    insert.bindString(1, title(id));
+                    insert.bindString(2, isDamaged(id) ? "not a date" : lastEditedText(id));
+                    insert.bindString(3, "Preview of report " + id);
+                    insert.bindString(4, dataJson(id));
+                    insert.bindString(5, templateId(id));
+                    insert.bindString(6, isDamaged(id) ? "not a date either" : created);
+                    insert.executeInsert();
+                    // Damaged rows have neither date, so both timestamps become 0 (sorted last)
+                    createdMillis.add(isDamaged(id) ? 0 : format.parse(created).getTime());
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                insert.close();
+            }
+            db.setVersion(3);
+        } catch (ParseException e) {
+            throw new AssertionError(e);
+        } finally {
+            db.close();
+        }
+    }
+
+    private static String title(long id) {
+        return "Report " + id;
+    }
+
+    private static String templateId(long id) {
+        return id % 3 == 0 ? OTHER_TEMPLATE_ID : TemplateManager.DEFAULT_TEMPLATE_ID;
+    }
+
+    private static boolean isDamaged(long id) {
+        return id % UNPARSEABLE_EVERY == 0;
+    }
+
+    // Three reports a day from 1 Jan 2023, so the reports span several months and years; ids are in time order
+    private static String createdText(long id) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(2023, Calendar.JANUARY, 1, 8, 0);
+        calendar.add(Calendar.DAY_OF_MONTH, (int) (id / 3));
+        calendar.add(Calendar.HOUR_OF_DAY, (int) (id % 3) * 4);
+        return new SimpleDateFormat("dd/MM/yy HH:mm", Locale.getDefault()).format(calendar.getTime());
+    }
+
+    private static String lastEditedText(long id) {
+        return createdText(id).replace(":00", ":30");
+    }
+
+    // sales is in cents plus a decimal, count is whole, note is free text
+    private static String dataJson(long id) {
+        return "{\"sales\":\"" + salesCents(id) / 100 + "." + String.format(Locale.ROOT, "%02d", salesCents(id) % 100) +
+                "\",\"count\":\"" + id % 7 + "\",\"note\":\"note" + id + "\"}";
+    }
+
+    private static long salesCents(long id) {
+        return id * 37 % 100_000;
+    }
+
+    private static long sumOfSales() {
+        long sum = 0;
+        for (long id = 1; id <= REPORT_COUNT; id++) sum += salesCents(id);
+        return sum;
+    }
+
+    private long lastReportOfMonth() {
+        for (long id = REPORT_COUNT / 2; id < REPORT_COUNT; id++) {
+            // createdMillis is indexed by id - 1, so index id is the next report
+            if (!isDamaged(id) && !isDamaged(id + 1) && templateId(id).equals(TemplateManager.DEFAULT_TEMPLATE_ID)
+                    && ReportDatabase.periodOf(createdMillis.get((int) id)) != ReportDatabase.periodOf(createdMillis.get((int) id - 1))) {
+                return id;
+            }
+        }
+        throw new AssertionError("no month boundary");
+    }
+
+    // Sales of the earlier reports of the same template in the same month, in the format NumericValue parses
+    private String expectedMonthToDate(long id) {
+        int period = ReportDatabase.periodOf(createdMillis.get((int) id - 1));
+        long cents = 0;
+        for (long other = 1; other < id; other++) {
+            long created = createdMillis.get((int) other - 1);
+            if (created != 0 && templateId(other).equals(templateId(id)) && ReportDatabase.periodOf(created) == period) {
+                cents += salesCents(other);
+            }
+        }
+        return cents / 100 + "." + String.format(Locale.ROOT, "%02d", cents % 100);
+    }
+
+    private static long count(SQLiteDatabase db, String sql) {
+        try (Cursor cursor = db.rawQuery(sql, null)) {
+            cursor.moveToFirst();
+            return cursor.getLong(0);
+        }
+    }
+}
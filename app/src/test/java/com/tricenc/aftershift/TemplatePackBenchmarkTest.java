@@ -0,0 +1,105 @@
+package com.tricenc.aftershift;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+
+/**
+ * Times loading an imported template the two ways TemplateManager can: from its JSON file (read, parse, then compile
+ * every formula, as the report screen needs them) and from the binary pack. The pack is opened once per process, so
+ * opening it is timed on its own, and the decoding is timed on packs opened beforehand, a fresh one per call, so no
+ * decoded string is reused. The timing runs only with -Pbenchmarks (see Benchmark); the decoded template is checked
+ * every time.
+ */
+public class TemplatePackBenchmarkTest {
+    private static final int ITERATIONS = 5_000;
+    private static final int DECODE_CALLS = 6 * ITERATIONS; // Benchmark's warm-up pass and five timed passes
+    private static final String FILE_HASH = "0123456789abcdef"; // Any value; the pack only compares it
+
+    private File directory;
+    private File jsonFile;
+    private File packFile;
+    private ReportTemplate template;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("templates").toFile();
+        template = JsonAdaptersBenchmarkTest.template();
+        jsonFile = new File(directory, template.getTemplateId() + ".json");
+        Files.write(jsonFile.toPath(), JsonAdapters.gson().toJson(template).getBytes(StandardCharsets.UTF_8));
+        packFile = new File(directory, "templates.pack");
+        TemplatePack.write(packFile, Collections.singletonList(new TemplatePack.Entry(FILE_HASH, template)));
+    }
+
+    @After
+    public void tearDown() {
+        jsonFile.delete();
+        packFile.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void packMatchesParsedJson() throws Exception {
+        ReportTemplate fromJson = loadFromJson();
+        ReportTemplate fromPack = loadFromPack(template.getTemplateId());
+        assertNotNull(fromPack);
+        assertEquals(JsonAdapters.gson().toJson(fromJson), JsonAdapters.gson().toJson(fromPack));
+        for (int i = 0; i < fromJson.getFields().size(); i++) {
+            Formula parsed = fromJson.getFields().get(i).getCompiledFormula();
+            Formula restored = fromPack.getFields().get(i).getCompiledFormula();
+            if (parsed != null) {
+                assertNotNull(restored);
+                assertEquals(parsed.getFieldRefs(), restored.getFieldRefs());
+            }
+        }
+    }
+
+    @Test
+    public void packBeatsParsingJson() throws Exception {
+        Benchmark.assumeEnabled();
+        String templateId = template.getTemplateId();
+        System.out.println("Template with " + template.getFields().size() + " fields: " + jsonFile.length()
+                + " bytes of JSON, " + packFile.length() + " bytes of pack");
+        double json = Benchmark.nanosPerOp("  JSON: read, parse, compile formulas", ITERATIONS,
+                i -> Benchmark.sink = loadFromJson());
+        Benchmark.nanosPerOp("  JSON: read and parse only", ITERATIONS,
+                i -> Benchmark.sink = JsonAdapters.gson().fromJson(readJson(), ReportTemplate.class));
+        Benchmark.nanosPerOp("  pack: open (once per process)", ITERATIONS, i -> Benchmark.sink = TemplatePack.open(packFile));
+        TemplatePack[] packs = new TemplatePack[DECODE_CALLS];
+        for (int i = 0; i < packs.length; i++) {
+            packs[i] = TemplatePack.open(packFile);
+        }
+        int[] next = {0};
+        double pack = Benchmark.nanosPerOp("  pack: decode, formulas included", ITERATIONS,
+                i -> Benchmark.sink = packs[next[0]++].read(templateId, FILE_HASH));
+
+        assertTrue("pack: " + pack + " vs json: " + json, pack < json);
+    }
+
+    // TemplateManager's JSON path, plus compiling the formulas it leaves for first use
+    private ReportTemplate loadFromJson() throws IOException {
+        ReportTemplate parsed = JsonAdapters.gson().fromJson(readJson(), ReportTemplate.class);
+        for (TemplateField field : parsed.getFields()) {
+            field.getCompiledFormula();
+        }
+        return parsed;
+    }
+
+    private String readJson() throws IOException {
+        return new String(Files.readAllBytes(jsonFile.toPath()), StandardCharsets.UTF_8);
+    }
+
+    private ReportTemplate loadFromPack(String templateId) {
+        return TemplatePack.open(packFile).read(templateId, FILE_HASH);
+    }
+}